@@ -0,0 +1,656 @@
+package neandertal.jaugre.bench;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import neandertal.jaugre.core.ChainingSegmentFinder;
+import neandertal.jaugre.core.DetectorSession;
+import neandertal.jaugre.core.HoughSegmentFinder;
+import neandertal.jaugre.core.MarkerDecoder;
+import neandertal.jaugre.core.QualityController;
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.DetectionEngineEnum;
+import neandertal.jaugre.core.data.Marker;
+import neandertal.jaugre.core.data.Quadrangle;
+import neandertal.jaugre.core.data.QuantizedAngle;
+
+
+/**
+ * Runs the detection pipeline over a set of synthetic frames and reports
+ * recall, corner error, correctly read marker IDs and frames per second. Used to check every
+ * performance change for both speed and quality regressions.
+ * <br/>
+ * Every {@link Mode} of the session is a gate - the run fails with a non
+ * zero exit code, if the recall of a mode is under its minimum or its
+ * corner error over the maximum, or if the quantized angles differ from
+ * the float math. Run all modes after a change of any step.
+ * <br/>
+ * Usage: DetectionHarness [width] [height] [frames] [seed] [mode|all]
+ * @author neandertal
+ */
+public class DetectionHarness
+{
+    /** Default resolution of the generated frames */
+    public static final int DEFAULT_WIDTH = 640;
+    public static final int DEFAULT_HEIGHT = 480;
+    /** Default count of measured frames */
+    public static final int DEFAULT_FRAMES = 50;
+    /** Frames run before the measurement starts, so the JIT has compiled the hot code */
+    public static final int DEFAULT_WARMUP_FRAMES = 10;
+    /** Maximum distance of a detected corner to the real one, as part of the marker side */
+    public static final float DEFAULT_CORNER_TOLERANCE = 0.1f;
+    /** Lower limit of the corner tolerance in pixels */
+    public static final float DEFAULT_MIN_CORNER_TOLERANCE = 3f;
+    /**
+     * Recall of the baseline pipeline - the eight static stages, as run by
+     * this harness before the session - on the default frames: 640x480, 50
+     * frames of seed 1
+     */
+    public static final double DEFAULT_BASELINE_RECALL = 0.725;
+    /** Recall of the baseline pipeline on the default video sequences, 2 of 40 frames of seed 1 */
+    public static final double DEFAULT_BASELINE_VIDEO_RECALL = 0.879;
+    /**
+     * Variation of the recall between two runs of the same frames, by the
+     * random hypotheses of RANSAC and by the frames which miss a time budget
+     * before the JIT compiler has finished
+     */
+    public static final double DEFAULT_RECALL_TOLERANCE = 0.03;
+    /**
+     * Maximum mean corner error of a mode in pixels, over it the run fails.
+     * The baseline pipeline has 2.05 px on the frames and 2.10 px on the
+     * sequences.
+     */
+    public static final double DEFAULT_MAX_CORNER_ERROR = 2.5;
+    /** Maximum error of a quantized angle in steps, over it the run fails */
+    public static final double DEFAULT_MAX_ANGLE_ERROR = 1;
+    /** Maximum error of a product of two quantized angles, over it the run fails */
+    public static final double DEFAULT_MAX_PRODUCT_ERROR = 1e-4;
+    /** Frames of a sequence of the video modes */
+    public static final int DEFAULT_SEQUENCE_FRAMES = 40;
+    /** Time budget of a frame of the deadline mode */
+    public static final long DEFAULT_FRAME_BUDGET_NANOS = 50000000L;
+
+    public static void main(String[] args)
+    {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WIDTH;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HEIGHT;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_FRAMES;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1L;
+        Mode[] modes = args.length > 4 && "all".equalsIgnoreCase(args[4]) ? Mode.values()
+                : new Mode[] { args.length > 4 ? Mode.valueOf(args[4].toUpperCase()) : Mode.DEFAULT };
+
+        boolean passed = checkAngles();
+        System.out.println("Resolution   : " + width + "x" + height);
+        for (Mode mode : modes)
+        {
+            Report report = run(mode, width, height, frames, seed);
+            boolean modePassed = report.passes(mode.getMinRecall(), DEFAULT_MAX_CORNER_ERROR);
+            passed &= modePassed;
+
+            System.out.println();
+            System.out.println("Mode         : " + mode);
+            System.out.println(report.toString());
+            System.out.println("Gate         : " + (modePassed ? "passed" : "FAILED") + String.format(
+                    " (recall >= %.3f, corner error <= %.2f px)", mode.getMinRecall(), DEFAULT_MAX_CORNER_ERROR));
+        }
+
+        if (!passed)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the detection with a session of the mode over the frames
+     * generated with the seed, so every mode gets the same frames. The video
+     * modes get sequences of {@link #DEFAULT_SEQUENCE_FRAMES} frames, each
+     * with a new session.
+     * @param mode configuration of the session
+     * @param width frame width
+     * @param height frame height
+     * @param frames count of frames
+     * @param seed random seed of the frames
+     * @return measured quality and speed
+     */
+    public static Report run(Mode mode, int width, int height, int frames, long seed)
+    {
+        SyntheticMarkerGenerator generator = new SyntheticMarkerGenerator(seed);
+        int bitsPerSide = generator.getBitsPerSide();
+        if (!mode.isVideo())
+        {
+            List<SyntheticFrame> dataset = generateDataset(generator, width, height, frames);
+            List<SyntheticFrame> warmup = generateDataset(generator, width, height, DEFAULT_WARMUP_FRAMES);
+            run(warmup, createSession(mode, bitsPerSide), bitsPerSide, mode.getBudgetNanos(), new Report());
+            return run(dataset, createSession(mode, bitsPerSide), bitsPerSide, mode.getBudgetNanos(),
+                    new Report());
+        }
+
+        int sequences = Math.max(1, (frames + DEFAULT_SEQUENCE_FRAMES - 1) / DEFAULT_SEQUENCE_FRAMES);
+        List<List<SyntheticFrame>> dataset = new ArrayList<List<SyntheticFrame>>(sequences);
+        for (int i = 0; i < sequences; i++)
+        {
+            dataset.add(generator.generateSequence(width, height, DEFAULT_SEQUENCE_FRAMES));
+        }
+        List<SyntheticFrame> warmup = generator.generateSequence(width, height, DEFAULT_WARMUP_FRAMES);
+        run(warmup, createSession(mode, bitsPerSide), bitsPerSide, mode.getBudgetNanos(), new Report());
+
+        Report report = new Report();
+        for (List<SyntheticFrame> sequence : dataset)
+        {
+            run(sequence, createSession(mode, bitsPerSide), bitsPerSide, mode.getBudgetNanos(), report);
+        }
+        return report;
+    }
+
+    // new session of the mode
+    private static DetectorSession createSession(Mode mode, int bitsPerSide)
+    {
+        DetectorSession session = new DetectorSession();
+        session.setBitsPerSide(bitsPerSide);
+        mode.configure(session);
+        return session;
+    }
+
+    /**
+     * Checks the tables of the quantized angles against the float math - the
+     * angle of a vector by its integer and by its float components, and the
+     * dot and cross products of two angles against the products of their
+     * float directions.
+     * @return true if the errors are within {@link #DEFAULT_MAX_ANGLE_ERROR}
+     *         and {@link #DEFAULT_MAX_PRODUCT_ERROR}
+     */
+    public static boolean checkAngles()
+    {
+        double angleError = 0;
+        for (int x = -1020; x <= 1020; x += 3)
+        {
+            for (int y = -1020; y <= 1020; y += 3)
+            {
+                double exact = Math.atan2(y, x) * QuantizedAngle.STEPS / (2 * Math.PI);
+                angleError = Math.max(angleError, stepsBetween(QuantizedAngle.fromComponents(x, y), exact));
+                angleError = Math.max(angleError, stepsBetween(QuantizedAngle.fromVector(x / 1020f, y / 1020f),
+                        exact));
+            }
+        }
+
+        double productError = 0;
+        for (int a = 0; a < QuantizedAngle.STEPS; a++)
+        {
+            for (int b = 0; b < QuantizedAngle.STEPS; b++)
+            {
+                double difference = (b - a) * 2 * Math.PI / QuantizedAngle.STEPS;
+                productError = Math.max(productError, Math.abs(QuantizedAngle.cos(a, b) - Math.cos(difference)));
+                productError = Math.max(productError, Math.abs(QuantizedAngle.sin(a, b) - Math.sin(difference)));
+                if (QuantizedAngle.isTurnedPositive(a, b) != Math.sin(difference) >= -1e-9)
+                {
+                    productError = Double.MAX_VALUE;
+                }
+            }
+        }
+
+        boolean passed = angleError <= DEFAULT_MAX_ANGLE_ERROR && productError <= DEFAULT_MAX_PRODUCT_ERROR;
+        System.out.println("Angle tables : " + (passed ? "passed" : "FAILED") + String.format(
+                " (angle error %.2f steps, product error %.6f)", angleError, productError));
+        return passed;
+    }
+
+    // distance of a quantized angle to an exact one, around the circle
+    private static double stepsBetween(int angle, double exact)
+    {
+        double difference = Math.abs(angle - exact) % QuantizedAngle.STEPS;
+        return Math.min(difference, QuantizedAngle.STEPS - difference);
+    }
+
+    /**
+     * Generates a set of frames with the given generator
+     * @param generator frame generator
+     * @param width frame width
+     * @param height frame height
+     * @param frames count of frames
+     * @return generated frames
+     */
+    public static List<SyntheticFrame> generateDataset(SyntheticMarkerGenerator generator, int width, int height,
+            int frames)
+    {
+        List<SyntheticFrame> dataset = new ArrayList<SyntheticFrame>(frames);
+        for (int i = 0; i < frames; i++)
+        {
+            dataset.add(generator.generate(width, height));
+        }
+        return dataset;
+    }
+
+    /**
+     * Runs the detection over all frames and matches the found quadrangles
+     * with the ground truth.
+     * @param dataset frames to process
+     * @param bitsPerSide bit cells per marker side, as generated
+     * @return measured quality and speed
+     */
+    public static Report run(List<SyntheticFrame> dataset, int bitsPerSide)
+    {
+        DetectorSession session = new DetectorSession();
+        session.setBitsPerSide(bitsPerSide);
+        return run(dataset, session, bitsPerSide);
+    }
+
+    /**
+     * Runs the detection with a configured session over all frames and
+     * matches the found quadrangles with the ground truth.
+     * @param dataset frames to process
+     * @param session session to compare, with the bits per side set
+     * @param bitsPerSide bit cells per marker side, as generated
+     * @return measured quality and speed
+     */
+    public static Report run(List<SyntheticFrame> dataset, DetectorSession session, int bitsPerSide)
+    {
+        return run(dataset, session, bitsPerSide, 0, new Report());
+    }
+
+    /**
+     * Runs the detection with a configured session and a time budget for
+     * every frame, see {@link DetectorSession#detect(java.awt.image.BufferedImage, long)}
+     * @param dataset frames to process
+     * @param session session to compare, with the bits per side set
+     * @param bitsPerSide bit cells per marker side, as generated
+     * @param budgetNanos time for a frame, 0 for no budget
+     * @return measured quality and speed
+     */
+    public static Report run(List<SyntheticFrame> dataset, DetectorSession session, int bitsPerSide,
+            long budgetNanos)
+    {
+        return run(dataset, session, bitsPerSide, budgetNanos, new Report());
+    }
+
+    // adds the frames to the report
+    private static Report run(List<SyntheticFrame> dataset, DetectorSession session, int bitsPerSide,
+            long budgetNanos, Report report)
+    {
+        for (SyntheticFrame frame : dataset)
+        {
+            long start = System.nanoTime();
+            Container image = budgetNanos > 0 ? session.detect(frame.getImage(), budgetNanos)
+                    : session.detect(frame.getImage());
+            long nanos = System.nanoTime() - start;
+            report.nanos += nanos;
+            report.maxNanos = Math.max(report.maxNanos, nanos);
+            report.frames++;
+            if (image.isBudgetHit())
+            {
+                report.budgetHits++;
+            }
+
+            evaluate(frame, image, bitsPerSide, report);
+        }
+        return report;
+    }
+
+    // greedy match of every marker to its closest unused quadrangle
+    // and check if its ID has been read correctly
+    private static void evaluate(SyntheticFrame frame, Container image, int bitsPerSide, Report report)
+    {
+        Collection<Quadrangle> quadrangles = image.getFilteredQuadrangles();
+        List<Quadrangle> unused = new ArrayList<Quadrangle>(quadrangles);
+        report.detections += quadrangles.size();
+
+        for (int m = 0; m < frame.getMarkersCount(); m++)
+        {
+            float[] truth = frame.getMarkerCorners().get(m);
+            report.markers++;
+            float tolerance = Math.max(DEFAULT_MIN_CORNER_TOLERANCE, DEFAULT_CORNER_TOLERANCE * side(truth));
+
+            Quadrangle best = null;
+            float bestError = Float.MAX_VALUE;
+            for (Quadrangle q : unused)
+            {
+                float error = cornerError(truth, q, true);
+                if (error < bestError)
+                {
+                    bestError = error;
+                    best = q;
+                }
+            }
+
+            if (best != null && bestError <= tolerance)
+            {
+                unused.remove(best);
+                report.found++;
+                report.cornerError += cornerError(truth, best, false);
+
+                if (isDecoded(image.getMarkers(), best, frame.getMarkerBits().get(m), bitsPerSide))
+                {
+                    report.decoded++;
+                }
+            }
+        }
+    }
+
+    // the quadrangle has been read as the marker with the smallest rotation of the bits
+    private static boolean isDecoded(List<Marker> markers, Quadrangle q, long bits, int bitsPerSide)
+    {
+        long id = bits;
+        for (int t = 1; t < 4; t++)
+        {
+            id = Math.min(id, MarkerDecoder.rotateBits(bits, bitsPerSide, t));
+        }
+
+        for (Marker marker : markers)
+        {
+            if (marker.getQuadrangle() == q)
+            {
+                return marker.getId() == id;
+            }
+        }
+        return false;
+    }
+
+    // mean side of the marker
+    private static float side(float[] c)
+    {
+        float sum = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            int j = (i + 1) % 4;
+            sum += (float) Math.hypot(c[2 * j] - c[2 * i], c[2 * j + 1] - c[2 * i + 1]);
+        }
+        return sum / 4;
+    }
+
+    // Largest (or mean) corner distance for the best corners correspondence.
+    // Detected corners can start from any corner, in any direction.
+    private static float cornerError(float[] truth, Quadrangle q, boolean largest)
+    {
+        Point[] points = new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() };
+        float best = Float.MAX_VALUE;
+        for (int shift = 0; shift < 4; shift++)
+        {
+            for (int dir = -1; dir <= 1; dir += 2)
+            {
+                float error = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    Point p = points[(shift + dir * i + 4) % 4];
+                    float distance = (float) Math.hypot(p.x - truth[2 * i], p.y - truth[2 * i + 1]);
+                    error = largest ? Math.max(error, distance) : error + distance / 4;
+                }
+                best = Math.min(best, error);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quality and speed of a harness run
+     */
+    public static class Report
+    {
+        private int frames;
+        private long nanos;
+        private long maxNanos;
+        private int budgetHits;
+        private int markers;
+        private int found;
+        private int detections;
+        private int decoded;
+        private double cornerError;
+
+        public int getFrames()
+        {
+            return frames;
+        }
+
+        /** @return part of the markers found, 0 to 1 */
+        public double getRecall()
+        {
+            return markers == 0 ? 1 : found / (double) markers;
+        }
+
+        /** @return mean corner distance of the found markers, in pixels */
+        public double getCornerError()
+        {
+            return found == 0 ? 0 : cornerError / found;
+        }
+
+        /** @return part of the markers found and read correctly, 0 to 1 */
+        public double getDecodeRate()
+        {
+            return markers == 0 ? 1 : decoded / (double) markers;
+        }
+
+        /** @return quadrangles, which do not match any marker */
+        public int getFalseDetections()
+        {
+            return detections - found;
+        }
+
+        public double getFramesPerSecond()
+        {
+            return nanos == 0 ? 0 : frames * 1e9 / nanos;
+        }
+
+        public double getMillisPerFrame()
+        {
+            return frames == 0 ? 0 : nanos / 1e6 / frames;
+        }
+
+        /** @return time of the slowest frame */
+        public double getMaxMillisPerFrame()
+        {
+            return maxNanos / 1e6;
+        }
+
+        /** @return frames processed with reduced work, as a budget of the session was hit */
+        public int getBudgetHits()
+        {
+            return budgetHits;
+        }
+
+        /**
+         * @param minRecall minimum recall
+         * @param maxCornerError maximum mean corner error in pixels
+         * @return true if the recall and the corner error are within the limits
+         */
+        public boolean passes(double minRecall, double maxCornerError)
+        {
+            return getRecall() >= minRecall && getCornerError() <= maxCornerError;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Frames       : ").append(frames).append("\n");
+            sb.append("Markers      : ").append(markers).append("\n");
+            sb.append("Recall       : ").append(String.format("%.3f", getRecall())).append("\n");
+            sb.append("Corner error : ").append(String.format("%.2f px", getCornerError())).append("\n");
+            sb.append("Decoded      : ").append(String.format("%.3f", getDecodeRate())).append("\n");
+            sb.append("False quads  : ").append(getFalseDetections()).append("\n");
+            sb.append("Frame time   : ").append(String.format("%.2f ms", getMillisPerFrame())).append("\n");
+            sb.append("Slowest frame: ").append(String.format("%.2f ms", getMaxMillisPerFrame())).append("\n");
+            sb.append("Budget hits  : ").append(budgetHits).append("\n");
+            sb.append("Frames/sec   : ").append(String.format("%.1f", getFramesPerSecond()));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Configurations of the session, which the harness gates. The video modes
+     * run sequences of a moving camera. The target of a mode is a share of
+     * the recall of the baseline pipeline on the same frames - every mode
+     * must find as many markers as the baseline, except the tracking, which
+     * finds the new markers only on the searches of the whole frame. The
+     * minimum is the target less {@link DetectionHarness#DEFAULT_RECALL_TOLERANCE}.
+     * The baselines are measured on the default frames, other frames and
+     * seeds are reported against the same minimums.
+     */
+    public enum Mode
+    {
+        /** Default session */
+        DEFAULT(false, 1),
+        /** Float directions instead of the quantized angles */
+        FLOAT_ANGLES(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setQuantizedAngles(false);
+            }
+        },
+        /** Scan lines over the whole image */
+        WHOLE_IMAGE(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setWholeImageScan(true);
+            }
+        },
+        /** Regions split by the edge density */
+        ADAPTIVE(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setAdaptiveRegions(true);
+            }
+        },
+        /** Default work budgets */
+        BUDGETS(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setBudgets(true);
+            }
+        },
+        /** Time budget of every frame, with the regions by their priority */
+        DEADLINE(false, DEFAULT_FRAME_BUDGET_NANOS, 1),
+        /** Line segments by the Hough transform */
+        HOUGH(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setSegmentFinder(new HoughSegmentFinder());
+            }
+        },
+        /** Line segments by chaining the edgels */
+        CHAINING(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setSegmentFinder(new ChainingSegmentFinder());
+            }
+        },
+        /** Threshold engine alone */
+        THRESHOLD(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setEngine(DetectionEngineEnum.THRESHOLD);
+            }
+        },
+        /** Threshold engine, the edgels pipeline for the frames without markers */
+        THRESHOLD_FIRST(false, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setEngine(DetectionEngineEnum.THRESHOLD_FIRST);
+            }
+        },
+        /** Interleaved scan lines of 2 phases */
+        INTERLEAVED(true, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setInterleavedScan(2);
+            }
+        },
+        /** Scan line distance planned for every region */
+        SCAN_LINE_DENSITY(true, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setScanLineDensity(true);
+            }
+        },
+        /**
+         * Regions around the tracked markers. A marker entering the frame is
+         * missed until the next search of the whole frame, the target is
+         * three quarters of the baseline.
+         */
+        TRACKING(true, 0.75)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setTracking(true);
+            }
+        },
+        /** Corners tracked between keyframes */
+        CORNER_TRACKING(true, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setCornerTracking(true);
+            }
+        },
+        /** Quality controller holding 30 frames per second */
+        QUALITY(true, 1)
+        {
+            @Override
+            void configure(DetectorSession session)
+            {
+                session.setQualityController(new QualityController(30));
+            }
+        };
+
+        private boolean video;
+        private long budgetNanos;
+        private double baselineShare;
+
+        private Mode(boolean videoArg, double baselineShareArg)
+        {
+            this(videoArg, 0, baselineShareArg);
+        }
+
+        private Mode(boolean videoArg, long budgetNanosArg, double baselineShareArg)
+        {
+            video = videoArg;
+            budgetNanos = budgetNanosArg;
+            baselineShare = baselineShareArg;
+        }
+
+        // set the mode on a new session
+        void configure(DetectorSession session)
+        {
+        }
+
+        /** @return true for sequences of a moving camera, false for single frames */
+        public boolean isVideo()
+        {
+            return video;
+        }
+
+        /** @return time for a frame, 0 for no budget */
+        public long getBudgetNanos()
+        {
+            return budgetNanos;
+        }
+
+        /** @return recall, under which the mode fails */
+        public double getMinRecall()
+        {
+            double baseline = video ? DEFAULT_BASELINE_VIDEO_RECALL : DEFAULT_BASELINE_RECALL;
+            return baselineShare * baseline - DEFAULT_RECALL_TOLERANCE;
+        }
+    }
+}
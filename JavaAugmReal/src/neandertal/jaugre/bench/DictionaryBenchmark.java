@@ -0,0 +1,99 @@
+package neandertal.jaugre.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import neandertal.jaugre.core.MarkerDictionary;
+
+
+/**
+ * Compares the multi-index lookup of the marker dictionary with a linear
+ * scan over all codes, and checks that both find equally close entries.
+ * <br/>
+ * Usage: DictionaryBenchmark [ids] [bitsPerSide] [maxDistance]
+ * @author neandertal
+ */
+public class DictionaryBenchmark
+{
+    private static final int QUERIES = 100000;
+
+    public static void main(String[] args) throws IOException
+    {
+        int ids = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int bitsPerSide = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int maxDistance = args.length > 2 ? Integer.parseInt(args[2]) : MarkerDictionary.DEFAULT_MAX_DISTANCE;
+
+        Random random = new Random(1);
+        int totalBits = bitsPerSide * bitsPerSide;
+        long mask = totalBits == 64 ? -1L : (1L << totalBits) - 1;
+        long[] codes = new long[ids];
+        for (int i = 0; i < ids; i++)
+        {
+            codes[i] = random.nextLong() & mask;
+        }
+
+        long start = System.nanoTime();
+        MarkerDictionary built = MarkerDictionary.build(codes, bitsPerSide, maxDistance);
+        System.out.println("Build        : " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        File file = File.createTempFile("markers", ".dict");
+        file.deleteOnExit();
+        built.save(file);
+        start = System.nanoTime();
+        MarkerDictionary mapped = MarkerDictionary.load(file);
+        System.out.println("Load         : " + (System.nanoTime() - start) / 1000 + " us");
+
+        // queries - dictionary codes in random rotation with flipped bits
+        long[] queries = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            int entry = random.nextInt(ids * 4);
+            long code = built.getCode(entry);
+            int flips = random.nextInt(maxDistance + 2);
+            for (int f = 0; f < flips; f++)
+            {
+                code ^= 1L << random.nextInt(totalBits);
+            }
+            queries[i] = code;
+        }
+
+        int mismatches = 0;
+        for (long q : queries)
+        {
+            int a = mapped.find(q);
+            int b = built.findLinear(q, maxDistance);
+            if ((a < 0) != (b < 0) || (a >= 0 && built.getDistance(q, a) != built.getDistance(q, b)))
+            {
+                mismatches++;
+            }
+        }
+
+        for (int round = 0; round < 3; round++)
+        {
+            long indexed = time(built, queries, false);
+            long mappedTime = time(mapped, queries, false);
+            long linear = time(built, queries, true);
+            System.out.println("Lookup       : indexed " + indexed / QUERIES + " ns, mapped " + mappedTime / QUERIES
+                    + " ns, linear " + linear / QUERIES + " ns");
+        }
+        System.out.println("Mismatches   : " + mismatches);
+    }
+
+    private static long time(MarkerDictionary dictionary, long[] queries, boolean linear)
+    {
+        int found = 0;
+        long start = System.nanoTime();
+        for (long q : queries)
+        {
+            int entry = linear ? dictionary.findLinear(q, dictionary.getMaxDistance()) : dictionary.find(q);
+            found += entry >= 0 ? 1 : 0;
+        }
+        long nanos = System.nanoTime() - start;
+        if (found < 0)
+        {
+            System.out.println(found);
+        }
+        return nanos;
+    }
+}
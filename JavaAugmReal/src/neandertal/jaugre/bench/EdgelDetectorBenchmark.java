@@ -0,0 +1,120 @@
+package neandertal.jaugre.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import neandertal.jaugre.core.EdgelDetector;
+import neandertal.jaugre.core.RegionSplitter;
+import neandertal.jaugre.core.data.Container;
+
+
+/**
+ * Measures the time and the allocated bytes per frame of the edgel
+ * detection - the scan of every region and the scan of the whole image into
+ * the reused scanner buffers alone, the whole stage with a reused scanner as
+ * the session runs it, which also creates the edgel objects for the next
+ * steps, and the static method, which creates a new scanner as well.
+ * <br/>
+ * Usage: EdgelDetectorBenchmark [width] [height] [frames]
+ * @author neandertal
+ */
+public class EdgelDetectorBenchmark
+{
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args)
+    {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : DetectionHarness.DEFAULT_WIDTH;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : DetectionHarness.DEFAULT_HEIGHT;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        List<SyntheticFrame> dataset = DetectionHarness.generateDataset(new SyntheticMarkerGenerator(1), width,
+                height, frames);
+        Container[] images = new Container[frames];
+        for (int i = 0; i < frames; i++)
+        {
+            images[i] = new Container(dataset.get(i).getImage());
+            RegionSplitter.splitToRegions(images[i]);
+        }
+
+        EdgelDetector.Scanner scanner = new EdgelDetector.Scanner();
+        for (int round = 0; round < 3; round++)
+        {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            int edgels = 0;
+            for (int r = 0; r < ROUNDS; r++)
+            {
+                for (Container image : images)
+                {
+                    scanner.scan(image, EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_SCANLINE_DISTANCE,
+                            EdgelDetector.DEFAULT_SCANLINE_DISTANCE);
+                    edgels += scanner.getEdgels().size();
+                }
+            }
+            long scanNanos = System.nanoTime() - start;
+            long scanBytes = allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            int wholeEdgels = 0;
+            for (int r = 0; r < ROUNDS; r++)
+            {
+                for (Container image : images)
+                {
+                    scanner.scanImage(image, EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_SCANLINE_DISTANCE,
+                            EdgelDetector.DEFAULT_SCANLINE_DISTANCE);
+                    wholeEdgels += scanner.getEdgels().size();
+                }
+            }
+            long wholeNanos = System.nanoTime() - start;
+            long wholeBytes = allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++)
+            {
+                for (Container image : images)
+                {
+                    EdgelDetector.detectEdgels(image, scanner, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_SCANLINE_DISTANCE, EdgelDetector.DEFAULT_SCANLINE_DISTANCE);
+                }
+            }
+            long stageNanos = System.nanoTime() - start;
+            long stageBytes = allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++)
+            {
+                for (Container image : images)
+                {
+                    EdgelDetector.detectEdgels(image);
+                }
+            }
+            long staticNanos = System.nanoTime() - start;
+            long staticBytes = allocatedBytes() - bytes;
+
+            int count = ROUNDS * frames;
+            System.out.println("Edgels/frame : " + edgels / count + ", whole image " + wholeEdgels / count);
+            System.out.println("Scan         : " + scanNanos / count / 1000 + " us/frame, " + scanBytes / count
+                    + " bytes/frame");
+            System.out.println("Whole image  : " + wholeNanos / count / 1000 + " us/frame, " + wholeBytes / count
+                    + " bytes/frame");
+            System.out.println("Stage        : " + stageNanos / count / 1000 + " us/frame, " + stageBytes / count
+                    + " bytes/frame, " + stageBytes / Math.max(1, edgels) + " bytes/edgel");
+            System.out.println("Static       : " + staticNanos / count / 1000 + " us/frame, " + staticBytes / count
+                    + " bytes/frame");
+        }
+    }
+
+    // bytes allocated by the current thread so far
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
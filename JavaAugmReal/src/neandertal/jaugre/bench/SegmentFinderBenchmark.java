@@ -0,0 +1,86 @@
+package neandertal.jaugre.bench;
+
+import java.util.List;
+
+import neandertal.jaugre.core.ChainingSegmentFinder;
+import neandertal.jaugre.core.DetectorSession;
+import neandertal.jaugre.core.EdgelDetector;
+import neandertal.jaugre.core.HoughSegmentFinder;
+import neandertal.jaugre.core.RansacSegmentFinder;
+import neandertal.jaugre.core.RegionSplitter;
+import neandertal.jaugre.core.SegmentFinderStrategy;
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.LineSegment;
+
+
+/**
+ * Compares the segment finder strategies - the time per frame and the
+ * segments of the segment step alone on the same edgels, and the recall and
+ * the frame time of the whole pipeline with each strategy.
+ * <br/>
+ * Usage: SegmentFinderBenchmark [width] [height] [frames]
+ * @author neandertal
+ */
+public class SegmentFinderBenchmark
+{
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args)
+    {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : DetectionHarness.DEFAULT_WIDTH;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : DetectionHarness.DEFAULT_HEIGHT;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : DetectionHarness.DEFAULT_FRAMES;
+
+        SyntheticMarkerGenerator generator = new SyntheticMarkerGenerator(1);
+        List<SyntheticFrame> dataset = DetectionHarness.generateDataset(generator, width, height, frames);
+        List<SyntheticFrame> warmup = DetectionHarness.generateDataset(generator, width, height,
+                DetectionHarness.DEFAULT_WARMUP_FRAMES);
+        Container[] images = new Container[frames];
+        for (int i = 0; i < frames; i++)
+        {
+            images[i] = new Container(dataset.get(i).getImage());
+            RegionSplitter.splitToRegions(images[i]);
+            EdgelDetector.detectEdgels(images[i]);
+        }
+
+        String[] names = new String[] { "RANSAC", "Hough", "Chaining" };
+        SegmentFinderStrategy[] strategies = new SegmentFinderStrategy[] { new RansacSegmentFinder(),
+                new HoughSegmentFinder(), new ChainingSegmentFinder() };
+        for (int round = 0; round < 2; round++)
+        {
+            for (int s = 0; s < strategies.length; s++)
+            {
+                long start = System.nanoTime();
+                int segments = 0;
+                for (int r = 0; r < ROUNDS; r++)
+                {
+                    for (Container image : images)
+                    {
+                        for (List<LineSegment> inRegion : strategies[s].detectSegments(image).values())
+                        {
+                            segments += inRegion.size();
+                        }
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+
+                DetectorSession session = new DetectorSession();
+                session.setBitsPerSide(generator.getBitsPerSide());
+                session.setSegmentFinder(strategies[s]);
+                DetectionHarness.run(warmup, session, generator.getBitsPerSide());
+                DetectionHarness.Report report = DetectionHarness.run(dataset, session, generator.getBitsPerSide());
+
+                // the first round is the warmup
+                if (round == 0)
+                {
+                    continue;
+                }
+                int count = ROUNDS * frames;
+                System.out.println(names[s]);
+                System.out.println("Segment step : " + nanos / count / 1000 + " us/frame, " + segments / count
+                        + " segments/frame");
+                System.out.println(report.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package neandertal.jaugre.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Generated frame together with its ground truth - the exact outer corners
+ * of every rendered marker and the bits of its interior.
+ * @author neandertal
+ */
+public class SyntheticFrame
+{
+    private BufferedImage image;
+    private List<float[]> markerCorners;
+    private List<Long> markerBits;
+
+    public SyntheticFrame(BufferedImage image)
+    {
+        this.image = image;
+        markerCorners = new ArrayList<float[]>();
+        markerBits = new ArrayList<Long>();
+    }
+
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    /**
+     * Corners of the black marker squares, each as {x1, y1, x2, y2, x3, y3, x4, y4}
+     * in clock-wise order, starting from the marker's top-left corner.
+     * @return list of corners per marker
+     */
+    public List<float[]> getMarkerCorners()
+    {
+        return markerCorners;
+    }
+
+    /**
+     * Interior bits of each marker, row by row starting from the top-left
+     * cell, the most significant bit first. Bit 1 means a white cell.
+     * @return list of bits per marker
+     */
+    public List<Long> getMarkerBits()
+    {
+        return markerBits;
+    }
+
+    void setImage(BufferedImage image)
+    {
+        this.image = image;
+    }
+
+    public int getMarkersCount()
+    {
+        return markerCorners.size();
+    }
+
+    public void addMarker(float[] corners, long bits)
+    {
+        markerCorners.add(corners);
+        markerBits.add(bits);
+    }
+}
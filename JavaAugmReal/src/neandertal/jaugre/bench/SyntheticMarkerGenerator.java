@@ -0,0 +1,515 @@
+package neandertal.jaugre.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import neandertal.jaugre.core.Homography;
+
+
+/**
+ * Renders black on white markers onto synthetic backgrounds, under random
+ * perspective, scale, rotation, blur, noise and lighting. The exact outer
+ * corners of every marker are kept as ground truth, so the detection can be
+ * checked for both speed and quality.
+ * <br/>
+ * A marker is a square of (N + 2) x (N + 2) cells - a black border, one cell
+ * thick, around N x N interior bit cells (white cell is bit 1). The marker is
+ * printed on a white card with a quiet zone one cell wide.
+ * <br/>
+ * Sequences render the same scene under a camera, which pans and rolls
+ * steadily from frame to frame, with new noise in every frame - a simple
+ * video stream for the steps which use the previous frames.
+ * @author neandertal
+ */
+public class SyntheticMarkerGenerator
+{
+    /** Interior bit cells per marker side */
+    public static final int DEFAULT_BITS_PER_SIDE = 4;
+    /** Minimum and maximum markers rendered in a frame */
+    public static final int DEFAULT_MIN_MARKERS = 1;
+    public static final int DEFAULT_MAX_MARKERS = 4;
+    /** Marker card side limits, as part of the smaller image dimension */
+    public static final float DEFAULT_MIN_SCALE = 0.15f;
+    public static final float DEFAULT_MAX_SCALE = 0.4f;
+    /** Maximum shift of a card corner as part of the card side - the perspective strength */
+    public static final float DEFAULT_PERSPECTIVE = 0.12f;
+    /** Maximum sigma of the Gauss blur, in pixels */
+    public static final float DEFAULT_MAX_BLUR = 1.2f;
+    /** Sigma of the additive Gauss noise, in intensity levels */
+    public static final float DEFAULT_NOISE = 6f;
+    /** Lowest multiplier of the lighting gradient */
+    public static final float DEFAULT_MIN_LIGHT = 0.6f;
+    /** Clutter shapes drawn on the background */
+    public static final int DEFAULT_CLUTTER = 25;
+    /** Maximum camera pan between two frames of a sequence, in pixels */
+    public static final float DEFAULT_MAX_PAN = 3f;
+    /** Maximum camera roll between two frames of a sequence, in radians */
+    public static final float DEFAULT_MAX_ROLL = 0.01f;
+
+    private Random random;
+    private int bitsPerSide = DEFAULT_BITS_PER_SIDE;
+    private int minMarkers = DEFAULT_MIN_MARKERS;
+    private int maxMarkers = DEFAULT_MAX_MARKERS;
+    private float minScale = DEFAULT_MIN_SCALE;
+    private float maxScale = DEFAULT_MAX_SCALE;
+    private float perspective = DEFAULT_PERSPECTIVE;
+    private float maxBlur = DEFAULT_MAX_BLUR;
+    private float noise = DEFAULT_NOISE;
+    private float minLight = DEFAULT_MIN_LIGHT;
+    private int clutter = DEFAULT_CLUTTER;
+    private float maxPan = DEFAULT_MAX_PAN;
+    private float maxRoll = DEFAULT_MAX_ROLL;
+    // camera of the rendered frame of a sequence, NULL for single frames
+    private AffineTransform camera;
+
+    /**
+     * Creates generator, which produces the same frames for the same seed
+     * @param seed random seed
+     */
+    public SyntheticMarkerGenerator(long seed)
+    {
+        random = new Random(seed);
+    }
+
+    public void setBitsPerSide(int bitsPerSide)
+    {
+        if (bitsPerSide < 1 || bitsPerSide > 8)
+        {
+            throw new IllegalArgumentException("Bits per side must be between 1 and 8!");
+        }
+        this.bitsPerSide = bitsPerSide;
+    }
+
+    public int getBitsPerSide()
+    {
+        return bitsPerSide;
+    }
+
+    public void setMarkersCount(int min, int max)
+    {
+        if (min < 0 || max < min)
+        {
+            throw new IllegalArgumentException("Invalid markers count range!");
+        }
+        minMarkers = min;
+        maxMarkers = max;
+    }
+
+    public void setScale(float min, float max)
+    {
+        if (min <= 0 || max < min || max > 1)
+        {
+            throw new IllegalArgumentException("Invalid scale range!");
+        }
+        minScale = min;
+        maxScale = max;
+    }
+
+    public void setPerspective(float perspective)
+    {
+        this.perspective = perspective;
+    }
+
+    public void setMaxBlur(float maxBlur)
+    {
+        this.maxBlur = maxBlur;
+    }
+
+    public void setNoise(float noise)
+    {
+        this.noise = noise;
+    }
+
+    public void setMinLight(float minLight)
+    {
+        this.minLight = minLight;
+    }
+
+    public void setClutter(int clutter)
+    {
+        this.clutter = clutter;
+    }
+
+    public void setMotion(float maxPan, float maxRoll)
+    {
+        this.maxPan = maxPan;
+        this.maxRoll = maxRoll;
+    }
+
+    /**
+     * Renders a new frame
+     * @param width frame width
+     * @param height frame height
+     * @return frame with the ground truth
+     */
+    public SyntheticFrame generate(int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Frame size must be positive!");
+        }
+
+        return render(width, height, random);
+    }
+
+    /**
+     * Renders a sequence of frames of one scene, with steady camera motion.
+     * Only the markers fully inside a frame are in its ground truth.
+     * @param width frame width
+     * @param height frame height
+     * @param frames count of frames
+     * @return frames with the ground truth, in order
+     */
+    public List<SyntheticFrame> generateSequence(int width, int height, int frames)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Frame size must be positive!");
+        }
+
+        long sceneSeed = random.nextLong();
+        double panX = (random.nextDouble() * 2 - 1) * maxPan;
+        double panY = (random.nextDouble() * 2 - 1) * maxPan;
+        double roll = (random.nextDouble() * 2 - 1) * maxRoll;
+
+        List<SyntheticFrame> sequence = new ArrayList<SyntheticFrame>(frames);
+        Random sequenceRandom = random;
+        try
+        {
+            for (int i = 0; i < frames; i++)
+            {
+                // the same scene in every frame, the noise is new
+                random = new Random(sceneSeed);
+                camera = AffineTransform.getTranslateInstance(panX * i, panY * i);
+                camera.rotate(roll * i, width / 2.0, height / 2.0);
+                sequence.add(render(width, height, new Random(sceneSeed + i + 1)));
+            }
+        }
+        finally
+        {
+            random = sequenceRandom;
+            camera = null;
+        }
+        return sequence;
+    }
+
+    private SyntheticFrame render(int width, int height, Random noiseRandom)
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        SyntheticFrame frame = new SyntheticFrame(img);
+
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (camera != null)
+        {
+            g.transform(camera);
+        }
+        drawBackground(g, width, height);
+        drawMarkers(g, frame, width, height);
+        g.dispose();
+
+        applyLighting(img);
+        BufferedImage blurred = applyBlur(img, maxBlur * random.nextFloat());
+        applyNoise(blurred, noiseRandom);
+        frame.setImage(blurred);
+
+        return frame;
+    }
+
+    // gray base with some low contrast clutter and a few strong lines
+    private void drawBackground(Graphics2D g, int width, int height)
+    {
+        int base = 60 + random.nextInt(120);
+        g.setColor(new Color(base, base, base));
+        // larger than the frame, the camera may move it
+        g.fillRect(-width, -height, 3 * width, 3 * height);
+
+        for (int i = 0; i < clutter; i++)
+        {
+            int level = clamp(base + random.nextInt(81) - 40);
+            g.setColor(new Color(level, level, level));
+            int w = 5 + random.nextInt(Math.max(1, width / 4));
+            int h = 5 + random.nextInt(Math.max(1, height / 4));
+            int x = random.nextInt(width) - w / 2;
+            int y = random.nextInt(height) - h / 2;
+            switch (random.nextInt(3))
+            {
+            case 0:
+                g.fillOval(x, y, w, h);
+                break;
+            case 1:
+                g.fillRect(x, y, w, h);
+                break;
+            default:
+                int dark = random.nextBoolean() ? 20 : 230;
+                g.setColor(new Color(dark, dark, dark));
+                g.drawLine(x, y, x + w, y + h);
+                break;
+            }
+        }
+    }
+
+    // Markers are spread in a grid of slots, so they never overlap
+    private void drawMarkers(Graphics2D g, SyntheticFrame frame, int width, int height)
+    {
+        int count = minMarkers + random.nextInt(maxMarkers - minMarkers + 1);
+        if (count == 0)
+        {
+            return;
+        }
+
+        int cols = (int) Math.ceil(Math.sqrt(count));
+        int rows = (int) Math.ceil(count / (float) cols);
+        int slotW = width / cols;
+        int slotH = height / rows;
+        int minDim = Math.min(width, height);
+
+        int[] slots = new int[cols * rows];
+        for (int i = 0; i < slots.length; i++)
+        {
+            slots[i] = i;
+        }
+        // shuffle slots
+        for (int i = slots.length - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int tmp = slots[i];
+            slots[i] = slots[j];
+            slots[j] = tmp;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            int slotX = (slots[i] % cols) * slotW;
+            int slotY = (slots[i] / cols) * slotH;
+
+            // the rotated and distorted card must stay inside its slot
+            float maxSide = Math.min(slotW, slotH) / (float) (Math.sqrt(2) * (1 + 2 * perspective));
+            float side = minDim * (minScale + (maxScale - minScale) * random.nextFloat());
+            side = Math.min(side, maxSide);
+            if (side < 4 * (bitsPerSide + 4))
+            {
+                // not enough space for a readable marker
+                continue;
+            }
+
+            float half = side * (float) (Math.sqrt(2) / 2) * (1 + 2 * perspective);
+            float cx = slotX + half + random.nextFloat() * Math.max(0, slotW - 2 * half);
+            float cy = slotY + half + random.nextFloat() * Math.max(0, slotH - 2 * half);
+            drawMarker(g, frame, cx, cy, side);
+        }
+    }
+
+    private void drawMarker(Graphics2D g, SyntheticFrame frame, float cx, float cy, float side)
+    {
+        double angle = random.nextDouble() * 2 * Math.PI;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        // card corners, clock-wise, with perspective distortion
+        double[] card = new double[8];
+        double[][] unit = new double[][] { { -0.5, -0.5 }, { 0.5, -0.5 }, { 0.5, 0.5 }, { -0.5, 0.5 } };
+        for (int i = 0; i < 4; i++)
+        {
+            double u = unit[i][0] * side + (random.nextDouble() * 2 - 1) * perspective * side;
+            double v = unit[i][1] * side + (random.nextDouble() * 2 - 1) * perspective * side;
+            card[2 * i] = cx + u * cos - v * sin;
+            card[2 * i + 1] = cy + u * sin + v * cos;
+        }
+
+        double[] h = new double[9];
+        Homography.squareToQuad(card, h);
+
+        int cells = bitsPerSide + 4;
+        int white = 200 + random.nextInt(56);
+        int black = random.nextInt(50);
+
+        g.setColor(new Color(white, white, white));
+        fillCell(g, h, 0, 0, cells, cells, cells);
+
+        g.setColor(new Color(black, black, black));
+        fillCell(g, h, 1, 1, cells - 1, cells - 1, cells);
+
+        // white cells are joined first, so neighbours do not leave anti-aliased seams
+        long bits = 0;
+        Area whiteCells = new Area();
+        for (int row = 0; row < bitsPerSide; row++)
+        {
+            for (int col = 0; col < bitsPerSide; col++)
+            {
+                bits <<= 1;
+                if (random.nextBoolean())
+                {
+                    bits |= 1;
+                    whiteCells.add(new Area(new Rectangle2D.Double(col + 2, row + 2, 1, 1)));
+                }
+            }
+        }
+        g.setColor(new Color(white, white, white));
+        g.fill(projectCells(h, whiteCells, cells));
+
+        float[] corners = new float[8];
+        double[] p = new double[2];
+        double[][] markerCorners = new double[][] { { 1, 1 }, { cells - 1, 1 }, { cells - 1, cells - 1 }, { 1, cells - 1 } };
+        for (int i = 0; i < 4; i++)
+        {
+            Homography.project(h, markerCorners[i][0] / cells, markerCorners[i][1] / cells, p);
+            corners[2 * i] = (float) p[0];
+            corners[2 * i + 1] = (float) p[1];
+        }
+
+        if (camera != null)
+        {
+            camera.transform(corners, 0, corners, 0, 4);
+            int width = frame.getImage().getWidth();
+            int height = frame.getImage().getHeight();
+            for (int i = 0; i < 4; i++)
+            {
+                if (corners[2 * i] < 0 || corners[2 * i] >= width || corners[2 * i + 1] < 0
+                        || corners[2 * i + 1] >= height)
+                {
+                    // left the frame
+                    return;
+                }
+            }
+        }
+
+        frame.addMarker(corners, bits);
+    }
+
+    // fill the card area between the given cell coordinates
+    private static void fillCell(Graphics2D g, double[] h, int u1, int v1, int u2, int v2, int cells)
+    {
+        g.fill(projectCells(h, new Area(new Rectangle2D.Double(u1, v1, u2 - u1, v2 - v1)), cells));
+    }
+
+    // Map an area, given in cell coordinates, to the image. The outline
+    // consists of straight lines only, and these stay straight under the
+    // projective mapping, so it is enough to map the vertices.
+    private static Path2D projectCells(double[] h, Area area, int cells)
+    {
+        double[] coords = new double[6];
+        double[] p = new double[2];
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO);
+        for (PathIterator iter = area.getPathIterator(null); !iter.isDone(); iter.next())
+        {
+            int type = iter.currentSegment(coords);
+            if (type == PathIterator.SEG_CLOSE)
+            {
+                path.closePath();
+                continue;
+            }
+
+            Homography.project(h, coords[0] / cells, coords[1] / cells, p);
+            if (type == PathIterator.SEG_MOVETO)
+            {
+                path.moveTo(p[0], p[1]);
+            }
+            else
+            {
+                path.lineTo(p[0], p[1]);
+            }
+        }
+        return path;
+    }
+
+    // multiply pixels with a random linear lighting gradient
+    private void applyLighting(BufferedImage img)
+    {
+        float top = minLight + (1.2f - minLight) * random.nextFloat();
+        float bottom = minLight + (1.2f - minLight) * random.nextFloat();
+        float slopeX = (random.nextFloat() - 0.5f) * 0.4f;
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            float rowLight = top + (bottom - top) * y / height;
+            for (int x = 0; x < width; x++)
+            {
+                float light = rowLight + slopeX * (x / (float) width - 0.5f);
+                row[x] = scale(row[x], light);
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    private void applyNoise(BufferedImage img, Random noiseRandom)
+    {
+        if (noise <= 0)
+        {
+            return;
+        }
+
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++)
+            {
+                // same noise to all channels - sensor luma noise
+                int n = (int) (noiseRandom.nextGaussian() * noise);
+                int r = clamp(((row[x] >> 16) & 0xFF) + n);
+                int gr = clamp(((row[x] >> 8) & 0xFF) + n);
+                int b = clamp((row[x] & 0xFF) + n);
+                row[x] = (r << 16) | (gr << 8) | b;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    // separable Gauss blur
+    private static BufferedImage applyBlur(BufferedImage img, float sigma)
+    {
+        if (sigma < 0.3f)
+        {
+            return img;
+        }
+
+        int radius = (int) Math.ceil(sigma * 3);
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++)
+        {
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++)
+        {
+            kernel[i] /= sum;
+        }
+
+        ConvolveOp horizontal = new ConvolveOp(new Kernel(kernel.length, 1, kernel), ConvolveOp.EDGE_NO_OP, null);
+        ConvolveOp vertical = new ConvolveOp(new Kernel(1, kernel.length, kernel), ConvolveOp.EDGE_NO_OP, null);
+        BufferedImage tmp = horizontal.filter(img, null);
+        return vertical.filter(tmp, null);
+    }
+
+    private static int scale(int pixel, float factor)
+    {
+        int r = clamp((int) (((pixel >> 16) & 0xFF) * factor));
+        int g = clamp((int) (((pixel >> 8) & 0xFF) * factor));
+        int b = clamp((int) ((pixel & 0xFF) * factor));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value)
+    {
+        return Math.max(0, Math.min(255, value));
+    }
+}
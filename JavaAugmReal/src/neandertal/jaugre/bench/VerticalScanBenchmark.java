@@ -0,0 +1,96 @@
+package neandertal.jaugre.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import neandertal.jaugre.core.EdgelDetector;
+import neandertal.jaugre.core.RegionSplitter;
+import neandertal.jaugre.core.data.Container;
+
+
+/**
+ * Compares the vertical scan lines read one by one, walking the image with
+ * a stride of a whole row, with the scan lines read in blocks, row by row.
+ * Runs at 1080p and 4K, both for the scan of every region and the scan of
+ * the whole image, on an INT_RGB frame with its pixels array and on a
+ * 3BYTE_BGR frame, as loaded by ImageIO, read with getRGB.
+ * <br/>
+ * Usage: VerticalScanBenchmark [frames]
+ * @author neandertal
+ */
+public class VerticalScanBenchmark
+{
+    private static final int[][] RESOLUTIONS = new int[][] { { 1920, 1080 }, { 3840, 2160 } };
+    private static final int[] TYPES = new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR };
+    private static final String[] TYPE_NAMES = new String[] { "INT_RGB", "3BYTE_BGR" };
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args)
+    {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+        for (int[] resolution : RESOLUTIONS)
+        {
+            List<SyntheticFrame> dataset = DetectionHarness.generateDataset(new SyntheticMarkerGenerator(1),
+                    resolution[0], resolution[1], frames);
+            for (int t = 0; t < TYPES.length; t++)
+            {
+                Container[] images = new Container[frames];
+                for (int i = 0; i < frames; i++)
+                {
+                    images[i] = new Container(convert(dataset.get(i).getImage(), TYPES[t]));
+                    RegionSplitter.splitToRegions(images[i]);
+                }
+
+                String name = resolution[0] + "x" + resolution[1] + " " + TYPE_NAMES[t];
+                EdgelDetector.Scanner single = new EdgelDetector.Scanner(1);
+                EdgelDetector.Scanner blocked = new EdgelDetector.Scanner();
+                for (int round = 0; round < 3; round++)
+                {
+                    System.out.println(name + " regions     : single " + time(single, images, false)
+                            + " us, blocked " + time(blocked, images, false) + " us");
+                    System.out.println(name + " whole image : single " + time(single, images, true)
+                            + " us, blocked " + time(blocked, images, true) + " us");
+                }
+            }
+        }
+    }
+
+    // copy of the frame with the given type
+    private static BufferedImage convert(BufferedImage img, int type)
+    {
+        if (img.getType() == type)
+        {
+            return img;
+        }
+
+        BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        converted.getGraphics().drawImage(img, 0, 0, null);
+        return converted;
+    }
+
+    // microseconds per frame
+    private static long time(EdgelDetector.Scanner scanner, Container[] images, boolean wholeImage)
+    {
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++)
+        {
+            for (Container image : images)
+            {
+                if (wholeImage)
+                {
+                    scanner.scanImage(image, EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_SCANLINE_DISTANCE,
+                            EdgelDetector.DEFAULT_SCANLINE_DISTANCE);
+                }
+                else
+                {
+                    scanner.scan(image, EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_THRESHOLD,
+                            EdgelDetector.DEFAULT_THRESHOLD, EdgelDetector.DEFAULT_SCANLINE_DISTANCE,
+                            EdgelDetector.DEFAULT_SCANLINE_DISTANCE);
+                }
+            }
+        }
+        return (System.nanoTime() - start) / 1000 / (ROUNDS * images.length);
+    }
+}
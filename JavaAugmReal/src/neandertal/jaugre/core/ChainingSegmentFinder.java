@@ -0,0 +1,355 @@
+package neandertal.jaugre.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.QuantizedAngle;
+
+
+/**
+ * STEP 3, by linking.
+ * Finds the line segments of every region by following the edges instead
+ * of sampling them. From every edgel not yet in a chain, the strongest
+ * first - by the response of the edge filter - the chain grows in
+ * both directions along the edge - perpendicular to the Sobel gradient - to
+ * the nearest edgel ahead at the next scan line crossing, which lies close
+ * to the edge and has a compatible direction. The edgels are kept in a grid
+ * of cells, so a step looks at the nearby edgels only and the linking takes
+ * linear time.
+ * <br/>
+ * A chain follows the corners of a marker only if they are round, so every
+ * chain is split where it bends - recursively at the edgel furthest from the
+ * line between its ends. The straight parts with enough edgels are the
+ * segments.
+ * <br/>
+ * Uses:<br/>
+ * <a href="http://en.wikipedia.org/wiki/Ramer%E2%80%93Douglas%E2%80%93Peucker_algorithm">Ramer-Douglas-Peucker algorithm</a>
+ *
+ * @author neandertal
+ */
+public class ChainingSegmentFinder implements SegmentFinderStrategy
+{
+    /** Maximum distance of the next edgel of a chain, two scan lines apart */
+    public static final float DEFAULT_LINK_DISTANCE = 2 * EdgelDetector.DEFAULT_SCANLINE_DISTANCE;
+    /** Maximum distance of the next edgel of a chain from the edge of the last one */
+    public static final float DEFAULT_LINK_OFFSET = 1.5f;
+    /** A chain is split where an edgel is further from the line between its ends */
+    public static final float DEFAULT_SPLIT_DISTANCE = 1.5f;
+
+    private int minEdgelsCount;
+    private float compValue;
+    private float linkDistance;
+    private float linkOffset;
+    private float splitDistance;
+
+    // scratch, grows with the regions
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private int[] angles = new int[0];
+    private boolean[] used = new boolean[0];
+    // sorted seeds, the strength in the upper bits and the reversed index of the edgel in the lower
+    private long[] seeds = new long[0];
+    // grid of the edgels, the first edgel of every cell and the next edgel in the same cell
+    private int[] cellHeads = new int[0];
+    private int[] cellNext = new int[0];
+    private int columns;
+    private int rows;
+    private float left;
+    private float top;
+    // chain of the current seed, grows to both sides from the middle
+    private int[] chain = new int[0];
+    private int chainStart;
+    private int chainEnd;
+    // direction of the growth of the chain
+    private float[] tangent = new float[2];
+
+    /**
+     * Chaining with default values
+     */
+    public ChainingSegmentFinder()
+    {
+        this(SegmentsFinder.DEFAULT_MIN_SUPPORT_EDGELS_COUNT, SegmentsFinder.DEFAULT_COMPATIBILITY_VALUE,
+                DEFAULT_LINK_DISTANCE, DEFAULT_LINK_OFFSET, DEFAULT_SPLIT_DISTANCE);
+    }
+
+    /**
+     * Chaining with custom values
+     * @param minEdgelsCountArg custom minimum edgels for an accepted line segment
+     * @param compValueArg custom threshold for 2 edgels directions to be linked
+     * @param linkDistanceArg custom maximum distance of the next edgel of a chain
+     * @param linkOffsetArg custom maximum distance of the next edgel from the edge of the last one
+     * @param splitDistanceArg custom distance from the line between the ends, from which a chain is split
+     */
+    public ChainingSegmentFinder(int minEdgelsCountArg, float compValueArg, float linkDistanceArg,
+            float linkOffsetArg, float splitDistanceArg)
+    {
+        if (linkDistanceArg <= 0 || linkOffsetArg <= 0 || splitDistanceArg <= 0)
+        {
+            throw new IllegalArgumentException("Distances must be positive!");
+        }
+
+        minEdgelsCount = Math.max(2, minEdgelsCountArg);
+        compValue = compValueArg;
+        linkDistance = linkDistanceArg;
+        linkOffset = linkOffsetArg;
+        splitDistance = splitDistanceArg;
+    }
+
+    @Override
+    public Map<String, List<LineSegment>> detectSegments(Container image)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getEdgelsMap() == null)
+        {
+            throw new IllegalArgumentException("Edgels map can't be NULL!");
+        }
+
+        Map<String, List<LineSegment>> segmentsMap = new HashMap<String, List<LineSegment>>();
+        for (Map.Entry<String, List<Edgel>> entry : image.getEdgelsMap().entrySet())
+        {
+            List<LineSegment> segments = new LinkedList<LineSegment>();
+            detectSegmentsInRegion(entry.getValue(), segments);
+            segmentsMap.put(entry.getKey(), segments);
+        }
+
+        image.setSegmentsMap(segmentsMap);
+        image.setCutRegionsCount(0);
+        return segmentsMap;
+    }
+
+    private void detectSegmentsInRegion(List<Edgel> edgelsList, List<LineSegment> segments)
+    {
+        int n = edgelsList.size();
+        if (n < minEdgelsCount)
+        {
+            return;
+        }
+
+        Edgel[] edgels = edgelsList.toArray(new Edgel[n]);
+        prepare(edgels);
+        // a chain from a strong edgel follows the edge, not the noise next to it
+        for (int k = n - 1; k >= 0; k--)
+        {
+            int seed = n - 1 - (int) seeds[k];
+            if (used[seed])
+            {
+                continue;
+            }
+
+            used[seed] = true;
+            chainStart = n;
+            chainEnd = n + 1;
+            chain[n] = seed;
+            follow(seed, true);
+            follow(seed, false);
+            if (chainEnd - chainStart >= minEdgelsCount)
+            {
+                split(edgels, chainStart, chainEnd - 1, segments);
+            }
+        }
+    }
+
+    // positions, angles and the grid of the edgels
+    private void prepare(Edgel[] edgels)
+    {
+        int n = edgels.length;
+        if (xs.length < n)
+        {
+            xs = new float[n];
+            ys = new float[n];
+            angles = new int[n];
+            used = new boolean[n];
+            seeds = new long[n];
+            cellNext = new int[n];
+            chain = new int[2 * n + 1];
+        }
+
+        left = Float.MAX_VALUE;
+        top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < n; i++)
+        {
+            xs[i] = edgels[i].getUndistortedX();
+            ys[i] = edgels[i].getUndistortedY();
+            angles[i] = edgels[i].getAngle();
+            used[i] = false;
+            // a stable order of the equal strengths, by the scan
+            seeds[i] = ((long) edgels[i].getStrength() << 32) | (n - 1 - i);
+            left = Math.min(left, xs[i]);
+            top = Math.min(top, ys[i]);
+            right = Math.max(right, xs[i]);
+            bottom = Math.max(bottom, ys[i]);
+        }
+        Arrays.sort(seeds, 0, n);
+
+        columns = (int) ((right - left) / linkDistance) + 1;
+        rows = (int) ((bottom - top) / linkDistance) + 1;
+        if (cellHeads.length < columns * rows)
+        {
+            cellHeads = new int[columns * rows];
+        }
+        Arrays.fill(cellHeads, 0, columns * rows, -1);
+        for (int i = n - 1; i >= 0; i--)
+        {
+            int cell = cellOf(xs[i], ys[i]);
+            cellNext[i] = cellHeads[cell];
+            cellHeads[cell] = i;
+        }
+    }
+
+    private int cellOf(float x, float y)
+    {
+        int column = (int) ((x - left) / linkDistance);
+        int row = (int) ((y - top) / linkDistance);
+        return row * columns + column;
+    }
+
+    // grow the chain from the seed, forward along the edge to its end, or
+    // backward to its start
+    private void follow(int seed, boolean forward)
+    {
+        int last = seed;
+        tangentOf(seed, forward, tangent);
+        while (true)
+        {
+            int next = findNext(last, tangent);
+            if (next < 0)
+            {
+                return;
+            }
+
+            used[next] = true;
+            if (forward)
+            {
+                chain[chainEnd++] = next;
+            }
+            else
+            {
+                chain[--chainStart] = next;
+            }
+
+            // keep the side of the last step, the edgel's own tangent
+            // follows the edge better than the step between two pixels
+            float stepX = tangent[0];
+            float stepY = tangent[1];
+            tangentOf(next, true, tangent);
+            if (tangent[0] * stepX + tangent[1] * stepY < 0)
+            {
+                tangent[0] = -tangent[0];
+                tangent[1] = -tangent[1];
+            }
+            last = next;
+        }
+    }
+
+    // direction along the edge, perpendicular to the gradient
+    private void tangentOf(int i, boolean forward, float[] tangent)
+    {
+        QuantizedAngle.toDirection(angles[i], tangent);
+        float x = tangent[0];
+        tangent[0] = forward ? -tangent[1] : tangent[1];
+        tangent[1] = forward ? x : -x;
+    }
+
+    // the nearest unused edgel ahead on the edge of the last one, -1 if none
+    private int findNext(int last, float[] tangent)
+    {
+        int column = (int) ((xs[last] - left) / linkDistance);
+        int row = (int) ((ys[last] - top) / linkDistance);
+        int best = -1;
+        float bestAhead = Float.MAX_VALUE;
+        for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++)
+        {
+            for (int c = Math.max(0, column - 1); c <= Math.min(columns - 1, column + 1); c++)
+            {
+                for (int i = cellHeads[r * columns + c]; i >= 0; i = cellNext[i])
+                {
+                    if (used[i])
+                    {
+                        continue;
+                    }
+
+                    float dx = xs[i] - xs[last];
+                    float dy = ys[i] - ys[last];
+                    float ahead = dx * tangent[0] + dy * tangent[1];
+                    if (ahead < 0 || ahead > linkDistance || ahead >= bestAhead)
+                    {
+                        continue;
+                    }
+                    if (Math.abs(dx * tangent[1] - dy * tangent[0]) > linkOffset)
+                    {
+                        continue;
+                    }
+                    if (QuantizedAngle.cos(angles[last], angles[i]) <= compValue)
+                    {
+                        continue;
+                    }
+                    best = i;
+                    bestAhead = ahead;
+                }
+            }
+        }
+        return best;
+    }
+
+    // split the part of the chain from first to last (inclusive) where it
+    // bends, and add its straight parts as segments
+    private void split(Edgel[] edgels, int first, int last, List<LineSegment> segments)
+    {
+        if (last - first + 1 < minEdgelsCount)
+        {
+            return;
+        }
+
+        int a = chain[first];
+        int b = chain[last];
+        float lineX = xs[b] - xs[a];
+        float lineY = ys[b] - ys[a];
+        float length = (float) Math.sqrt(lineX * lineX + lineY * lineY);
+        int furthest = -1;
+        float furthestDistance = splitDistance;
+        for (int k = first + 1; k < last; k++)
+        {
+            int i = chain[k];
+            float distance = length == 0 ? (float) Math.hypot(xs[i] - xs[a], ys[i] - ys[a])
+                    : Math.abs((xs[i] - xs[a]) * lineY - (ys[i] - ys[a]) * lineX) / length;
+            if (distance > furthestDistance)
+            {
+                furthest = k;
+                furthestDistance = distance;
+            }
+        }
+
+        if (furthest >= 0)
+        {
+            split(edgels, first, furthest, segments);
+            split(edgels, furthest, last, segments);
+            return;
+        }
+
+        // the ends must be apart for the direction of the segment
+        if (edgels[a].getX() == edgels[b].getX() && edgels[a].getY() == edgels[b].getY())
+        {
+            return;
+        }
+
+        LineSegment segment = new LineSegment(edgels[a], edgels[b]);
+        for (int k = first + 1; k < last; k++)
+        {
+            segment.addInliner(edgels[chain[k]]);
+        }
+        SegmentsFinder.fixLineSegment(segment);
+        segments.add(segment);
+    }
+}
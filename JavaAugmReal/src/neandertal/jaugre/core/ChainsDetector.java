@@ -1,20 +1,24 @@
 package neandertal.jaugre.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import neandertal.jaugre.core.data.Chain;
 import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
 import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.QuantizedAngle;
 
 
 /**
  * STEP 7.
  * Finds chains of lines. We try to find chains of 3 to 4 lines. A chain is a
  * list of lines where the end of one of the lines hits the start of another.
+ * A line can hit the start of several lines, so all closed loops of 4 lines
+ * and the open paths of 3 to 4 lines are searched, within a limited count of
+ * steps per frame.
  * @author neandertal
  */
 public class ChainsDetector
@@ -28,6 +32,11 @@ public class ChainsDetector
     // Maximum chained lines
     public static final float DEFAULT_MAX_LINES = 4;
 
+    // Maximum connecting lines kept for every line end, the closest ones
+    public static final int DEFAULT_MAX_BRANCHING = 4;
+    // Maximum search steps per frame, bounds the cost on dense clutter
+    public static final int DEFAULT_MAX_SEARCH_STEPS = 20000;
+
     /**
      * Find chains of lines, which could make a quadrangle
      * 
@@ -35,6 +44,35 @@ public class ChainsDetector
      * @return
      */
     public static Collection<Chain> findChains(Container image)
+    {
+        return findChains(image, DEFAULT_MAX_BRANCHING, DEFAULT_MAX_SEARCH_STEPS);
+    }
+
+    /**
+     * Find chains of lines, which could make a quadrangle, using custom search limits
+     * 
+     * @param image
+     * @param maxBranching custom limit of connecting lines kept for every line end
+     * @param maxSearchSteps custom limit of search steps for the whole frame
+     * @return
+     */
+    public static Collection<Chain> findChains(Container image, int maxBranching, int maxSearchSteps)
+    {
+        return findChains(image, maxBranching, maxSearchSteps, true);
+    }
+
+    /**
+     * Find chains of lines, which could make a quadrangle, using custom search
+     * limits and the choice of the comparison of the directions
+     * 
+     * @param image
+     * @param maxBranching custom limit of connecting lines kept for every line end
+     * @param maxSearchSteps custom limit of search steps for the whole frame
+     * @param quantizedAngles true to compare the quantized angles, false for the float directions
+     * @return
+     */
+    public static Collection<Chain> findChains(Container image, int maxBranching, int maxSearchSteps,
+            boolean quantizedAngles)
     {
         if (image == null)
         {
@@ -46,110 +84,57 @@ public class ChainsDetector
             throw new IllegalArgumentException("Corner segments can't be NULL!");
         }
 
-        findChainsInternal(image);
+        if (maxBranching <= 0 || maxSearchSteps <= 0)
+        {
+            throw new IllegalArgumentException("Search limits must be positive!");
+        }
+
+        findChainsInternal(image, maxBranching, maxSearchSteps, quantizedAngles);
 
         return image.getChains();
     }
 
-    //For simplicity we assume every line can have max 1 previous and next line
-    private static void findChainsInternal(Container image)
+    // Lines make a small directed graph - every line points to the lines
+    // starting at its end. Closed loops of 4 lines are searched first, then
+    // whole open paths of 3 to 4 lines among the lines, which are not in a
+    // loop.
+    private static void findChainsInternal(Container image, int maxBranching, int maxSearchSteps,
+            boolean quantizedAngles)
     {
         // create chain element for each line
-        List<ChainElement> chainElementsList = new LinkedList<ChainElement>();
-        for (LineSegment line : image.getCornerSegments())
+        List<LineSegment> lines = image.getCornerSegments();
+        ChainElement[] chainElements = new ChainElement[lines.size()];
+        int index = 0;
+        for (LineSegment line : lines)
         {
-            ChainElement chEl = new ChainElement();
-            chEl.line = line;
-            chainElementsList.add(chEl);
+            ChainElement chEl = new ChainElement(line, index, maxBranching);
+            chainElements[index++] = chEl;
         }
 
-        // link chain elements
-        for (int i = 0; i < chainElementsList.size(); i++)
-        {
-            // every line try to find its connecting lines
-            ChainElement chainElement = chainElementsList.get(i);
-            for (int j = i + 1; j < chainElementsList.size(); j++)
-            {
-                ChainElement toCheck = chainElementsList.get(j);
-                // check if to add at end
-                if (checkIfLinesConnect(chainElement.line, toCheck.line))
-                {
-                    chainElement.next = toCheck;
-                    toCheck.previous = chainElement;
-                    continue;// It's very unlikely 2 lines to form a loop
-                }
-
-                // check if to add at start
-                if (checkIfLinesConnect(toCheck.line, chainElement.line))
-                {
-                    toCheck.next = chainElement;
-                    chainElement.previous = toCheck;
-                }
-            }// for
-        }// for
-
-        // find chains recursively
-        Set<Chain> allChains = growChains(chainElementsList);
-
-        image.setChains(allChains);
-    }// findChainsInternal
-
-    // Find the chains, we assume every chain element can have max 1 previous and 1 next element
-    //but it is possible to form a loop
-    private static Set<Chain> growChains(List<ChainElement> cheinElementsList)
-    {
-        List<List<ChainElement>> chains = new LinkedList<List<ChainElement>>();
-
-        while (!cheinElementsList.isEmpty())
+        // link chain elements, every line is checked only against the lines
+        // starting in the grid cells around its end
+        EndpointGrid grid = new EndpointGrid(chainElements, quantizedAngles);
+        for (ChainElement chainElement : chainElements)
         {
-            ChainElement chainElement = cheinElementsList.remove(0);
-
-            // lonely elements are discarded
-            if (chainElement.next == null && chainElement.previous == null)
-            {
-                continue;
-            }
-
-            //build chain
-            List<ChainElement> newChain = new LinkedList<ChainElement>();
-            newChain.add(chainElement);
-            chains.add(newChain);
-            
-            //extend beginning
-            ChainElement prev = chainElement.previous;
-            while (prev != null && !newChain.contains(prev))
-            {
-                newChain.add(0, prev);
-                prev = prev.previous;
-            }
-            
-            //extends end
-            ChainElement next = chainElement.next;
-            while (next != null && !newChain.contains(next))
-            {
-                newChain.add(next);
-                next = next.next;
-            }
-            
-            //remove iterated elements
-            cheinElementsList.removeAll(newChain);
+            grid.linkNext(chainElement);
         }
-
-        // finally get only appropriate chains
-        Set<Chain> allChains = new HashSet<Chain>();
-        for (List<ChainElement> chainList : chains)
+        for (ChainElement chainElement : chainElements)
         {
-            if (chainList.size() >= DEFAULT_MIN_LINES &&  chainList.size() <= DEFAULT_MAX_LINES)
+            for (int k = 0; k < chainElement.nextCount; k++)
             {
-                allChains.add(createChain(chainList));
+                chainElement.next[k].addPrevious(chainElement);
             }
         }
 
-        return allChains;
-    }
+        ChainsSearch search = new ChainsSearch(chainElements, maxSearchSteps, quantizedAngles);
+        search.findLoops();
+        search.findPaths();
+
+        image.setChains(search.chains);
+    }// findChainsInternal
 
     // Check if end of first line is at the start of the second one
-    private static boolean checkIfLinesConnect(LineSegment segment, LineSegment toCompare)
+    private static boolean checkIfLinesConnect(LineSegment segment, LineSegment toCompare, boolean quantizedAngles)
     {
         // same segment
         if (segment == toCompare)
@@ -158,8 +143,7 @@ public class ChainsDetector
         }
 
         // check if lines are parallel
-        if (SegmentsFinder.isOrientationCompatible(segment.getDirection(), toCompare.getDirection(),
-                DEFAULT_LINES_COMPATIBILITY))
+        if (isParallel(segment, toCompare, quantizedAngles))
         {
             return false;
         }
@@ -172,7 +156,7 @@ public class ChainsDetector
 
         // Dot product of directions, so that only clock-wise connected lines
         // remain
-        if (!checkDirections(segment.getDirection(), toCompare.getDirection()))
+        if (!checkDirections(segment, toCompare, quantizedAngles))
         {
             return false;
         }
@@ -180,30 +164,395 @@ public class ChainsDetector
         return true;
     }
 
-    // check if directions are compatible
-    private static boolean checkDirections(float[] dirA, float[] dirB)
+    // check if lines are parallel, by the quantized angles or by the float
+    // directions
+    private static boolean isParallel(LineSegment a, LineSegment b, boolean quantizedAngles)
     {
-        return dirA[0] * dirB[1] - dirA[1] * dirB[0] >= 0;
+        if (quantizedAngles)
+        {
+            return QuantizedAngle.cos(a.getAngle(), b.getAngle()) > DEFAULT_LINES_COMPATIBILITY;
+        }
+        return SegmentsFinder.isOrientationCompatible(a.getDirection(), b.getDirection(),
+                DEFAULT_LINES_COMPATIBILITY);
     }
 
-    private static Chain createChain(List<ChainElement> chElements)
+    // check if directions are compatible
+    private static boolean checkDirections(LineSegment a, LineSegment b, boolean quantizedAngles)
     {
-        Chain ch = new Chain();
-        for (ChainElement chEl : chElements)
+        if (quantizedAngles)
         {
-            ch.addAtEnd(chEl.line);
+            return QuantizedAngle.isTurnedPositive(a.getAngle(), b.getAngle());
         }
+        return checkDirections(a.getDirection(), b.getDirection());
+    }
 
-        return ch;
+    private static boolean checkDirections(float[] dirA, float[] dirB)
+    {
+        return dirA[0] * dirB[1] - dirA[1] * dirB[0] >= 0;
     }
 
     // Chain element
     private static class ChainElement
     {
         private LineSegment line;
-        private ChainElement previous;
-        private ChainElement next;
+        private int index;
+        // lines starting at the end of this one, the closest first
+        private ChainElement[] next;
+        private int nextCount;
+        // lines, whose end hits the start of this one
+        private ChainElement[] previous = new ChainElement[1];
+        private int previousCount;
+        // part of a closed loop
+        private boolean inLoop;
+
+        public ChainElement(LineSegment lineArg, int indexArg, int maxBranching)
+        {
+            line = lineArg;
+            index = indexArg;
+            next = new ChainElement[maxBranching];
+        }
+
+        public void addPrevious(ChainElement element)
+        {
+            if (previousCount == previous.length)
+            {
+                previous = Arrays.copyOf(previous, 2 * previousCount);
+            }
+            previous[previousCount++] = element;
+        }
+
+        public boolean hasNext(ChainElement element)
+        {
+            for (int i = 0; i < nextCount; i++)
+            {
+                if (next[i] == element)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Depth first search of loops and paths, bounded by the chain length and
+    // the search steps for the frame. Once the steps are used up, the chains
+    // found so far are kept.
+    private static class ChainsSearch
+    {
+        private static final int MIN_LINES = (int) DEFAULT_MIN_LINES;
+        private static final int MAX_LINES = (int) DEFAULT_MAX_LINES;
+
+        private ChainElement[] elements;
+        private ChainElement[] path;
+        private int steps;
+        private boolean quantizedAngles;
+        private float[] direction = new float[2];
+        private List<Chain> chains;
+
+        public ChainsSearch(ChainElement[] elementsArg, int maxSteps, boolean quantizedAnglesArg)
+        {
+            elements = elementsArg;
+            quantizedAngles = quantizedAnglesArg;
+            path = new ChainElement[MAX_LINES];
+            steps = maxSteps;
+            chains = new ArrayList<Chain>();
+        }
+
+        // Every loop is searched from its line with the lowest index only,
+        // so it is found once
+        public void findLoops()
+        {
+            for (int i = 0; i < elements.length && steps > 0; i++)
+            {
+                path[0] = elements[i];
+                searchLoop(1);
+            }
+        }
+
+        private void searchLoop(int depth)
+        {
+            ChainElement last = path[depth - 1];
+            for (int k = 0; k < last.nextCount; k++)
+            {
+                if (--steps < 0)
+                {
+                    return;
+                }
+
+                ChainElement toCheck = last.next[k];
+                if (depth == MAX_LINES)
+                {
+                    if (toCheck == path[0])
+                    {
+                        chains.add(createChain(depth));
+                        for (int i = 0; i < depth; i++)
+                        {
+                            path[i].inLoop = true;
+                        }
+                    }
+                    continue;
+                }
+
+                if (toCheck.index <= path[0].index || isOnPath(toCheck, depth))
+                {
+                    continue;
+                }
+
+                // the last line has to close the loop
+                if (depth == MAX_LINES - 1 && !toCheck.hasNext(path[0]))
+                {
+                    continue;
+                }
+
+                path[depth] = toCheck;
+                searchLoop(depth + 1);
+            }
+        }
+
+        // Paths are searched from every line, which is not in a loop, and
+        // only the whole paths are kept - those, which can't be extended by
+        // a line at either end, like the chains of a single previous and
+        // next line. The prefixes of longer paths are dropped, as the longer
+        // chains are, except for a path of 4 lines closed by the other part
+        // of its first line - the sides of a quadrangle with one side split.
+        public void findPaths()
+        {
+            for (int i = 0; i < elements.length && steps > 0; i++)
+            {
+                if (elements[i].inLoop)
+                {
+                    continue;
+                }
+
+                path[0] = elements[i];
+                searchPath(1);
+            }
+        }
+
+        private void searchPath(int depth)
+        {
+            ChainElement last = path[depth - 1];
+            boolean extended = false;
+            boolean closed = false;
+            for (int k = 0; k < last.nextCount; k++)
+            {
+                if (--steps < 0)
+                {
+                    return;
+                }
+
+                ChainElement toCheck = last.next[k];
+                if (toCheck.inLoop || isOnPath(toCheck, depth))
+                {
+                    continue;
+                }
+
+                // a loop with its first side split in two parts
+                if (depth == MAX_LINES && continuesFirst(toCheck))
+                {
+                    closed = true;
+                    continue;
+                }
+
+                // the path is longer than a chain
+                extended = true;
+                if (depth == MAX_LINES)
+                {
+                    return;
+                }
+
+                path[depth] = toCheck;
+                searchPath(depth + 1);
+            }
+
+            if (!extended && depth >= MIN_LINES && (closed || isWholeAtStart(depth)))
+            {
+                chains.add(createChain(depth));
+            }
+        }
+
+        // true if the line lies on the first line of the path, as the other
+        // part of the same side
+        private boolean continuesFirst(ChainElement element)
+        {
+            LineSegment first = path[0].line;
+            if (!isParallel(first, element.line, quantizedAngles))
+            {
+                return false;
+            }
+
+            // the same direction as the parallel check
+            float[] firstDirection = quantizedAngles ? QuantizedAngle.toDirection(first.getAngle(), direction)
+                    : first.getDirection();
+            float dX = element.line.getStart().getX() - first.getStart().getX();
+            float dY = element.line.getStart().getY() - first.getStart().getY();
+            float distance = dX * firstDirection[1] - dY * firstDirection[0];
+            return distance * distance <= DEFAULT_SQUARED_LINES_DISTANCE;
+        }
+
+        // true if no line outside the loops and the path hits the start of
+        // the path. A closed path is kept from its line with the lowest index
+        // only.
+        private boolean isWholeAtStart(int depth)
+        {
+            ChainElement first = path[0];
+            for (int k = 0; k < first.previousCount; k++)
+            {
+                ChainElement toCheck = first.previous[k];
+                if (!toCheck.inLoop && !isOnPath(toCheck, depth))
+                {
+                    return false;
+                }
+            }
+
+            if (path[depth - 1].hasNext(first))
+            {
+                for (int i = 1; i < depth; i++)
+                {
+                    if (path[i].index < first.index)
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
 
-        public ChainElement(){}
+        private boolean isOnPath(ChainElement element, int depth)
+        {
+            for (int i = 0; i < depth; i++)
+            {
+                if (path[i] == element)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Chain createChain(int length)
+        {
+            Chain ch = new Chain();
+            for (int i = 0; i < length; i++)
+            {
+                ch.addAtEnd(path[i].line);
+            }
+
+            return ch;
+        }
+    }
+
+    // Start points of the lines, bucketed in grid cells of size equal to
+    // the maximum lines distance. Lines, which connect to the end of a line,
+    // start in the 3x3 cells around it. The cells are kept in a sorted array
+    // of (cell key, line index) pairs, packed in longs.
+    private static class EndpointGrid
+    {
+        private static final int CELL_SIZE = (int) Math.ceil(Math.sqrt(DEFAULT_SQUARED_LINES_DISTANCE));
+        private static final int INDEX_BITS = 31;
+
+        private ChainElement[] elements;
+        private long[] entries;
+        private int[] distances;
+        private boolean quantizedAngles;
+
+        public EndpointGrid(ChainElement[] elementsArg, boolean quantizedAnglesArg)
+        {
+            elements = elementsArg;
+            quantizedAngles = quantizedAnglesArg;
+            entries = new long[elements.length];
+            for (int i = 0; i < elements.length; i++)
+            {
+                Edgel start = elements[i].line.getStart();
+                entries[i] = (cellKey(cell(start.getX()), cell(start.getY())) << INDEX_BITS) | i;
+            }
+            Arrays.sort(entries);
+        }
+
+        // Link the element to the closest lines, which start at its end
+        public void linkNext(ChainElement chainElement)
+        {
+            if (distances == null || distances.length < chainElement.next.length)
+            {
+                distances = new int[chainElement.next.length];
+            }
+
+            Edgel end = chainElement.line.getEnd();
+            int cx = cell(end.getX());
+            int cy = cell(end.getY());
+
+            for (int x = Math.max(0, cx - 1); x <= cx + 1; x++)
+            {
+                for (int y = Math.max(0, cy - 1); y <= cy + 1; y++)
+                {
+                    long key = cellKey(x, y);
+                    for (int k = lowerBound(key << INDEX_BITS); k < entries.length && (entries[k] >>> INDEX_BITS) == key; k++)
+                    {
+                        ChainElement toCheck = elements[(int) (entries[k] & ((1L << INDEX_BITS) - 1))];
+                        if (checkIfLinesConnect(chainElement.line, toCheck.line, quantizedAngles))
+                        {
+                            insertNext(chainElement, toCheck, SegmentsMerger.getSquaredDistance(end, toCheck.line.getStart()));
+                        }
+                    }
+                }
+            }
+        }
+
+        // insert ordered by distance, the farthest line drops out when full
+        private void insertNext(ChainElement chainElement, ChainElement toAdd, int distance)
+        {
+            int pos = chainElement.nextCount;
+            if (pos == chainElement.next.length)
+            {
+                if (distances[pos - 1] <= distance)
+                {
+                    return;
+                }
+                pos--;
+            }
+            else
+            {
+                chainElement.nextCount++;
+            }
+
+            while (pos > 0 && distances[pos - 1] > distance)
+            {
+                chainElement.next[pos] = chainElement.next[pos - 1];
+                distances[pos] = distances[pos - 1];
+                pos--;
+            }
+            chainElement.next[pos] = toAdd;
+            distances[pos] = distance;
+        }
+
+        // first entry not less than the given value
+        private int lowerBound(long value)
+        {
+            int low = 0;
+            int high = entries.length;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (entries[mid] < value)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static int cell(int coordinate)
+        {
+            return Math.max(0, coordinate) / CELL_SIZE;
+        }
+
+        private static long cellKey(int x, int y)
+        {
+            return ((long) x << 16) | y;
+        }
     }
 }
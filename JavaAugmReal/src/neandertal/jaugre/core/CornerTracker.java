@@ -0,0 +1,521 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Marker;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * Optional step, instead of STEP 1 to STEP 10 for the frames between
+ * keyframes of a video stream.
+ * Tracks the 4 corners of every marker of the last keyframe with a small
+ * pyramidal Lucas-Kanade step on luma patches around them, and verifies
+ * the tracked sides by checking a few points along them with the edgel
+ * check of {@link SegmentsMerger}. Only the patches around the corners are
+ * read, so a tracked frame costs a fraction of the whole detection.
+ * <br/>
+ * If a corner can't be tracked or a side is not verified, the frame is not
+ * tracked and the whole detection has to run again.
+ * <br/>
+ * Uses:
+ * <br/>
+ * Bouguet, Pyramidal Implementation of the Lucas Kanade Feature Tracker
+ * @author neandertal
+ */
+public class CornerTracker
+{
+    /** Half size of the window of the Lucas-Kanade step, on every pyramid level */
+    public static final int DEFAULT_WINDOW_RADIUS = 4;
+    /** Pyramid levels, the motion up to about the window radius on the coarsest level is tracked */
+    public static final int DEFAULT_PYRAMID_LEVELS = 2;
+    /** Lucas-Kanade iterations on every pyramid level */
+    public static final int DEFAULT_ITERATIONS = 8;
+    /** Points checked on every side of a tracked quadrangle */
+    public static final int DEFAULT_SIDE_SAMPLES = 8;
+    /** Part of the points of every side, which have to pass the edgel check */
+    public static final float DEFAULT_MIN_SIDE_RATIO = 0.5f;
+    /** Distance from a side, up to which the edgel of a checked point is searched */
+    public static final int DEFAULT_SIDE_TOLERANCE = 2;
+
+    // iterations stop on a smaller step, in pixels
+    private static final float MIN_STEP = 0.01f;
+    // windows without texture in both directions can't be tracked
+    private static final float MIN_EIGENVALUE = 1e-3f;
+
+    private int windowRadius;
+    private int levels;
+    private int iterations;
+    private int sideSamples;
+    private float minSideRatio;
+    // half size of the patch around a corner on the first level
+    private int patchRadius;
+
+    private List<Target> targets = new ArrayList<Target>();
+
+    // scratch - the patch of the frame, the template window and its gradient
+    private float[][] patch;
+    private float[] windowValues;
+    private float[] windowGradientsX;
+    private float[] windowGradientsY;
+    // comparison of the directions in the side check
+    private boolean quantizedAngles = true;
+
+    /**
+     * Tracker with default values
+     */
+    public CornerTracker()
+    {
+        this(DEFAULT_WINDOW_RADIUS, DEFAULT_PYRAMID_LEVELS, DEFAULT_ITERATIONS, DEFAULT_SIDE_SAMPLES,
+                DEFAULT_MIN_SIDE_RATIO);
+    }
+
+    /**
+     * Tracker with custom values
+     * @param windowRadiusArg custom half size of the Lucas-Kanade window
+     * @param levelsArg custom count of pyramid levels
+     * @param iterationsArg custom Lucas-Kanade iterations on every level
+     * @param sideSamplesArg custom count of points checked on every side
+     * @param minSideRatioArg custom part of the points of a side, which have to pass the check
+     */
+    public CornerTracker(int windowRadiusArg, int levelsArg, int iterationsArg, int sideSamplesArg,
+            float minSideRatioArg)
+    {
+        if (windowRadiusArg < 1)
+        {
+            throw new IllegalArgumentException("Window radius must be positive!");
+        }
+
+        if (levelsArg < 1 || levelsArg > 6)
+        {
+            throw new IllegalArgumentException("Pyramid levels must be between 1 and 6!");
+        }
+
+        if (iterationsArg < 1 || sideSamplesArg < 1)
+        {
+            throw new IllegalArgumentException("Iterations and side samples must be positive!");
+        }
+
+        windowRadius = windowRadiusArg;
+        levels = levelsArg;
+        iterations = iterationsArg;
+        sideSamples = sideSamplesArg;
+        minSideRatio = minSideRatioArg;
+        // window with its gradient border and the motion, on the coarsest level
+        patchRadius = (2 * windowRadius + 1) << (levels - 1);
+        patch = newPyramid();
+        int window = (2 * windowRadius + 1) * (2 * windowRadius + 1);
+        windowValues = new float[window];
+        windowGradientsX = new float[window];
+        windowGradientsY = new float[window];
+    }
+
+    /**
+     * Remember the markers of a fully detected frame, to track them in the
+     * next frames. Keyframes without markers clear the tracker.
+     *
+     * @param image contains all data, after {@link MarkerDecoder}
+     */
+    public void setKeyframe(Container image)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getMarkers() == null)
+        {
+            throw new IllegalArgumentException("Markers can't be NULL!");
+        }
+
+        BufferedImage img = image.getImage();
+        int[] pixels = PixelAccess.getPixels(img);
+        targets.clear();
+        for (Marker marker : image.getMarkers())
+        {
+            Target target = new Target(marker);
+            Point[] points = getPoints(marker.getQuadrangle());
+            for (int i = 0; i < 4; i++)
+            {
+                target.corners[2 * i] = points[i].x;
+                target.corners[2 * i + 1] = points[i].y;
+            }
+            updateTemplates(img, pixels, target);
+            targets.add(target);
+        }
+    }
+
+    /**
+     * @return true if there are markers to track
+     */
+    public boolean hasTargets()
+    {
+        return !targets.isEmpty();
+    }
+
+    /**
+     * Forget the tracked markers
+     */
+    public void clear()
+    {
+        targets.clear();
+    }
+
+    /**
+     * @param quantizedAnglesArg true to compare the quantized angles in the side check, false for the float directions
+     */
+    public void setQuantizedAngles(boolean quantizedAnglesArg)
+    {
+        quantizedAngles = quantizedAnglesArg;
+    }
+
+    /**
+     * Track the markers into the next frame.
+     *
+     * @param img the next frame
+     * @return container with the tracked quadrangles (also as filtered) and
+     * markers, or NULL if any marker is lost - then the frame needs the
+     * whole detection
+     */
+    public Container track(BufferedImage img)
+    {
+        if (img == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (targets.isEmpty())
+        {
+            return null;
+        }
+
+        int[] pixels = PixelAccess.getPixels(img);
+        List<Quadrangle> quadrangles = new ArrayList<Quadrangle>(targets.size());
+        List<Marker> markers = new ArrayList<Marker>(targets.size());
+        for (Target target : targets)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                if (!trackCorner(img, pixels, target, i))
+                {
+                    return null;
+                }
+            }
+
+            Point[] points = new Point[4];
+            for (int i = 0; i < 4; i++)
+            {
+                points[i] = new Point(Math.round(target.tracked[2 * i]), Math.round(target.tracked[2 * i + 1]));
+            }
+
+            if (!verifySides(img, points))
+            {
+                return null;
+            }
+
+            Quadrangle q = new Quadrangle(points[0], points[1], points[2], points[3]);
+            Point[] ordered = new Point[4];
+            for (int i = 0; i < 4; i++)
+            {
+                ordered[i] = points[target.order[i]];
+            }
+            Marker marker = target.marker;
+            quadrangles.add(q);
+            markers.add(new Marker(q, marker.getId(), marker.getRotation(), marker.getConfidence(), ordered));
+        }
+
+        // all verified, the tracked corners become the start of the next frame
+        for (int t = 0; t < targets.size(); t++)
+        {
+            Target target = targets.get(t);
+            target.marker = markers.get(t);
+            System.arraycopy(target.tracked, 0, target.corners, 0, 8);
+            updateTemplates(img, pixels, target);
+        }
+
+        Container image = new Container(img);
+        image.setQuadrangles(quadrangles);
+        image.setFilteredQuadrangles(new ArrayList<Quadrangle>(quadrangles));
+        image.setMarkers(markers);
+        return image;
+    }
+
+    // Coarse to fine Lucas-Kanade of one corner, the result is kept in the
+    // tracked corners of the target
+    private boolean trackCorner(BufferedImage img, int[] pixels, Target target, int corner)
+    {
+        int originX = target.originX[corner];
+        int originY = target.originY[corner];
+        readPyramid(img, pixels, originX, originY, patch);
+        float[][] template = target.templates[corner];
+
+        float cornerX = target.corners[2 * corner];
+        float cornerY = target.corners[2 * corner + 1];
+        float gX = 0;
+        float gY = 0;
+        for (int l = levels - 1; l >= 0; l--)
+        {
+            int size = (2 * patchRadius) >> l;
+            float scale = 1 << l;
+            // corner on this level
+            float cX = (cornerX - originX + 0.5f) / scale - 0.5f;
+            float cY = (cornerY - originY + 0.5f) / scale - 0.5f;
+            if (l < levels - 1)
+            {
+                gX *= 2;
+                gY *= 2;
+            }
+
+            // template window and its gradient matrix
+            float gxx = 0;
+            float gxy = 0;
+            float gyy = 0;
+            for (int v = -windowRadius, w = 0; v <= windowRadius; v++)
+            {
+                for (int u = -windowRadius; u <= windowRadius; u++, w++)
+                {
+                    float x = cX + u;
+                    float y = cY + v;
+                    float ix = (sample(template[l], size, x + 1, y) - sample(template[l], size, x - 1, y)) / 2;
+                    float iy = (sample(template[l], size, x, y + 1) - sample(template[l], size, x, y - 1)) / 2;
+                    windowValues[w] = sample(template[l], size, x, y);
+                    windowGradientsX[w] = ix;
+                    windowGradientsY[w] = iy;
+                    gxx += ix * ix;
+                    gxy += ix * iy;
+                    gyy += iy * iy;
+                }
+            }
+
+            float det = gxx * gyy - gxy * gxy;
+            float trace = gxx + gyy;
+            float window = (2 * windowRadius + 1) * (2 * windowRadius + 1);
+            // smaller eigenvalue, per pixel of the window
+            float minEigen = (trace - (float) Math.sqrt(Math.max(0, trace * trace - 4 * det))) / 2 / window;
+            if (minEigen < MIN_EIGENVALUE)
+            {
+                return false;
+            }
+
+            for (int k = 0; k < iterations; k++)
+            {
+                float bx = 0;
+                float by = 0;
+                for (int v = -windowRadius, w = 0; v <= windowRadius; v++)
+                {
+                    for (int u = -windowRadius; u <= windowRadius; u++, w++)
+                    {
+                        float xt = cX + u + gX;
+                        float yt = cY + v + gY;
+                        if (xt < 0 || yt < 0 || xt >= size - 1 || yt >= size - 1)
+                        {
+                            // moved out of the patch
+                            return false;
+                        }
+
+                        float diff = windowValues[w] - sample(patch[l], size, xt, yt);
+                        bx += diff * windowGradientsX[w];
+                        by += diff * windowGradientsY[w];
+                    }
+                }
+
+                float stepX = (gyy * bx - gxy * by) / det;
+                float stepY = (gxx * by - gxy * bx) / det;
+                gX += stepX;
+                gY += stepY;
+                if (Math.abs(stepX) < MIN_STEP && Math.abs(stepY) < MIN_STEP)
+                {
+                    break;
+                }
+            }
+        }
+
+        target.tracked[2 * corner] = cornerX + gX;
+        target.tracked[2 * corner + 1] = cornerY + gY;
+        return true;
+    }
+
+    // Check points along every side with the edgel check. The direction of
+    // an edgel on the border of the black marker points to the inside.
+    private boolean verifySides(BufferedImage img, Point[] points)
+    {
+        float centerX = (points[0].x + points[1].x + points[2].x + points[3].x) / 4f;
+        float centerY = (points[0].y + points[1].y + points[2].y + points[3].y) / 4f;
+        int minPassed = (int) Math.ceil(minSideRatio * sideSamples);
+        for (int i = 0; i < 4; i++)
+        {
+            Point a = points[i];
+            Point b = points[(i + 1) % 4];
+            float length = (float) a.distance(b);
+            if (length < 1)
+            {
+                return false;
+            }
+
+            float[] normal = new float[] { (b.y - a.y) / length, -(b.x - a.x) / length };
+            float[] direction = new float[] { normal[0], normal[1] };
+            float midX = (a.x + b.x) / 2f;
+            float midY = (a.y + b.y) / 2f;
+            if ((centerX - midX) * direction[0] + (centerY - midY) * direction[1] < 0)
+            {
+                direction[0] = -direction[0];
+                direction[1] = -direction[1];
+            }
+
+            int passed = 0;
+            for (int k = 1; k <= sideSamples; k++)
+            {
+                float t = k / (float) (sideSamples + 1);
+                float x = a.x + (b.x - a.x) * t;
+                float y = a.y + (b.y - a.y) * t;
+                if (isEdgelNear(img, x, y, normal, direction))
+                {
+                    passed++;
+                }
+            }
+
+            if (passed < minPassed)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Edgel check of the point and of the points across the side up to the
+    // tolerance, the tracked corners are only as exact as the detected ones
+    private boolean isEdgelNear(BufferedImage img, float x, float y, float[] normal, float[] direction)
+    {
+        for (int d = 0; d <= DEFAULT_SIDE_TOLERANCE; d++)
+        {
+            for (int sign = 1; sign >= (d == 0 ? 1 : -1); sign -= 2)
+            {
+                int pX = Math.round(x + sign * d * normal[0]);
+                int pY = Math.round(y + sign * d * normal[1]);
+                // the check reads 2 pixels around the point and its neighbours
+                if (pX < 3 || pY < 3 || pX >= img.getWidth() - 3 || pY >= img.getHeight() - 3)
+                {
+                    continue;
+                }
+
+                if (SegmentsMerger.checkPointIfEdgel(img, pX, pY, normal, direction, quantizedAngles))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Templates of all corners, from the patches around them
+    private void updateTemplates(BufferedImage img, int[] pixels, Target target)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            target.originX[i] = Math.round(target.corners[2 * i]) - patchRadius;
+            target.originY[i] = Math.round(target.corners[2 * i + 1]) - patchRadius;
+            readPyramid(img, pixels, target.originX[i], target.originY[i], target.templates[i]);
+        }
+    }
+
+    // Luma of the patch from the origin, clamped to the image, and its
+    // pyramid - every level averages 2x2 pixels of the level below
+    private void readPyramid(BufferedImage img, int[] pixels, int originX, int originY, float[][] pyramid)
+    {
+        int size = 2 * patchRadius;
+        int width = img.getWidth();
+        int height = img.getHeight();
+        float[] first = pyramid[0];
+        for (int r = 0; r < size; r++)
+        {
+            int y = Math.max(0, Math.min(height - 1, originY + r));
+            for (int c = 0; c < size; c++)
+            {
+                int x = Math.max(0, Math.min(width - 1, originX + c));
+                first[r * size + c] = PixelAccess.getLuma(PixelAccess.getRGB(img, pixels, x, y));
+            }
+        }
+
+        for (int l = 1; l < levels; l++)
+        {
+            float[] below = pyramid[l - 1];
+            float[] level = pyramid[l];
+            int belowSize = size >> (l - 1);
+            int levelSize = size >> l;
+            for (int r = 0; r < levelSize; r++)
+            {
+                for (int c = 0; c < levelSize; c++)
+                {
+                    int i = 2 * r * belowSize + 2 * c;
+                    level[r * levelSize + c] = (below[i] + below[i + 1] + below[i + belowSize]
+                            + below[i + belowSize + 1]) / 4;
+                }
+            }
+        }
+    }
+
+    private float[][] newPyramid()
+    {
+        float[][] pyramid = new float[levels][];
+        for (int l = 0; l < levels; l++)
+        {
+            int size = (2 * patchRadius) >> l;
+            pyramid[l] = new float[size * size];
+        }
+        return pyramid;
+    }
+
+    // bilinear sample of a square level, clamped to its border
+    private static float sample(float[] level, int size, float x, float y)
+    {
+        x = Math.max(0, Math.min(size - 1.001f, x));
+        y = Math.max(0, Math.min(size - 1.001f, y));
+        int x0 = (int) x;
+        int y0 = (int) y;
+        float fracX = x - x0;
+        float fracY = y - y0;
+        int i = y0 * size + x0;
+        float top = level[i] + (level[i + 1] - level[i]) * fracX;
+        float bottom = level[i + size] + (level[i + size + 1] - level[i + size]) * fracX;
+        return top + (bottom - top) * fracY;
+    }
+
+    private static Point[] getPoints(Quadrangle q)
+    {
+        return new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() };
+    }
+
+    // A tracked marker - its corners in the order of the quadrangle points,
+    // the order of its marker corners and the templates around the corners
+    private class Target
+    {
+        private Marker marker;
+        private int[] order = new int[4];
+        private float[] corners = new float[8];
+        private float[] tracked = new float[8];
+        private int[] originX = new int[4];
+        private int[] originY = new int[4];
+        private float[][][] templates = new float[4][][];
+
+        private Target(Marker markerArg)
+        {
+            marker = markerArg;
+            Point[] points = getPoints(marker.getQuadrangle());
+            for (int i = 0; i < 4; i++)
+            {
+                for (int j = 0; j < 4; j++)
+                {
+                    if (marker.getCorners()[i] == points[j])
+                    {
+                        order[i] = j;
+                    }
+                }
+                templates[i] = newPyramid();
+            }
+        }
+    }
+}
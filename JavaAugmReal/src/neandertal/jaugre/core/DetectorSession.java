@@ -0,0 +1,1152 @@
+package neandertal.jaugre.core;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import neandertal.jaugre.core.data.CameraIntrinsics;
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.DetectionEngineEnum;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.Marker;
+import neandertal.jaugre.core.data.Quadrangle;
+import neandertal.jaugre.core.data.Region;
+
+
+/**
+ * Runs all steps of the detection on the frames of one stream. The session
+ * owns its configuration and the scratch of the steps, which is created
+ * once and reused for every frame, and every frame gets its own
+ * {@link Container} with the results.
+ * <br/>
+ * A session is confined to one thread - create one session per thread or
+ * per stream, it is cheap. The static methods of the steps are thin
+ * wrappers, which create their scratch on every call.
+ * <br/>
+ * For video, the interleaved scan runs sparse scan lines with a phase
+ * rotating from frame to frame, and the edgels of the last frames are
+ * carried forward to fill the lines skipped in this frame. The scan line
+ * density scans densely only around the finds of the previous frame and in
+ * the regions with contrast, see {@link ScanLineDensity}. The tracking
+ * makes regions only around the markers of the previous frame, and searches
+ * the whole frame only every few frames or when the markers are lost. The
+ * corner tracking skips the whole detection between keyframes, it follows
+ * the corners of the markers of the last keyframe with {@link CornerTracker}.
+ * <br/>
+ * With a time budget, the regions are processed by their priority until
+ * the time left is needed for the steps after RANSAC, see
+ * {@link #detect(BufferedImage, long)}. A {@link QualityController} holds a
+ * target frame rate, it sets the scan line distance, the region size and
+ * the RANSAC hypotheses before every frame.
+ * @author neandertal
+ */
+public class DetectorSession
+{
+    /** Frames of the tracking from one search of the whole frame to the next */
+    public static final int DEFAULT_FULL_SEARCH_INTERVAL = 30;
+    /** Frames a tracked marker may be missed, before the whole frame is searched for it */
+    public static final int DEFAULT_MAX_MISSED_FRAMES = 2;
+    /** Frames of the corner tracking from one keyframe to the next */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+    /** Motion of a marker between two frames, in pixels, up to which the interleaved scan carries the edgels around it */
+    public static final float DEFAULT_MAX_CARRY_MOTION = 1f;
+
+    private int regionWidth = RegionSplitter.DEFAULT_REGION_WIDTH;
+    private int regionHeight = RegionSplitter.DEFAULT_REGION_HEIGHT;
+    private int insetTop = RegionSplitter.DEFAULT_INSET;
+    private int insetLeft = RegionSplitter.DEFAULT_INSET;
+    private int insetBottom = RegionSplitter.DEFAULT_INSET;
+    private int insetRight = RegionSplitter.DEFAULT_INSET;
+    private boolean adaptiveRegions;
+    private int minRegionSize = RegionSplitter.DEFAULT_MIN_REGION_SIZE;
+    private int maxRegionSize = RegionSplitter.DEFAULT_MAX_REGION_SIZE;
+    private int maxEdgeSamples = RegionSplitter.DEFAULT_MAX_EDGE_SAMPLES;
+    private boolean tracking;
+    private int trackingMargin = RegionSplitter.DEFAULT_TRACKING_MARGIN;
+    private int fullSearchInterval = DEFAULT_FULL_SEARCH_INTERVAL;
+    // set with the corner tracking
+    private CornerTracker cornerTracker;
+    private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+    private int redThreshold = EdgelDetector.DEFAULT_THRESHOLD;
+    private int greenThreshold = EdgelDetector.DEFAULT_THRESHOLD;
+    private int blueThreshold = EdgelDetector.DEFAULT_THRESHOLD;
+    private int vScanLineDistance = EdgelDetector.DEFAULT_SCANLINE_DISTANCE;
+    private int hScanLineDistance = EdgelDetector.DEFAULT_SCANLINE_DISTANCE;
+    private boolean wholeImageScan;
+    private int interleavedPhases = 1;
+    private float maxCarryMotion = DEFAULT_MAX_CARRY_MOTION;
+    private boolean scanLineDensity;
+    private int denseScanLineDistance = ScanLineDensity.DEFAULT_DENSE_DISTANCE;
+    private int coarseScanLineDistance = ScanLineDensity.DEFAULT_COARSE_DISTANCE;
+
+    private int minEdgelsCount = SegmentsFinder.DEFAULT_MIN_SUPPORT_EDGELS_COUNT;
+    private int maxEdgelsIterations = SegmentsFinder.DEFAULT_MAX_EDGELS_ITERATIONS;
+    private int maxLineIterations = SegmentsFinder.DEFAULT_MAX_LINESEGMENT_ITERATIONS;
+    private float distanceToLine = SegmentsFinder.DEFAULT_DISTANCE_TO_LINE;
+    private float compatibilityValue = SegmentsFinder.DEFAULT_COMPATIBILITY_VALUE;
+    // NULL for RANSAC with the values above
+    private SegmentFinderStrategy segmentFinder;
+    // knobs of this frame, the values above or the ones of the quality controller
+    private int frameRegionWidth = regionWidth;
+    private int frameRegionHeight = regionHeight;
+    private int frameVScanLineDistance = vScanLineDistance;
+    private int frameHScanLineDistance = hScanLineDistance;
+    private int frameLineIterations = maxLineIterations;
+
+    private int maxHypotheses = Integer.MAX_VALUE;
+    private int maxSegments = Integer.MAX_VALUE;
+
+    private int[][] cornerThresholds = CornerDetector.DEFAULT_ENDGE_CHECK_THRESHOLDS;
+
+    private int maxBranching = ChainsDetector.DEFAULT_MAX_BRANCHING;
+    private int maxSearchSteps = ChainsDetector.DEFAULT_MAX_SEARCH_STEPS;
+
+    private boolean quantizedAngles = true;
+
+    private float minArea = QuadranglesFilter.DEFAULT_MIN_AREA;
+    private float maxSidesRatio = QuadranglesFilter.DEFAULT_MAX_SIDES_RATIO;
+    private float duplicateDistance = QuadranglesFilter.DEFAULT_DUPLICATE_DISTANCE;
+
+    private int bitsPerSide = MarkerDecoder.DEFAULT_BITS_PER_SIDE;
+    private MarkerDictionary dictionary;
+    private int minContrast = MarkerDecoder.DEFAULT_MIN_CONTRAST;
+    private float minConfidence = MarkerDecoder.DEFAULT_MIN_CONFIDENCE;
+
+    private LensUndistortion lens;
+    // set with the camera
+    private PoseEstimator poseEstimator;
+    // set for a target frame rate
+    private QualityController qualityController;
+    private DetectionEngineEnum engine = DetectionEngineEnum.EDGELS;
+    // set with the threshold engine
+    private ThresholdDetector thresholdDetector;
+
+    // scratch, the sampler is created on first use
+    private EdgelDetector.Scanner scanner = new EdgelDetector.Scanner();
+    private RansacSegmentFinder ransac = new RansacSegmentFinder();
+    private MarkerDecoder.Sampler sampler;
+
+    // size of the frames of the stream
+    private int lastWidth;
+    private int lastHeight;
+    // state of the interleaved scan - count of frames and edgels found in
+    // the last frames, newest first
+    private int frameIndex;
+    private LinkedList<Map<String, List<Edgel>>> recentEdgels = new LinkedList<Map<String, List<Edgel>>>();
+    // state of the tracking - last quadrangles of the tracked markers with
+    // the frames they have been missed, and frames since the last search of
+    // the whole frame
+    private List<Quadrangle> trackedQuadrangles = new ArrayList<Quadrangle>();
+    private List<Integer> trackedMisses = new ArrayList<Integer>();
+    private int framesSinceFullSearch;
+    // frames since the last keyframe of the corner tracking
+    private int framesSinceKeyframe;
+    // last frame, for the scan line density and the region priority, and
+    // the quadrangles of the markers of the frame before it, for their motion
+    private Container previous;
+    private List<Quadrangle> olderMarkers = new ArrayList<Quadrangle>();
+    // time of the steps after RANSAC in the last frames with a time budget,
+    // kept free of the budget in the next one, -1 before the first
+    private long finishNanos = -1;
+
+    /**
+     * Detect the markers in a frame. Poses are estimated only if the camera
+     * is set.
+     *
+     * @param img the frame
+     * @return all data of the frame
+     */
+    public Container detect(BufferedImage img)
+    {
+        return detectUntil(img, Long.MAX_VALUE);
+    }
+
+    /**
+     * Detect the markers in a frame within a time budget. The edgels of all
+     * regions are scanned at once, as without the budget, then RANSAC runs
+     * on the regions one by one in the order of {@link RegionPriority} -
+     * around the markers of the previous frame first, then the regions with
+     * contrast, then the rest - while the time left is more than the steps
+     * after RANSAC took in the last frames. The regions left out are dropped,
+     * and such a frame is partial, see {@link Container#isPartial()}. The
+     * steps after RANSAC - merge, extension, corners, chains, quadrangles
+     * and decoding - always run, with the segments found so far.
+     * <br/>
+     * Only RANSAC is cut by the budget. The corner tracking, the threshold
+     * engine (also the one tried first by
+     * {@link DetectionEngineEnum#THRESHOLD_FIRST}), the region split, the
+     * edgel scan of all regions and the steps after RANSAC always run whole,
+     * so a frame can take longer than the budget.
+     *
+     * @param img the frame
+     * @param budgetNanos time for the frame, in nanoseconds
+     * @return all data of the frame
+     */
+    public Container detect(BufferedImage img, long budgetNanos)
+    {
+        if (budgetNanos <= 0)
+        {
+            throw new IllegalArgumentException("Time budget must be positive!");
+        }
+
+        return detectUntil(img, System.nanoTime() + budgetNanos);
+    }
+
+    // Long.MAX_VALUE as the deadline to process the frame whole
+    private Container detectUntil(BufferedImage img, long deadline)
+    {
+        long start = System.nanoTime();
+        applyQuality();
+        Container image = detectFrame(img, deadline);
+        if (qualityController != null)
+        {
+            qualityController.update(System.nanoTime() - start);
+        }
+        return image;
+    }
+
+    // Knobs of this frame - the values set in the session, or the ones of
+    // the level of the quality controller. The set values are kept, so they
+    // are back once the controller is turned off.
+    private void applyQuality()
+    {
+        int width = regionWidth;
+        int height = regionHeight;
+        frameVScanLineDistance = vScanLineDistance;
+        frameHScanLineDistance = hScanLineDistance;
+        frameLineIterations = maxLineIterations;
+        if (qualityController != null)
+        {
+            width = qualityController.getRegionSize();
+            height = width;
+            frameVScanLineDistance = qualityController.getScanLineDistance();
+            frameHScanLineDistance = frameVScanLineDistance;
+            frameLineIterations = qualityController.getLineIterations();
+        }
+
+        if (width != frameRegionWidth || height != frameRegionHeight)
+        {
+            frameRegionWidth = width;
+            frameRegionHeight = height;
+            // the carried edgels are kept by the names of the old regions
+            recentEdgels.clear();
+        }
+    }
+
+    private Container detectFrame(BufferedImage img, long deadline)
+    {
+        if (img == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (img.getWidth() != lastWidth || img.getHeight() != lastHeight)
+        {
+            // another stream
+            recentEdgels.clear();
+            trackedQuadrangles.clear();
+            trackedMisses.clear();
+            if (cornerTracker != null)
+            {
+                cornerTracker.clear();
+            }
+            previous = null;
+            olderMarkers.clear();
+            lastWidth = img.getWidth();
+            lastHeight = img.getHeight();
+        }
+
+        if (cornerTracker != null && cornerTracker.hasTargets() && framesSinceKeyframe < keyframeInterval)
+        {
+            Container tracked = cornerTracker.track(img);
+            if (tracked != null)
+            {
+                framesSinceKeyframe++;
+                return finish(tracked);
+            }
+        }
+
+        if (engine != DetectionEngineEnum.EDGELS)
+        {
+            Container fast = new Container(img);
+            thresholdDetector.detectQuadrangles(fast);
+            QuadranglesFilter.filterQuadrangles(fast, minArea, maxSidesRatio, duplicateDistance);
+            decode(fast);
+            if (engine == DetectionEngineEnum.THRESHOLD || !fast.getMarkers().isEmpty())
+            {
+                return finishKeyframe(fast);
+            }
+        }
+
+        Container image = new Container(img);
+        boolean aroundTracked = tracking && !trackedQuadrangles.isEmpty()
+                && framesSinceFullSearch < fullSearchInterval;
+        if (aroundTracked)
+        {
+            RegionSplitter.splitToRegionsAround(image, trackedQuadrangles, trackingMargin, frameRegionWidth,
+                    frameRegionHeight, insetTop, insetLeft, insetBottom, insetRight);
+            framesSinceFullSearch++;
+        }
+        else if (adaptiveRegions)
+        {
+            RegionSplitter.splitToRegionsAdaptive(image, minRegionSize, maxRegionSize, maxEdgeSamples, insetTop,
+                    insetLeft, insetBottom, insetRight);
+            framesSinceFullSearch = 1;
+        }
+        else
+        {
+            RegionSplitter.splitToRegions(image, frameRegionWidth, frameRegionHeight, insetTop, insetLeft,
+                    insetBottom, insetRight);
+            framesSinceFullSearch = 1;
+        }
+        // the contrast estimate is counted once for the density, the interleaving and the priority
+        Map<String, Integer> edgeSamples = scanLineDensity || interleavedPhases > 1 || deadline != Long.MAX_VALUE
+                ? RegionSplitter.countEdgeSamples(image) : null;
+        detectEdgels(image, aroundTracked, edgeSamples);
+        if (deadline != Long.MAX_VALUE)
+        {
+            findSegmentsUntil(image, deadline, edgeSamples);
+        }
+        else
+        {
+            findSegments(image, maxHypotheses);
+        }
+
+        long finishStart = System.nanoTime();
+        findMarkers(image);
+        if (deadline != Long.MAX_VALUE)
+        {
+            // the longest of the last frames, slowly forgotten
+            finishNanos = Math.max(System.nanoTime() - finishStart, finishNanos - finishNanos / 8);
+        }
+        return finishKeyframe(image);
+    }
+
+    // Steps after RANSAC, always with all segments found so far
+    private void findMarkers(Container image)
+    {
+        SegmentsMerger.mergeSegments(image, maxSegments, quantizedAngles);
+        SegmentsExtendor.extendSegments(image, quantizedAngles);
+        CornerDetector.detectCorners(image, cornerThresholds);
+        ChainsDetector.findChains(image, maxBranching, maxSearchSteps, quantizedAngles);
+        QuadranglesExtractor.extractQuadrangles(image);
+        QuadranglesFilter.filterQuadrangles(image, minArea, maxSidesRatio, duplicateDistance);
+        decode(image);
+    }
+
+    private void decode(Container image)
+    {
+        if (sampler == null)
+        {
+            sampler = new MarkerDecoder.Sampler(dictionary != null ? dictionary.getBitsPerSide() : bitsPerSide,
+                    dictionary);
+        }
+        MarkerDecoder.decodeMarkers(image, sampler, minContrast, minConfidence);
+    }
+
+    // Finish a fully detected frame
+    private Container finishKeyframe(Container image)
+    {
+        if (cornerTracker != null)
+        {
+            // every fully detected frame is a keyframe
+            cornerTracker.setKeyframe(image);
+            framesSinceKeyframe = 0;
+        }
+        return finish(image);
+    }
+
+    // Edgels of all regions, in one scan under the edgel budget of the frame
+    private void detectEdgels(Container image, boolean aroundTracked, Map<String, Integer> edgeSamples)
+    {
+        int phases = interleavedPhases;
+        Set<String> fullRegions = new HashSet<String>();
+        Set<String> carryRegions = new HashSet<String>();
+        if (phases > 1)
+        {
+            int phase = frameIndex % phases;
+            scanner.setPhases(phase * frameVScanLineDistance, phase * frameHScanLineDistance);
+            List<Quadrangle> moving = new ArrayList<Quadrangle>();
+            List<Quadrangle> steady = new ArrayList<Quadrangle>();
+            boolean steadyCamera = sortMarkersByMotion(moving, steady);
+            List<int[]> movingAreas = ScanLineDensity.getQuadrangleAreas(moving, trackingMargin);
+            List<int[]> steadyAreas = ScanLineDensity.getQuadrangleAreas(steady, trackingMargin);
+            for (Region region : image.getRegionsMap().values())
+            {
+                // a moving camera moves the carried edgels off the edges, so
+                // the regions with contrast, where a marker can be, are
+                // scanned fully then, for the markers not found yet
+                Integer samples = edgeSamples.get(region.getName());
+                boolean contrast = samples != null && samples >= ScanLineDensity.DEFAULT_MIN_EDGE_SAMPLES;
+                if (ScanLineDensity.overlapsAny(region, movingAreas) || (contrast && !steadyCamera))
+                {
+                    fullRegions.add(region.getName());
+                }
+                else if (steadyCamera || ScanLineDensity.overlapsAny(region, steadyAreas))
+                {
+                    carryRegions.add(region.getName());
+                }
+            }
+        }
+
+        if (scanLineDensity)
+        {
+            Map<String, Integer> distances = ScanLineDensity.planDistances(image, previous, denseScanLineDistance,
+                    coarseScanLineDistance, ScanLineDensity.DEFAULT_MIN_EDGELS,
+                    ScanLineDensity.DEFAULT_MIN_EDGE_SAMPLES, edgeSamples);
+            for (Entry<String, Integer> entry : distances.entrySet())
+            {
+                if (!fullRegions.contains(entry.getKey()))
+                {
+                    entry.setValue(entry.getValue() * phases);
+                }
+            }
+            EdgelDetector.detectEdgels(image, scanner, distances, redThreshold, greenThreshold, blueThreshold,
+                    frameVScanLineDistance * phases, frameHScanLineDistance * phases);
+        }
+        else if (fullRegions.isEmpty())
+        {
+            // the whole image scan would read the pixels outside the few tracked regions too
+            EdgelDetector.detectEdgels(image, scanner, wholeImageScan && !aroundTracked, redThreshold,
+                    greenThreshold, blueThreshold, frameVScanLineDistance * phases, frameHScanLineDistance * phases);
+        }
+        else
+        {
+            // the regions near the moving markers with every scan line, the rest interleaved
+            Map<String, Integer> distances = new HashMap<String, Integer>();
+            for (String name : fullRegions)
+            {
+                distances.put(name, frameVScanLineDistance);
+            }
+            EdgelDetector.detectEdgels(image, scanner, distances, redThreshold, greenThreshold, blueThreshold,
+                    frameVScanLineDistance * phases, frameHScanLineDistance * phases);
+        }
+
+        if (lens != null)
+        {
+            LensUndistortion.undistortEdgels(image, lens);
+        }
+        if (phases > 1)
+        {
+            carryEdgels(image, carryRegions);
+        }
+        frameIndex++;
+    }
+
+    // Sort the quadrangles of the markers of the last two frames by their
+    // motion between them - the ones which moved more than the carry limit,
+    // whose motion is not known yet, or which were lost since the frame
+    // before the last are moving, the rest are steady. Returns true if the
+    // camera is steady - some markers were found in both frames, and all of
+    // them moved less than the limit.
+    private boolean sortMarkersByMotion(List<Quadrangle> moving, List<Quadrangle> steady)
+    {
+        boolean[] matched = new boolean[olderMarkers.size()];
+        int steadyCount = 0;
+        int movingCount = 0;
+        if (previous != null)
+        {
+            for (Marker marker : previous.getMarkers())
+            {
+                Quadrangle q = marker.getQuadrangle();
+                int nearest = -1;
+                float distance = Float.MAX_VALUE;
+                for (int i = 0; i < olderMarkers.size(); i++)
+                {
+                    float d = centersDistance(q, olderMarkers.get(i));
+                    if (d < distance)
+                    {
+                        nearest = i;
+                        distance = d;
+                    }
+                }
+
+                if (nearest < 0 || distance > trackingMargin)
+                {
+                    moving.add(q);
+                    continue;
+                }
+
+                matched[nearest] = true;
+                if (distance <= maxCarryMotion)
+                {
+                    steady.add(q);
+                    steadyCount++;
+                }
+                else
+                {
+                    moving.add(q);
+                    moving.add(olderMarkers.get(nearest));
+                    movingCount++;
+                }
+            }
+        }
+
+        for (int i = 0; i < matched.length; i++)
+        {
+            if (!matched[i])
+            {
+                moving.add(olderMarkers.get(i));
+            }
+        }
+        return steadyCount > 0 && movingCount == 0;
+    }
+
+    // Segments region by region, by the priority, while the time left is
+    // more than the steps after RANSAC need. The edgels are scanned before
+    // for all regions at once, so the edgel budget stays the one of the
+    // frame. The regions left out are dropped from the image.
+    private void findSegmentsUntil(Container image, long deadline, Map<String, Integer> edgeSamples)
+    {
+        List<Region> ordered = RegionPriority.orderRegions(image, previous, RegionPriority.DEFAULT_MARGIN,
+                RegionPriority.DEFAULT_MIN_EDGE_SAMPLES, edgeSamples);
+        int regionHypotheses = maxHypotheses == Integer.MAX_VALUE ? Integer.MAX_VALUE
+                : Math.max(1, maxHypotheses / Math.max(1, ordered.size()));
+        long cutoff = deadline - (finishNanos >= 0 ? finishNanos : (deadline - System.nanoTime()) / 4);
+
+        Map<String, Region> regionsMap = new HashMap<String, Region>();
+        Map<String, List<Edgel>> edgelsMap = new HashMap<String, List<Edgel>>();
+        Map<String, List<LineSegment>> segmentsMap = new HashMap<String, List<LineSegment>>();
+        Map<String, Region> singleRegion = new HashMap<String, Region>();
+        Map<String, List<Edgel>> singleEdgels = new HashMap<String, List<Edgel>>();
+        Container part = new Container(image.getImage());
+        int cutRegions = 0;
+        for (Region region : ordered)
+        {
+            if (System.nanoTime() > cutoff)
+            {
+                image.setPartial(true);
+                break;
+            }
+
+            List<Edgel> edgels = image.getEdgelsMap().get(region.getName());
+            regionsMap.put(region.getName(), region);
+            if (edgels == null)
+            {
+                continue;
+            }
+
+            singleRegion.clear();
+            singleRegion.put(region.getName(), region);
+            singleEdgels.clear();
+            singleEdgels.put(region.getName(), edgels);
+            part.setRegionsMap(singleRegion);
+            part.setEdgelsMap(singleEdgels);
+            findSegments(part, regionHypotheses);
+
+            edgelsMap.put(region.getName(), edgels);
+            segmentsMap.putAll(part.getSegmentsMap());
+            cutRegions += part.getCutRegionsCount();
+        }
+
+        image.setRegionsMap(regionsMap);
+        image.setEdgelsMap(edgelsMap);
+        image.setSegmentsMap(segmentsMap);
+        image.setCutRegionsCount(cutRegions);
+    }
+
+    // Line segments by the set strategy, or by RANSAC with the session values
+    private void findSegments(Container image, int hypotheses)
+    {
+        if (segmentFinder != null)
+        {
+            segmentFinder.detectSegments(image);
+        }
+        else
+        {
+            ransac.setValues(minEdgelsCount, maxEdgelsIterations, frameLineIterations, distanceToLine,
+                    compatibilityValue);
+            ransac.setMaxHypotheses(hypotheses);
+            ransac.detectSegments(image);
+        }
+    }
+
+    // Steps after the markers are found, for detected and corner tracked frames
+    private Container finish(Container image)
+    {
+        olderMarkers.clear();
+        if (previous != null)
+        {
+            for (Marker marker : previous.getMarkers())
+            {
+                olderMarkers.add(marker.getQuadrangle());
+            }
+        }
+        previous = image;
+        if (tracking)
+        {
+            track(image);
+        }
+
+        if (lens != null)
+        {
+            LensUndistortion.undistortQuadrangles(image, lens);
+        }
+
+        if (poseEstimator != null)
+        {
+            poseEstimator.estimatePoses(image);
+        }
+
+        return image;
+    }
+
+    // Track the markers of this frame. A missed marker keeps its last
+    // quadrangle for a few frames, then the whole next frame is searched.
+    private void track(Container image)
+    {
+        List<Quadrangle> quadrangles = new ArrayList<Quadrangle>();
+        List<Integer> misses = new ArrayList<Integer>();
+        for (Marker marker : image.getMarkers())
+        {
+            quadrangles.add(marker.getQuadrangle());
+            misses.add(0);
+        }
+
+        for (int i = 0; i < trackedQuadrangles.size(); i++)
+        {
+            Quadrangle last = trackedQuadrangles.get(i);
+            boolean found = false;
+            for (int j = 0; j < image.getMarkers().size() && !found; j++)
+            {
+                found = isNear(last, quadrangles.get(j));
+            }
+
+            if (found)
+            {
+                continue;
+            }
+
+            int missed = trackedMisses.get(i) + 1;
+            if (missed > DEFAULT_MAX_MISSED_FRAMES)
+            {
+                // lost
+                framesSinceFullSearch = fullSearchInterval;
+            }
+            else
+            {
+                quadrangles.add(last);
+                misses.add(missed);
+            }
+        }
+
+        trackedQuadrangles = quadrangles;
+        trackedMisses = misses;
+    }
+
+    // true if the centers of the quadrangles are closer than the tracking margin
+    private boolean isNear(Quadrangle a, Quadrangle b)
+    {
+        return centersDistance(a, b) <= trackingMargin;
+    }
+
+    private static float centersDistance(Quadrangle a, Quadrangle b)
+    {
+        float dX = (a.getP1().x + a.getP2().x + a.getP3().x + a.getP4().x
+                - b.getP1().x - b.getP2().x - b.getP3().x - b.getP4().x) / 4f;
+        float dY = (a.getP1().y + a.getP2().y + a.getP3().y + a.getP4().y
+                - b.getP1().y - b.getP2().y - b.getP3().y - b.getP4().y) / 4f;
+        return (float) Math.sqrt(dX * dX + dY * dY);
+    }
+
+    // Add the edgels of the last frames to the edgels of this frame, into
+    // the given regions of this frame, and keep the edgels of this frame.
+    // The RANSAC fits the lines to the edgels of all phases together.
+    private void carryEdgels(Container image, Set<String> carryRegions)
+    {
+        Map<String, List<Edgel>> found = image.getEdgelsMap();
+        Map<String, List<Edgel>> edgelsMap = new HashMap<String, List<Edgel>>();
+        for (Entry<String, List<Edgel>> entry : found.entrySet())
+        {
+            edgelsMap.put(entry.getKey(), new ArrayList<Edgel>(entry.getValue()));
+        }
+
+        for (Map<String, List<Edgel>> recent : recentEdgels)
+        {
+            for (Entry<String, List<Edgel>> entry : recent.entrySet())
+            {
+                if (!carryRegions.contains(entry.getKey()))
+                {
+                    continue;
+                }
+
+                List<Edgel> edgels = edgelsMap.get(entry.getKey());
+                if (edgels == null)
+                {
+                    edgels = new ArrayList<Edgel>();
+                    edgelsMap.put(entry.getKey(), edgels);
+                }
+                edgels.addAll(entry.getValue());
+            }
+        }
+
+        recentEdgels.addFirst(found);
+        while (recentEdgels.size() >= interleavedPhases)
+        {
+            recentEdgels.removeLast();
+        }
+        image.setEdgelsMap(edgelsMap);
+    }
+
+    /**
+     * @param regionWidthArg custom region width
+     * @param regionHeightArg custom region height
+     */
+    public void setRegionSize(int regionWidthArg, int regionHeightArg)
+    {
+        regionWidth = regionWidthArg;
+        regionHeight = regionHeightArg;
+    }
+
+    /**
+     * Split the image adaptively by the edge density inside the insets,
+     * instead of the fixed region size
+     * @param minRegionSizeArg custom smallest region side
+     * @param maxRegionSizeArg custom largest region side
+     * @param maxEdgeSamplesArg custom limit of edge samples, over which a block is split
+     */
+    public void setAdaptiveRegions(int minRegionSizeArg, int maxRegionSizeArg, int maxEdgeSamplesArg)
+    {
+        adaptiveRegions = true;
+        minRegionSize = minRegionSizeArg;
+        maxRegionSize = maxRegionSizeArg;
+        maxEdgeSamples = maxEdgeSamplesArg;
+    }
+
+    /**
+     * @param adaptiveRegionsArg true to split the image adaptively by the edge
+     *        density, see {@link RegionSplitter#splitToRegionsAdaptive(Container)}
+     */
+    public void setAdaptiveRegions(boolean adaptiveRegionsArg)
+    {
+        adaptiveRegions = adaptiveRegionsArg;
+    }
+
+    /**
+     * Track the markers of a video stream - make regions only around the
+     * markers of the previous frame, extended by the margin. The whole frame
+     * is searched every fullSearchIntervalArg frames, for new markers, and
+     * whenever a marker is lost - missed in more than
+     * {@link #DEFAULT_MAX_MISSED_FRAMES} frames in a row.
+     * @param trackingMarginArg custom margin around the markers, for their motion between frames
+     * @param fullSearchIntervalArg custom frames from one search of the whole frame to the next
+     */
+    public void setTracking(int trackingMarginArg, int fullSearchIntervalArg)
+    {
+        if (trackingMarginArg < 0)
+        {
+            throw new IllegalArgumentException("Margin can't be negative!");
+        }
+
+        if (fullSearchIntervalArg < 1)
+        {
+            throw new IllegalArgumentException("Full search interval must be positive!");
+        }
+
+        tracking = true;
+        trackingMargin = trackingMarginArg;
+        fullSearchInterval = fullSearchIntervalArg;
+        trackedQuadrangles.clear();
+        trackedMisses.clear();
+    }
+
+    /**
+     * @param trackingArg true to track the markers of a video stream, see
+     *        {@link #setTracking(int, int)}
+     */
+    public void setTracking(boolean trackingArg)
+    {
+        tracking = trackingArg;
+        trackedQuadrangles.clear();
+        trackedMisses.clear();
+    }
+
+    /**
+     * Track the corners of the markers of a video stream, see
+     * {@link CornerTracker}. Between keyframes, the corners of the last frame
+     * are tracked and verified instead of the whole detection, which runs
+     * again every keyframeIntervalArg frames and whenever a marker is lost.
+     * New markers are found only on keyframes.
+     * @param keyframeIntervalArg custom frames from one keyframe to the next
+     */
+    public void setCornerTracking(int keyframeIntervalArg)
+    {
+        if (keyframeIntervalArg < 1)
+        {
+            throw new IllegalArgumentException("Keyframe interval must be positive!");
+        }
+
+        cornerTracker = new CornerTracker();
+        cornerTracker.setQuantizedAngles(quantizedAngles);
+        keyframeInterval = keyframeIntervalArg;
+    }
+
+    /**
+     * @param cornerTrackingArg true to track the corners of the markers of a
+     *        video stream, see {@link #setCornerTracking(int)}
+     */
+    public void setCornerTracking(boolean cornerTrackingArg)
+    {
+        cornerTracker = cornerTrackingArg ? new CornerTracker() : null;
+        if (cornerTracker != null)
+        {
+            cornerTracker.setQuantizedAngles(quantizedAngles);
+        }
+    }
+
+    /**
+     * Insets of the image, a frame which won't be processed
+     */
+    public void setInsets(int insetTopArg, int insetLeftArg, int insetBottomArg, int insetRightArg)
+    {
+        insetTop = insetTopArg;
+        insetLeft = insetLeftArg;
+        insetBottom = insetBottomArg;
+        insetRight = insetRightArg;
+    }
+
+    /**
+     * @param redThresholdArg custom threshold for R channel
+     * @param greenThresholdArg custom threshold for G channel
+     * @param blueThresholdArg custom threshold for B channel
+     */
+    public void setEdgelThresholds(int redThresholdArg, int greenThresholdArg, int blueThresholdArg)
+    {
+        redThreshold = redThresholdArg;
+        greenThreshold = greenThresholdArg;
+        blueThreshold = blueThresholdArg;
+    }
+
+    /**
+     * @param vScanLineDistanceArg distance between vertical scan lines
+     * @param hScanLineDistanceArg distance between horizontal scan lines
+     */
+    public void setScanLineDistances(int vScanLineDistanceArg, int hScanLineDistanceArg)
+    {
+        vScanLineDistance = vScanLineDistanceArg;
+        hScanLineDistance = hScanLineDistanceArg;
+    }
+
+    /**
+     * @param wholeImageScanArg true to run the scan lines over the whole image
+     *        instead of every region, see {@link EdgelDetector.Scanner#scanImage}
+     */
+    public void setWholeImageScan(boolean wholeImageScanArg)
+    {
+        wholeImageScan = wholeImageScanArg;
+    }
+
+    /**
+     * Interleave the scan lines of the frames of a video stream, with the
+     * default limit of the motion, see {@link #setInterleavedScan(int, float)}
+     * @param phasesArg count of phases, 1 to scan every frame fully
+     */
+    public void setInterleavedScan(int phasesArg)
+    {
+        setInterleavedScan(phasesArg, DEFAULT_MAX_CARRY_MOTION);
+    }
+
+    /**
+     * Interleave the scan lines of the frames of a video stream - every frame
+     * runs every phasesArg-th scan line, at a phase rotating from frame to
+     * frame, and the edgels of the last phasesArg - 1 frames are carried
+     * forward. The image is covered with the scan line distances over
+     * phasesArg frames.
+     * <br/>
+     * The motion moves the carried edgels off the edges of this frame, so
+     * it is decided region by region. The regions around the markers of the
+     * last two frames, which moved more than maxCarryMotionArg between them,
+     * whose motion is not known yet, or which were lost, are scanned fully
+     * and get no carried edgels. The regions around the steady markers are
+     * interleaved and get the carried edgels. The rest is interleaved too,
+     * and gets the carried edgels while the camera is steady - all markers
+     * found in the last two frames are steady. Otherwise the regions with
+     * contrast, by the estimate of {@link ScanLineDensity}, are scanned
+     * fully, so a marker not found yet is not missed for the sparse lines,
+     * and the background is scanned only at every phasesArg-th line.
+     * @param phasesArg count of phases, 1 to scan every frame fully
+     * @param maxCarryMotionArg custom motion of the markers, in pixels, up to which the edgels are carried
+     */
+    public void setInterleavedScan(int phasesArg, float maxCarryMotionArg)
+    {
+        if (phasesArg < 1)
+        {
+            throw new IllegalArgumentException("Phases must be positive!");
+        }
+
+        if (maxCarryMotionArg < 0)
+        {
+            throw new IllegalArgumentException("Motion can't be negative!");
+        }
+
+        interleavedPhases = phasesArg;
+        maxCarryMotion = maxCarryMotionArg;
+        frameIndex = 0;
+        recentEdgels.clear();
+        scanner.setPhases(0, 0);
+    }
+
+    /**
+     * Scan every region with its own scan line distance - dense where the
+     * previous frame found edgels, segments or quadrangles or where the
+     * contrast is high, coarse in the background, see {@link ScanLineDensity}.
+     * Replaces the scan line distances and the whole image scan.
+     * @param denseDistanceArg custom scan line distance of the dense regions
+     * @param coarseDistanceArg custom scan line distance of the background regions
+     */
+    public void setScanLineDensity(int denseDistanceArg, int coarseDistanceArg)
+    {
+        if (denseDistanceArg <= 0 || coarseDistanceArg <= 0)
+        {
+            throw new IllegalArgumentException("Scan line distance must be positive!");
+        }
+
+        scanLineDensity = true;
+        denseScanLineDistance = denseDistanceArg;
+        coarseScanLineDistance = coarseDistanceArg;
+    }
+
+    /**
+     * @param scanLineDensityArg true to scan every region with its own scan
+     *        line distance, see {@link #setScanLineDensity(int, int)}
+     */
+    public void setScanLineDensity(boolean scanLineDensityArg)
+    {
+        scanLineDensity = scanLineDensityArg;
+    }
+
+    /**
+     * Compare the edgels and the segments by their quantized angles, or by
+     * the float directions as before the angle tables. The choice holds only
+     * for this session, other sessions keep their own.
+     * @param quantizedAnglesArg true to compare the quantized angles
+     */
+    public void setQuantizedAngles(boolean quantizedAnglesArg)
+    {
+        quantizedAngles = quantizedAnglesArg;
+        scanner.setQuantizedAngles(quantizedAnglesArg);
+        ransac.setQuantizedAngles(quantizedAnglesArg);
+        if (cornerTracker != null)
+        {
+            cornerTracker.setQuantizedAngles(quantizedAnglesArg);
+        }
+    }
+
+    /**
+     * Bound the work of textured frames - keep only the strongest edgels of a
+     * region and of the frame, share a budget of line hypotheses among the
+     * regions and take only the longest segments into the global merge. A
+     * frame over a budget is processed with the reduced work, see
+     * {@link Container#isBudgetHit()}.
+     * @param maxRegionEdgelsArg custom limit of edgels in a region
+     * @param maxEdgelsArg custom limit of edgels in the frame
+     * @param maxHypothesesArg custom limit of line hypotheses in the frame
+     * @param maxSegmentsArg custom limit of segments into the global merge
+     */
+    public void setBudgets(int maxRegionEdgelsArg, int maxEdgelsArg, int maxHypothesesArg, int maxSegmentsArg)
+    {
+        if (maxHypothesesArg <= 0 || maxSegmentsArg <= 0)
+        {
+            throw new IllegalArgumentException("Budget must be positive!");
+        }
+
+        scanner.setBudget(maxRegionEdgelsArg, maxEdgelsArg);
+        maxHypotheses = maxHypothesesArg;
+        maxSegments = maxSegmentsArg;
+    }
+
+    /**
+     * @param budgetsArg true to bound the work of textured frames with the
+     *        default budgets, see {@link #setBudgets(int, int, int, int)}
+     */
+    public void setBudgets(boolean budgetsArg)
+    {
+        if (budgetsArg)
+        {
+            setBudgets(EdgelDetector.DEFAULT_MAX_REGION_EDGELS, EdgelDetector.DEFAULT_MAX_EDGELS,
+                    SegmentsFinder.DEFAULT_MAX_HYPOTHESES, SegmentsMerger.DEFAULT_MAX_SEGMENTS);
+        }
+        else
+        {
+            setBudgets(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * RANSAC values, see {@link SegmentsFinder#detectSegments(Container, int, int, int, float, float)}
+     */
+    public void setSegmentsValues(int minEdgelsCountArg, int maxEdgelsIterationsArg, int maxLineIterationsArg,
+            float distanceToLineArg, float compatibilityValueArg)
+    {
+        minEdgelsCount = minEdgelsCountArg;
+        maxEdgelsIterations = maxEdgelsIterationsArg;
+        maxLineIterations = maxLineIterationsArg;
+        distanceToLine = distanceToLineArg;
+        compatibilityValue = compatibilityValueArg;
+    }
+
+    /**
+     * Find the line segments with another strategy than RANSAC, for example
+     * {@link HoughSegmentFinder}. The strategy keeps its own values, the
+     * RANSAC values, the hypotheses budget and the quality controller don't
+     * apply to it.
+     * @param segmentFinderArg strategy to find the line segments, NULL for RANSAC
+     */
+    public void setSegmentFinder(SegmentFinderStrategy segmentFinderArg)
+    {
+        segmentFinder = segmentFinderArg;
+    }
+
+    /**
+     * @param cornerThresholdsArg custom lower and upper thresholds of the R, G, B channels for the corner check
+     */
+    public void setCornerThresholds(int[][] cornerThresholdsArg)
+    {
+        cornerThresholds = cornerThresholdsArg;
+    }
+
+    /**
+     * @param maxBranchingArg custom limit of connecting lines kept for every line end
+     * @param maxSearchStepsArg custom limit of chain search steps for the whole frame
+     */
+    public void setChainsLimits(int maxBranchingArg, int maxSearchStepsArg)
+    {
+        maxBranching = maxBranchingArg;
+        maxSearchSteps = maxSearchStepsArg;
+    }
+
+    /**
+     * @param minAreaArg custom minimum area of a quadrangle in pixels
+     * @param maxSidesRatioArg custom maximum ratio of the longest to the shortest side
+     * @param duplicateDistanceArg custom distance of matching corners, as part of the mean side
+     */
+    public void setFilterLimits(float minAreaArg, float maxSidesRatioArg, float duplicateDistanceArg)
+    {
+        minArea = minAreaArg;
+        maxSidesRatio = maxSidesRatioArg;
+        duplicateDistance = duplicateDistanceArg;
+    }
+
+    /**
+     * Decode markers without a dictionary
+     * @param bitsPerSideArg custom count of bit cells per marker side
+     */
+    public void setBitsPerSide(int bitsPerSideArg)
+    {
+        if (bitsPerSideArg < 1 || bitsPerSideArg > 8)
+        {
+            throw new IllegalArgumentException("Bits per side must be between 1 and 8!");
+        }
+
+        bitsPerSide = bitsPerSideArg;
+        dictionary = null;
+        sampler = null;
+    }
+
+    /**
+     * Decode only the markers in the dictionary
+     * @param dictionaryArg known marker codes
+     */
+    public void setDictionary(MarkerDictionary dictionaryArg)
+    {
+        if (dictionaryArg == null)
+        {
+            throw new IllegalArgumentException("Dictionary can't be NULL!");
+        }
+
+        dictionary = dictionaryArg;
+        sampler = null;
+    }
+
+    /**
+     * @param minContrastArg custom minimum gray difference of the quiet zone and the border
+     * @param minConfidenceArg custom minimum confidence of the reading
+     */
+    public void setDecoderLimits(int minContrastArg, float minConfidenceArg)
+    {
+        minContrast = minContrastArg;
+        minConfidence = minConfidenceArg;
+    }
+
+    /**
+     * Choose the engine of the detection, the threshold engine with default
+     * values, see {@link ThresholdDetector}
+     * @param engineArg engine of the detection
+     */
+    public void setEngine(DetectionEngineEnum engineArg)
+    {
+        setEngine(engineArg, new ThresholdDetector());
+    }
+
+    /**
+     * Choose the engine of the detection. The threshold engine finds the
+     * quadrangles of the dark blobs instead of the steps from the edgels to
+     * the quadrangles, they are filtered and decoded the same way. With
+     * {@link DetectionEngineEnum#THRESHOLD_FIRST} the edgels pipeline runs
+     * only for the frames, where the threshold engine decodes no marker.
+     * The time budget of a frame applies to the edgels pipeline only.
+     * @param engineArg engine of the detection
+     * @param thresholdDetectorArg custom detector of the threshold engine
+     */
+    public void setEngine(DetectionEngineEnum engineArg, ThresholdDetector thresholdDetectorArg)
+    {
+        if (engineArg == null)
+        {
+            throw new IllegalArgumentException("Engine can't be NULL!");
+        }
+
+        if (thresholdDetectorArg == null)
+        {
+            throw new IllegalArgumentException("Threshold detector can't be NULL!");
+        }
+
+        engine = engineArg;
+        thresholdDetector = thresholdDetectorArg;
+    }
+
+    /**
+     * Hold a target frame rate - the controller sets the scan line distances,
+     * the region size and the RANSAC hypotheses of the line search before
+     * every frame, instead of their values set in the session, and takes the
+     * time of every frame. The values set in the session are kept, and used
+     * again when the controller is turned off.
+     * <br/>
+     * The adaptive split keeps its own region sizes, and the scan line
+     * density its own distances. A set {@link SegmentFinderStrategy}, the
+     * Hough transform or the chaining, gets the edgels of the scan line
+     * distance and the regions of the region size, but the RANSAC hypotheses
+     * don't apply to it, and the level doesn't change its own parameters.
+     * @param qualityControllerArg controller with the target frame rate and its metrics, NULL to turn off
+     */
+    public void setQualityController(QualityController qualityControllerArg)
+    {
+        qualityController = qualityControllerArg;
+    }
+
+    /**
+     * Remove the lens distortion from the edgels and the quadrangle corners
+     * @param lensArg lookup table for the frame size, NULL to turn off
+     */
+    public void setLens(LensUndistortion lensArg)
+    {
+        lens = lensArg;
+    }
+
+    /**
+     * Estimate the poses of the markers
+     * @param cameraArg camera intrinsics, NULL to turn off
+     * @param markerSizeArg side of the black marker square, in the units of the translation
+     */
+    public void setCamera(CameraIntrinsics cameraArg, double markerSizeArg)
+    {
+        poseEstimator = cameraArg != null ? new PoseEstimator(cameraArg, markerSizeArg) : null;
+    }
+}
@@ -1,17 +1,16 @@
 package neandertal.jaugre.core;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import neandertal.jaugre.core.data.Container;
 import neandertal.jaugre.core.data.Edgel;
-import neandertal.jaugre.core.data.EdgelTypeEnum;
+import neandertal.jaugre.core.data.EdgelBuffer;
+import neandertal.jaugre.core.data.QuantizedAngle;
 import neandertal.jaugre.core.data.Region;
 
 
@@ -20,6 +19,17 @@ import neandertal.jaugre.core.data.Region;
  * Detects edgels in image, for every region. Edgels are detected along
  * scan lines, which are at X pixel distance. Both horizontal and vertical
  * scan lines are used, which produces vertical and horizontal edgels.
+ * The edgels get a sub-pixel position along their scan line, from a
+ * parabola fitted to the responses around the peak.
+ * <br/>
+ * The scanner can be given an edgel budget for textured frames - only the
+ * strongest edgels of a region and of the whole frame are kept, so the
+ * following steps get a bounded count of edgels.
+ * <br/>
+ * The direction of an edgel is quantized from the integer Sobel gradient
+ * with {@link QuantizedAngle}, the normalized direction is taken from its
+ * table - unless the quantized angles are switched off, then it is
+ * normalized from the gradient.
  * <br/>
  * Uses:<br/>
  * <a href="http://www.stat.wisc.edu/~mchung/teaching/MIA/reading/diffusion.gaussian.kernel.pdf">Gaussian Kernel</a><br/>
@@ -49,6 +59,20 @@ public class EdgelDetector
      */
     private static final int pixFrame = GAUSS_KERNEL.length / 2;
 
+    /**
+     * Vertical scan lines read together, row by row
+     */
+    public static final int DEFAULT_BLOCK_COLUMNS = 16;
+
+    // cells of the region lookup of the whole image scan, 8x8 pixels
+    private static final int LOOKUP_CELL_BITS = 3;
+
+    /** Edgels kept in a region by the budget, RANSAC of a region is bounded by it */
+    public static final int DEFAULT_MAX_REGION_EDGELS = 96;
+
+    /** Edgels kept in the whole frame by the budget */
+    public static final int DEFAULT_MAX_EDGELS = 4096;
+
     /**
      * Lower limit for the Gauss function for each RGB channel pixel. Only if in
      * all 3 channels the pixel Gauss value exceeds this threshold, can it be
@@ -109,6 +133,94 @@ public class EdgelDetector
      */
     public static Map<String, List<Edgel>> detectEdgels(Container image, int redThresholdArg, int greenThresholdArg,
             int blueThresholdArg, int vScanLineDistArg, int hScanLineDistArg)
+    {
+        return detectEdgels(image, new Scanner(), redThresholdArg, greenThresholdArg, blueThresholdArg,
+                vScanLineDistArg, hScanLineDistArg);
+    }
+
+    /**
+     * Detects edgels in image, for every region, as
+     * {@link #detectEdgels(Container, int, int, int, int, int)} does, with a
+     * scanner which keeps its buffers for the next images.
+     * 
+     * @param image contains all needed data
+     * @param scanner reusable scan line buffers
+     * @return map of region names to the list of region's edgels
+     */
+    public static Map<String, List<Edgel>> detectEdgels(Container image, Scanner scanner, int redThreshold,
+            int greenThreshold, int blueThreshold, int vScanLineDist, int hScanLineDist)
+    {
+        return detectEdgels(image, scanner, false, redThreshold, greenThreshold, blueThreshold, vScanLineDist,
+                hScanLineDist);
+    }
+
+    /**
+     * Detects edgels in image, for every region, with a scanner which keeps
+     * its buffers for the next images.
+     * 
+     * @param image contains all needed data
+     * @param scanner reusable scan line buffers
+     * @param wholeImage true to run the scan lines over the whole image and
+     *        bucket the edgels to the regions, see {@link Scanner#scanImage}
+     * @return map of region names to the list of region's edgels
+     */
+    public static Map<String, List<Edgel>> detectEdgels(Container image, Scanner scanner, boolean wholeImage,
+            int redThreshold, int greenThreshold, int blueThreshold, int vScanLineDist, int hScanLineDist)
+    {
+        checkArguments(image, scanner, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+
+        if (wholeImage)
+        {
+            scanner.scanImage(image, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+        }
+        else
+        {
+            scanner.scan(image, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+        }
+        image.setEdgelsMap(scanner.toEdgelsMap());
+        image.setDroppedEdgelsCount(scanner.getDroppedCount());
+
+        return image.getEdgelsMap();
+    }
+
+    /**
+     * Detects edgels in image, for every region, with the scan line distance
+     * of every region from the map - see {@link ScanLineDensity}. Regions
+     * missing in the map are scanned with the given distances.
+     * 
+     * @param image contains all needed data
+     * @param scanner reusable scan line buffers
+     * @param distances scan line distance of every region name, in both directions
+     * @return map of region names to the list of region's edgels
+     */
+    public static Map<String, List<Edgel>> detectEdgels(Container image, Scanner scanner,
+            Map<String, Integer> distances, int redThreshold, int greenThreshold, int blueThreshold,
+            int vScanLineDist, int hScanLineDist)
+    {
+        checkArguments(image, scanner, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+
+        if (distances == null)
+        {
+            throw new IllegalArgumentException("Distances map can't be NULL!");
+        }
+
+        for (Integer distance : distances.values())
+        {
+            if (distance == null || distance <= 0)
+            {
+                throw new IllegalArgumentException("Scan line distance must be positive!");
+            }
+        }
+
+        scanner.scan(image, distances, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+        image.setEdgelsMap(scanner.toEdgelsMap());
+        image.setDroppedEdgelsCount(scanner.getDroppedCount());
+
+        return image.getEdgelsMap();
+    }
+
+    private static void checkArguments(Container image, Scanner scanner, int redThreshold, int greenThreshold,
+            int blueThreshold, int vScanLineDist, int hScanLineDist)
     {
         if (image == null || image.getImage() == null)
         {
@@ -120,154 +232,721 @@ public class EdgelDetector
             throw new IllegalArgumentException("Regions map can't be NULL!");
         }
 
-        if (vScanLineDistArg <= 0 || hScanLineDistArg <= 0)
+        if (scanner == null)
+        {
+            throw new IllegalArgumentException("Scanner can't be NULL!");
+        }
+
+        if (vScanLineDist <= 0 || hScanLineDist <= 0)
         {
             throw new IllegalArgumentException("Scan line distance must be positive!");
         }
 
-        if (redThresholdArg > 2040 || greenThresholdArg > 2040 || blueThresholdArg > 2040)
+        if (redThreshold > 2040 || greenThreshold > 2040 || blueThreshold > 2040)
         {
             throw new IllegalArgumentException("Threshold is out of range!");
         }
-
-        internalDetectEdgels(image, redThresholdArg, greenThresholdArg, blueThresholdArg, vScanLineDistArg,
-                hScanLineDistArg);
-
-        return image.getEdgelsMap();
     }
 
-    // Detect edgels for each region
-    private static void internalDetectEdgels(Container image, int redThreshold, int greenThreshold, int blueThreshold,
-            int vScanLineDist, int hScanLineDist)
+    /**
+     * Scans the regions of an image. Keeps the scan line buffers, sized to the
+     * largest region, and collects the edgels in primitive arrays, so the scan
+     * allocates nothing once the buffers are big enough. The edgel objects
+     * for the following steps are made by {@link #toEdgelsMap()}, which is
+     * the only allocation of the stage. Reused for the next images, not
+     * thread safe - use one per thread.
+     */
+    public static class Scanner
     {
-        Map<String, List<Edgel>> edgelsPerRegion = new HashMap<String, List<Edgel>>();
+        private int blockColumns;
+        // offsets of the first scan lines
+        private int verticalPhase;
+        private int horizontalPhase;
+        private int[] block = new int[0];
+        private int[] scanline = new int[0];
+        private int[] redChannel = new int[0];
+        private int[] greenChannel = new int[0];
+        private int[] blueChannel = new int[0];
+        private int[] positions = new int[0];
+        private float[] offsets = new float[0];
+        private int[] strengths = new int[0];
+        private int[] area = new int[9];
+        private int[] gradient = new int[2];
+        private float[] direction = new float[2];
+
+        private EdgelBuffer edgels = new EdgelBuffer();
+        // scanned regions, the first position in the order of every region
+        private Region[] regions = new Region[0];
+        private int[] regionStarts = new int[1];
+        private int regionsCount;
+        // edgel indices ordered by region
+        private int[] order = new int[0];
 
-        Collection<Region> regions = image.getRegionsMap().values();
+        // bucketing of the whole image scan
+        private int[] edgelRegions = new int[0];
+        private int[] cellStarts = new int[0];
+        private int[] cellRegions = new int[0];
+        private int[] fill = new int[0];
 
-        Iterator<Region> iter = regions.iterator();
-        while (iter.hasNext())
+        // budget, and the edgels it dropped in the last scan
+        private int maxRegionEdgels = Integer.MAX_VALUE;
+        private int maxEdgels = Integer.MAX_VALUE;
+        private int droppedCount;
+        // strength and position in the order, to sort by the strength
+        private long[] keys = new long[0];
+        // directions of the edgels from their quantized angles, or normalized gradients
+        private boolean quantizedAngles = true;
+
+        /**
+         * Scanner reading the vertical scan lines in blocks of the default width
+         */
+        public Scanner()
         {
-            Region region = iter.next();
-            List<Edgel> edgelsInRegion = detectEdgelsInRegion(region, image.getImage(), redThreshold, greenThreshold,
-                    blueThreshold, vScanLineDist, hScanLineDist);
+            this(DEFAULT_BLOCK_COLUMNS);
+        }
 
-            edgelsPerRegion.put(region.getName(), edgelsInRegion);
+        /**
+         * @param blockColumnsArg custom count of vertical scan lines read together, 1 reads every line alone
+         */
+        public Scanner(int blockColumnsArg)
+        {
+            if (blockColumnsArg <= 0)
+            {
+                throw new IllegalArgumentException("Block columns must be positive!");
+            }
+
+            blockColumns = blockColumnsArg;
         }
 
-        image.setEdgelsMap(edgelsPerRegion);
-    }
+        /**
+         * Offset the scan lines, so the first vertical scan line is at
+         * verticalPhaseArg from the left of a region (or of the image for
+         * {@link #scanImage}) and the first horizontal at horizontalPhaseArg
+         * from the top. Rotating the phase from frame to frame covers the
+         * lines between sparse scan lines over a few frames.
+         * @param verticalPhaseArg offset of the vertical scan lines, 0 by default
+         * @param horizontalPhaseArg offset of the horizontal scan lines, 0 by default
+         */
+        public void setPhases(int verticalPhaseArg, int horizontalPhaseArg)
+        {
+            if (verticalPhaseArg < 0 || horizontalPhaseArg < 0)
+            {
+                throw new IllegalArgumentException("Phases can't be negative!");
+            }
 
-    // Return list of edgels in the given region
-    private static List<Edgel> detectEdgelsInRegion(Region region, BufferedImage img, int redThreshold,
-            int greenThreshold, int blueThreshold, int vScanLineDistance, int hScanLineDistance)
-    {
-        List<Edgel> edgelsList = new LinkedList<Edgel>();
+            verticalPhase = verticalPhaseArg;
+            horizontalPhase = horizontalPhaseArg;
+        }
+
+        /**
+         * Keep only the strongest edgels of the scans - at most
+         * maxRegionEdgelsArg in every region, and then at most maxEdgelsArg in
+         * the whole image. The weakest edgels are dropped, the kept ones stay
+         * in the order of the scan.
+         * @param maxRegionEdgelsArg custom limit of edgels in a region, Integer.MAX_VALUE for none
+         * @param maxEdgelsArg custom limit of edgels in the image, Integer.MAX_VALUE for none
+         */
+        public void setBudget(int maxRegionEdgelsArg, int maxEdgelsArg)
+        {
+            if (maxRegionEdgelsArg <= 0 || maxEdgelsArg <= 0)
+            {
+                throw new IllegalArgumentException("Edgel budget must be positive!");
+            }
+
+            maxRegionEdgels = maxRegionEdgelsArg;
+            maxEdgels = maxEdgelsArg;
+        }
+
+        /**
+         * Directions of the edgels - from their quantized angles, so the
+         * following steps compare the same directions, or the normalized
+         * gradients, to compare the accuracy of both
+         * @param quantizedAnglesArg true for the quantized angles, the default, false for the float directions
+         */
+        public void setQuantizedAngles(boolean quantizedAnglesArg)
+        {
+            quantizedAngles = quantizedAnglesArg;
+        }
+
+        /**
+         * @return count of the edgels dropped by the budget in the last scan
+         */
+        public int getDroppedCount()
+        {
+            return droppedCount;
+        }
 
-        // Vertical
-        int upper = region.getX() + region.getWidth();
-        for (int i = region.getX(); i < upper; i += vScanLineDistance)
+        /**
+         * Scan all regions of the image into {@link #getEdgels()}, the edgels
+         * of the previous scan are dropped
+         */
+        public void scan(Container image, int redThreshold, int greenThreshold, int blueThreshold,
+                int vScanLineDist, int hScanLineDist)
         {
-            int[] scanline = new int[region.getHeight() + 2 * pixFrame];
-            scanline = img.getRGB(i, region.getY() - pixFrame, 1, scanline.length, scanline, 0, 1);
+            scan(image, null, redThreshold, greenThreshold, blueThreshold, vScanLineDist, hScanLineDist);
+        }
 
-            int[] vEdgelsPos = detectEdgelsInScanline(scanline, redThreshold, greenThreshold, blueThreshold);
+        /**
+         * Scan all regions of the image into {@link #getEdgels()}, every region
+         * with its own scan line distance from the map, or with the given
+         * distances if it is missing there or the map is NULL. The phases are
+         * scaled by the distance of the region to the given distances. The
+         * edgels of the previous scan are dropped.
+         */
+        public void scan(Container image, Map<String, Integer> distances, int redThreshold, int greenThreshold,
+                int blueThreshold, int vScanLineDist, int hScanLineDist)
+        {
+            BufferedImage img = image.getImage();
+            int[] pixels = PixelAccess.getPixels(img);
 
-            for (int j = 0; j < vEdgelsPos.length; j++)
+            edgels.clear();
+            regionsCount = 0;
+            for (Region region : image.getRegionsMap().values())
             {
-                Edgel edgel = new Edgel();
-                edgel.setX(i);
-                edgel.setY(region.getY() - pixFrame + vEdgelsPos[j]);
-                edgel.setType(EdgelTypeEnum.VERTICAl);
-                int[] area = img.getRGB(edgel.getX() - 1, edgel.getY() - 1, 3, 3, null, 0, 3);
-                edgel.setDirection(calculateDirection(area));
+                addRegion(region);
+                regionStarts[regionsCount - 1] = edgels.size();
+
+                Integer distance = distances != null ? distances.get(region.getName()) : null;
+                if (distance != null)
+                {
+                    scanRegion(region, img, pixels, redThreshold, greenThreshold, blueThreshold, distance,
+                            distance, verticalPhase * distance / vScanLineDist,
+                            horizontalPhase * distance / hScanLineDist);
+                }
+                else
+                {
+                    scanRegion(region, img, pixels, redThreshold, greenThreshold, blueThreshold, vScanLineDist,
+                            hScanLineDist, verticalPhase, horizontalPhase);
+                }
+            }
+            regionStarts[regionsCount] = edgels.size();
 
-                edgelsList.add(edgel);
+            ensureOrderCapacity(edgels.size());
+            for (int i = 0; i < edgels.size(); i++)
+            {
+                order[i] = i;
             }
+            applyBudget();
         }
 
-        // horizontal
-        upper = region.getY() + region.getHeight();
-        for (int i = region.getY(); i < upper; i += hScanLineDistance)
+        /**
+         * Scan the whole image at once into {@link #getEdgels()} - every scan
+         * line runs over the full image inside the insets, and the edgels are
+         * then bucketed to the regions by their coordinates. Every pixel is
+         * read and convolved once per scan line, instead of once for every
+         * region it borders. The scan lines start at the left and top insets,
+         * so they are the same as in {@link #scan} if the region size is a
+         * multiple of the scan line distance.
+         */
+        public void scanImage(Container image, int redThreshold, int greenThreshold, int blueThreshold,
+                int vScanLineDist, int hScanLineDist)
         {
-            int[] scanline = new int[region.getWidth() + 2 * pixFrame];
-            scanline = img.getRGB(region.getX() - pixFrame, i, scanline.length, 1, scanline, 0, 1);
+            BufferedImage img = image.getImage();
+            int[] pixels = PixelAccess.getPixels(img);
+            int top = image.getTopInset();
+            int left = image.getLeftInset();
+            int bottom = img.getHeight() - image.getBottomInset();
+            int right = img.getWidth() - image.getRightInset();
 
-            int[] hEdgelsPos = detectEdgelsInScanline(scanline, redThreshold, greenThreshold, blueThreshold);
+            edgels.clear();
+            regionsCount = 0;
+            for (Region region : image.getRegionsMap().values())
+            {
+                addRegion(region);
+            }
 
-            for (int j = 0; j < hEdgelsPos.length; j++)
+            // Vertical
+            int length = bottom - top + 2 * pixFrame;
+            ensureCapacity(length);
+            scanColumns(img, pixels, left + verticalPhase, right, vScanLineDist, top - pixFrame, length,
+                    redThreshold, greenThreshold, blueThreshold);
+
+            // horizontal
+            length = right - left + 2 * pixFrame;
+            ensureCapacity(length);
+            for (int y = top + horizontalPhase; y < bottom; y += hScanLineDist)
             {
-                Edgel edgel = new Edgel();
-                edgel.setX(region.getX() - pixFrame + hEdgelsPos[j]);
-                edgel.setY(i);
-                edgel.setType(EdgelTypeEnum.HORIZONTAL);
-                int[] area = img.getRGB(edgel.getX() - 1, edgel.getY() - 1, 3, 3, null, 0, 3);
-                edgel.setDirection(calculateDirection(area));
+                scanRow(img, pixels, y, left - pixFrame, length, redThreshold, greenThreshold, blueThreshold);
+            }
+
+            bucketToRegions(img.getWidth(), img.getHeight());
+            applyBudget();
+        }
+
+        public EdgelBuffer getEdgels()
+        {
+            return edgels;
+        }
 
-                edgelsList.add(edgel);
+        /**
+         * Edgel objects of the last scan, for every region. Allocates the
+         * map, a list of the exact size for every region and the edgels -
+         * they are kept by the frame, so they are new for every scan.
+         * @return edgel objects of the last scan, for every region
+         */
+        public Map<String, List<Edgel>> toEdgelsMap()
+        {
+            Map<String, List<Edgel>> edgelsPerRegion = new HashMap<String, List<Edgel>>(regionsCount * 4 / 3 + 1);
+            for (int r = 0; r < regionsCount; r++)
+            {
+                List<Edgel> edgelsInRegion = new ArrayList<Edgel>(regionStarts[r + 1] - regionStarts[r]);
+                for (int k = regionStarts[r]; k < regionStarts[r + 1]; k++)
+                {
+                    edgelsInRegion.add(edgels.toEdgel(order[k]));
+                }
+                edgelsPerRegion.put(regions[r].getName(), edgelsInRegion);
             }
+            return edgelsPerRegion;
         }
 
-        return edgelsList;
-    }
+        private void addRegion(Region region)
+        {
+            if (regionsCount == regions.length)
+            {
+                regions = Arrays.copyOf(regions, regionsCount * 2 + 16);
+                regionStarts = Arrays.copyOf(regionStarts, regions.length + 1);
+            }
+            regions[regionsCount++] = region;
+        }
 
-    // Return array with the positions of the edgels in the scan line
-    private static int[] detectEdgelsInScanline(int[] scanline, int redThreshold, int greenThreshold, int blueThreshold)
-    {
-        int[] redChannel = new int[scanline.length];
-        int[] greenChannel = new int[scanline.length];
-        int[] blueChannel = new int[scanline.length];
+        private void scanRegion(Region region, BufferedImage img, int[] pixels, int redThreshold,
+                int greenThreshold, int blueThreshold, int vScanLineDistance, int hScanLineDistance, int vPhase,
+                int hPhase)
+        {
+            // Vertical
+            int length = region.getHeight() + 2 * pixFrame;
+            ensureCapacity(length);
+            scanColumns(img, pixels, region.getX() + vPhase, region.getX() + region.getWidth(),
+                    vScanLineDistance, region.getY() - pixFrame, length, redThreshold, greenThreshold,
+                    blueThreshold);
 
-        // extract channels
-        for (int i = 0; i < scanline.length; i++)
+            // horizontal
+            length = region.getWidth() + 2 * pixFrame;
+            ensureCapacity(length);
+            int upper = region.getY() + region.getHeight();
+            for (int i = region.getY() + hPhase; i < upper; i += hScanLineDistance)
+            {
+                scanRow(img, pixels, i, region.getX() - pixFrame, length, redThreshold, greenThreshold,
+                        blueThreshold);
+            }
+        }
+
+        // Vertical scan lines from x = first, before x = upper, from y = start.
+        // The columns are read in blocks - row by row, a few pixels of every
+        // column of the block, into a transposed buffer - so the memory is
+        // walked forward, not with a stride of a whole row for every pixel.
+        // Without the pixels array the block is filled row by row as well,
+        // from the bytes of a BGR image or else pixel by pixel with getRGB.
+        private void scanColumns(BufferedImage img, int[] pixels, int first, int upper, int step, int start,
+                int length, int redThreshold, int greenThreshold, int blueThreshold)
         {
-            redChannel[i] = getRedColor(scanline[i]);
-            greenChannel[i] = -256;// process on demand
-            blueChannel[i] = -256;// process on demand
+            int width = img.getWidth();
+            boolean blocked = pixels != null || blockColumns > 1;
+            if (blocked && block.length < blockColumns * length)
+            {
+                block = new int[blockColumns * length];
+            }
+            byte[] bytes = pixels == null && blocked ? PixelAccess.getBytes(img) : null;
+
+            for (int x = first; x < upper; x += blockColumns * step)
+            {
+                int columns = Math.min(blockColumns, (upper - x + step - 1) / step);
+                if (pixels != null)
+                {
+                    for (int k = 0, index = start * width + x; k < length; k++, index += width)
+                    {
+                        for (int c = 0, offset = k; c < columns; c++, offset += length)
+                        {
+                            block[offset] = pixels[index + c * step];
+                        }
+                    }
+                }
+                else if (bytes != null)
+                {
+                    for (int k = 0, index = (start * width + x) * 3; k < length; k++, index += width * 3)
+                    {
+                        for (int c = 0, offset = k; c < columns; c++, offset += length)
+                        {
+                            block[offset] = PixelAccess.getRGB(bytes, index + c * step * 3);
+                        }
+                    }
+                }
+                else if (blocked)
+                {
+                    for (int k = 0; k < length; k++)
+                    {
+                        for (int c = 0, offset = k; c < columns; c++, offset += length)
+                        {
+                            block[offset] = img.getRGB(x + c * step, start + k);
+                        }
+                    }
+                }
+
+                for (int c = 0; c < columns; c++)
+                {
+                    int columnX = x + c * step;
+                    if (blocked)
+                    {
+                        System.arraycopy(block, c * length, scanline, 0, length);
+                    }
+                    else
+                    {
+                        img.getRGB(columnX, start, 1, length, scanline, 0, 1);
+                    }
+
+                    int found = detectEdgelsInScanline(length, redThreshold, greenThreshold, blueThreshold);
+                    for (int j = 0; j < found; j++)
+                    {
+                        addEdgel(img, pixels, columnX, start + positions[j], offsets[j], strengths[j], true);
+                    }
+                }
+            }
+        }
+
+        // Horizontal scan line at y, from x = start
+        private void scanRow(BufferedImage img, int[] pixels, int y, int start, int length, int redThreshold,
+                int greenThreshold, int blueThreshold)
+        {
+            if (pixels != null)
+            {
+                System.arraycopy(pixels, y * img.getWidth() + start, scanline, 0, length);
+            }
+            else
+            {
+                img.getRGB(start, y, length, 1, scanline, 0, length);
+            }
+
+            int found = detectEdgelsInScanline(length, redThreshold, greenThreshold, blueThreshold);
+            for (int j = 0; j < found; j++)
+            {
+                addEdgel(img, pixels, start + positions[j], y, offsets[j], strengths[j], false);
+            }
+        }
+
+        // Counting sort of the edgels by their region. The regions are
+        // indexed in a grid of small cells, every cell lists the regions
+        // overlapping it. Edgels outside of all regions are dropped.
+        private void bucketToRegions(int width, int height)
+        {
+            int cellsX = (width >> LOOKUP_CELL_BITS) + 1;
+            int cellsY = (height >> LOOKUP_CELL_BITS) + 1;
+            int cells = cellsX * cellsY;
+            if (cellStarts.length < cells + 1)
+            {
+                cellStarts = new int[cells + 1];
+            }
+            Arrays.fill(cellStarts, 0, cells + 1, 0);
+
+            for (int pass = 0; pass < 2; pass++)
+            {
+                for (int r = 0; r < regionsCount; r++)
+                {
+                    Region region = regions[r];
+                    int x1 = region.getX() >> LOOKUP_CELL_BITS;
+                    int x2 = (region.getX() + region.getWidth() - 1) >> LOOKUP_CELL_BITS;
+                    int y1 = region.getY() >> LOOKUP_CELL_BITS;
+                    int y2 = (region.getY() + region.getHeight() - 1) >> LOOKUP_CELL_BITS;
+                    for (int cy = y1; cy <= y2; cy++)
+                    {
+                        for (int cx = x1; cx <= x2; cx++)
+                        {
+                            if (pass == 0)
+                            {
+                                cellStarts[cy * cellsX + cx + 1]++;
+                            }
+                            else
+                            {
+                                cellRegions[fill[cy * cellsX + cx]++] = r;
+                            }
+                        }
+                    }
+                }
+
+                if (pass == 0)
+                {
+                    for (int c = 0; c < cells; c++)
+                    {
+                        cellStarts[c + 1] += cellStarts[c];
+                    }
+                    if (cellRegions.length < cellStarts[cells])
+                    {
+                        cellRegions = new int[cellStarts[cells]];
+                    }
+                    if (fill.length < cells)
+                    {
+                        fill = new int[cells];
+                    }
+                    System.arraycopy(cellStarts, 0, fill, 0, cells);
+                }
+            }
+
+            // region of every edgel, counted per region
+            int count = edgels.size();
+            ensureOrderCapacity(count);
+            Arrays.fill(regionStarts, 0, regionsCount + 1, 0);
+            for (int i = 0; i < count; i++)
+            {
+                int x = edgels.getX(i);
+                int y = edgels.getY(i);
+                int cell = (y >> LOOKUP_CELL_BITS) * cellsX + (x >> LOOKUP_CELL_BITS);
+                int owner = -1;
+                for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++)
+                {
+                    Region region = regions[cellRegions[k]];
+                    if (x >= region.getX() && y >= region.getY() && x < region.getX() + region.getWidth()
+                            && y < region.getY() + region.getHeight())
+                    {
+                        owner = cellRegions[k];
+                        break;
+                    }
+                }
+                edgelRegions[i] = owner;
+                if (owner >= 0)
+                {
+                    regionStarts[owner + 1]++;
+                }
+            }
+
+            for (int r = 0; r < regionsCount; r++)
+            {
+                regionStarts[r + 1] += regionStarts[r];
+            }
+            if (fill.length < regionsCount)
+            {
+                fill = new int[regionsCount];
+            }
+            System.arraycopy(regionStarts, 0, fill, 0, regionsCount);
+            for (int i = 0; i < count; i++)
+            {
+                if (edgelRegions[i] >= 0)
+                {
+                    order[fill[edgelRegions[i]]++] = i;
+                }
+            }
         }
 
-        int foundEdgels = 0;
-        int[] fEdgelsPos = new int[scanline.length / 2];
-        int prev2 = 0;
-        int prev1 = 0;
-        int current = 0;
-        for (int i = pixFrame; i < scanline.length - pixFrame; i++)
+        // Drop the weakest edgels over the budget from the order - first in
+        // every region, then in the whole image
+        private void applyBudget()
         {
-            prev2 = prev1;
-            prev1 = current;
-            current = 0;
+            droppedCount = 0;
+            int kept = 0;
+            for (int r = 0; r < regionsCount; r++)
+            {
+                int start = regionStarts[r];
+                int count = regionStarts[r + 1] - start;
+                regionStarts[r] = kept;
+                if (count > maxRegionEdgels)
+                {
+                    keepStrongest(start, count, maxRegionEdgels);
+                    droppedCount += count - maxRegionEdgels;
+                    count = maxRegionEdgels;
+                }
+                System.arraycopy(order, start, order, kept, count);
+                kept += count;
+            }
+            regionStarts[regionsCount] = kept;
 
-            int outputRed = calculateRedOutputValue(redChannel, i);
-            if (outputRed < redThreshold)
+            if (kept <= maxEdgels)
             {
-                // Not edge for red channel
-                continue;
+                return;
             }
 
-            int outputGreen = calculateGreenOutputValue(greenChannel, i, scanline);
-            if (outputGreen < greenThreshold)
+            // mark the weakest of the whole image, then close the gaps
+            sortByStrength(0, kept);
+            for (int k = 0; k < kept - maxEdgels; k++)
             {
-                // Not edge for green channel
-                continue;
+                order[(int) keys[k]] = -1;
             }
+            droppedCount += kept - maxEdgels;
 
-            int outputBlue = calculateBlueOutputValue(blueChannel, i, scanline);
-            if (outputBlue < blueThreshold)
+            int write = 0;
+            for (int r = 0; r < regionsCount; r++)
             {
-                // Not edge for blue channel
-                continue;
+                int start = regionStarts[r];
+                int end = regionStarts[r + 1];
+                regionStarts[r] = write;
+                for (int k = start; k < end; k++)
+                {
+                    if (order[k] >= 0)
+                    {
+                        order[write++] = order[k];
+                    }
+                }
             }
+            regionStarts[regionsCount] = write;
+        }
 
-            // check for local maxima
-            current = outputRed;
-            if (prev1 > 0 && prev1 >= prev2 && prev1 > current)
+        // Keep the limit strongest of the count edgels of the order from
+        // start, at its start and in the order of the scan
+        private void keepStrongest(int start, int count, int limit)
+        {
+            sortByStrength(start, count);
+            // read all kept edgels before the order is overwritten
+            for (int k = count - limit; k < count; k++)
+            {
+                keys[k] = order[(int) keys[k]];
+            }
+            for (int k = 0; k < limit; k++)
+            {
+                order[start + k] = (int) keys[count - limit + k];
+            }
+            Arrays.sort(order, start, start + limit);
+        }
+
+        // Keys of the count edgels of the order from start, sorted by the
+        // strength, weakest first - strength in the upper bits, position in the order in the lower
+        private void sortByStrength(int start, int count)
+        {
+            if (keys.length < count)
+            {
+                keys = new long[Math.max(count, 2 * keys.length)];
+            }
+            for (int k = 0; k < count; k++)
+            {
+                keys[k] = ((long) edgels.getStrength(order[start + k]) << 32) | (start + k);
+            }
+            Arrays.sort(keys, 0, count);
+        }
+
+        private void ensureOrderCapacity(int count)
+        {
+            if (order.length < count)
+            {
+                order = new int[Math.max(count, 2 * order.length)];
+                edgelRegions = new int[order.length];
+            }
+        }
+
+        private void ensureCapacity(int length)
+        {
+            if (scanline.length < length)
             {
-                // previous one is an edgel
-                fEdgelsPos[foundEdgels] = i - 1;
-                foundEdgels++;
+                scanline = new int[length];
+                redChannel = new int[length];
+                greenChannel = new int[length];
+                blueChannel = new int[length];
+                positions = new int[length / 2 + 1];
+                offsets = new float[positions.length];
+                strengths = new int[positions.length];
             }
         }
 
-        return Arrays.copyOf(fEdgelsPos, foundEdgels);
+        // offset is the sub-pixel position along the scan line
+        private void addEdgel(BufferedImage img, int[] pixels, int x, int y, float offset, int strength,
+                boolean vertical)
+        {
+            if (pixels != null)
+            {
+                int width = img.getWidth();
+                for (int r = 0; r < 3; r++)
+                {
+                    System.arraycopy(pixels, (y - 1 + r) * width + x - 1, area, 3 * r, 3);
+                }
+            }
+            else
+            {
+                img.getRGB(x - 1, y - 1, 3, 3, area, 0, 3);
+            }
+
+            calculateGradient(area, gradient);
+            int angle = QuantizedAngle.fromComponents(gradient[0], gradient[1]);
+            if (quantizedAngles)
+            {
+                QuantizedAngle.toDirection(angle, direction);
+            }
+            else
+            {
+                normalize(gradient, direction);
+            }
+            edgels.add(x, y, offset, strength, vertical, direction[0], direction[1], angle);
+        }
+
+        // Find the positions of the edgels in the first length pixels of the
+        // scan line and their sub-pixel offsets, returns their count
+        private int detectEdgelsInScanline(int length, int redThreshold, int greenThreshold, int blueThreshold)
+        {
+            // extract channels
+            for (int i = 0; i < length; i++)
+            {
+                redChannel[i] = getRedColor(scanline[i]);
+                greenChannel[i] = -256;// process on demand
+                blueChannel[i] = -256;// process on demand
+            }
+
+            int foundEdgels = 0;
+            int prev2 = 0;
+            int prev1 = 0;
+            int current = 0;
+            // red responses before the thresholds, for the sub-pixel fit
+            int red2 = 0;
+            int red1 = 0;
+            int red = 0;
+            for (int i = pixFrame; i < length - pixFrame; i++)
+            {
+                prev2 = prev1;
+                prev1 = current;
+                current = 0;
+
+                int outputRed = calculateRedOutputValue(redChannel, i);
+                red2 = red1;
+                red1 = red;
+                red = outputRed;
+                if (outputRed < redThreshold)
+                {
+                    // Not edge for red channel
+                    continue;
+                }
+
+                int outputGreen = calculateGreenOutputValue(greenChannel, i, scanline);
+                if (outputGreen < greenThreshold)
+                {
+                    // Not edge for green channel
+                    continue;
+                }
+
+                int outputBlue = calculateBlueOutputValue(blueChannel, i, scanline);
+                if (outputBlue < blueThreshold)
+                {
+                    // Not edge for blue channel
+                    continue;
+                }
+
+                // check for local maxima
+                current = outputRed;
+                if (prev1 > 0 && prev1 >= prev2 && prev1 > current)
+                {
+                    // previous one is an edgel
+                    positions[foundEdgels] = i - 1;
+                    offsets[foundEdgels] = i - 2 >= pixFrame ? getPeakOffset(red2, red1, red) : 0;
+                    strengths[foundEdgels] = prev1;
+                    foundEdgels++;
+                }
+            }
+
+            return foundEdgels;
+        }
+    }
+
+    /**
+     * Sub-pixel position of a peak, from the parabola through the responses
+     * before, at and after the peak.
+     * @param before response before the peak
+     * @param peak response at the peak
+     * @param after response after the peak
+     * @return offset of the parabola vertex from the peak, between -0.5 and 0.5
+     */
+    protected static float getPeakOffset(int before, int peak, int after)
+    {
+        int curvature = before - 2 * peak + after;
+        if (curvature >= 0)
+        {
+            // flat or not a maximum
+            return 0;
+        }
+
+        float offset = 0.5f * (before - after) / curvature;
+        return Math.max(-0.5f, Math.min(0.5f, offset));
     }
 
     //Calculate Gauss function for pixel at pos for the R channel
@@ -334,28 +1013,66 @@ public class EdgelDetector
      */
     protected static float[] calculateDirection(int[] area)
     {
-        float[] result = new float[2];
+        return calculateDirection(area, new float[2]);
+    }
 
-        // calculate x
-        result[0] += getRedColor(area[0]);
-        result[0] -= getRedColor(area[8]);
-        result[1] = result[0];
+    /**
+     * Using Sobel kernel calculate direction of the edgel
+     * 
+     * @param area area around the pixel, needed to apply the Sobel matrix
+     * @param result output for the direction normalized vector
+     * @return the result
+     */
+    protected static float[] calculateDirection(int[] area, float[] result)
+    {
+        int[] gradient = calculateGradient(area, new int[2]);
+        return normalize(gradient, result);
+    }
+
+    /**
+     * Using Sobel kernel calculate the quantized angle of the edgel direction
+     * 
+     * @param area area around the pixel, needed to apply the Sobel matrix
+     * @return angle of the direction, see {@link QuantizedAngle}
+     */
+    protected static int calculateAngle(int[] area)
+    {
+        int[] gradient = calculateGradient(area, new int[2]);
+        return QuantizedAngle.fromComponents(gradient[0], gradient[1]);
+    }
 
+    /**
+     * Using Sobel kernel calculate the integer gradient of the red channel
+     * 
+     * @param area area around the pixel, needed to apply the Sobel matrix
+     * @param result output for the x and y of the gradient
+     * @return the result
+     */
+    protected static int[] calculateGradient(int[] area, int[] result)
+    {
+        // calculate x
+        int corners = getRedColor(area[0]) - getRedColor(area[8]);
+        result[0] = corners;
         result[0] -= getRedColor(area[2]);
         result[0] += getRedColor(area[3]) * 2;
         result[0] -= getRedColor(area[5]) * 2;
         result[0] += getRedColor(area[6]);
 
         // calculate y
+        result[1] = corners;
         result[1] += getRedColor(area[1]) * 2;
         result[1] += getRedColor(area[2]);
         result[1] -= getRedColor(area[6]);
         result[1] -= getRedColor(area[7]) * 2;
+        return result;
+    }
 
-        // normalize vector
-        float length = (float) Math.sqrt(result[0] * result[0] + result[1] * result[1]);
-        result[0] = result[0] / length;
-        result[1] = result[1] / length;
+    // normalize the gradient vector
+    private static float[] normalize(int[] gradient, float[] result)
+    {
+        float length = (float) Math.sqrt(gradient[0] * gradient[0] + gradient[1] * gradient[1]);
+        result[0] = gradient[0] / length;
+        result[1] = gradient[1] / length;
         return result;
     }
 
@@ -0,0 +1,124 @@
+package neandertal.jaugre.core;
+
+/**
+ * Fixed size 3x3 matrix math on primitive arrays, used to map the marker
+ * plane to the image. Matrices are double[9], row by row. Nothing is
+ * allocated, the caller provides the output arrays.
+ * <br/>
+ * Uses:
+ * <br/>
+ * Heckbert, Fundamentals of Texture Mapping and Image Warping - projective mapping of a square to a quadrilateral
+ * @author neandertal
+ */
+public final class Homography
+{
+    private Homography() {}
+
+    /**
+     * Projective mapping of the unit square to the given quadrangle.
+     *
+     * @param q quadrangle corners {x1, y1, .. x4, y4} for (0,0), (1,0), (1,1), (0,1)
+     * @param out matrix
+     * @return false if the corners are degenerate (3 of them on a line)
+     */
+    public static boolean squareToQuad(double[] q, double[] out)
+    {
+        return squareToQuad(q[0], q[1], q[2], q[3], q[4], q[5], q[6], q[7], out);
+    }
+
+    /**
+     * Projective mapping of the unit square to the given quadrangle.
+     * Corners are for (0,0), (1,0), (1,1), (0,1).
+     *
+     * @param out matrix
+     * @return false if the corners are degenerate (3 of them on a line)
+     */
+    public static boolean squareToQuad(double x0, double y0, double x1, double y1, double x2, double y2, double x3,
+            double y3, double[] out)
+    {
+        double sx = x0 - x1 + x2 - x3;
+        double sy = y0 - y1 + y2 - y3;
+        double dx1 = x1 - x2;
+        double dx2 = x3 - x2;
+        double dy1 = y1 - y2;
+        double dy2 = y3 - y2;
+        double det = dx1 * dy2 - dx2 * dy1;
+        if (det == 0)
+        {
+            return false;
+        }
+
+        double g = (sx * dy2 - dx2 * sy) / det;
+        double h = (dx1 * sy - sx * dy1) / det;
+
+        out[0] = x1 - x0 + g * x1;
+        out[1] = x3 - x0 + h * x3;
+        out[2] = x0;
+        out[3] = y1 - y0 + g * y1;
+        out[4] = y3 - y0 + h * y3;
+        out[5] = y0;
+        out[6] = g;
+        out[7] = h;
+        out[8] = 1;
+        return true;
+    }
+
+    /**
+     * Map a point
+     * @param h matrix
+     * @param u x of the point
+     * @param v y of the point
+     * @param out mapped {x, y}
+     */
+    public static void project(double[] h, double u, double v, double[] out)
+    {
+        double w = h[6] * u + h[7] * v + h[8];
+        out[0] = (h[0] * u + h[1] * v + h[2]) / w;
+        out[1] = (h[3] * u + h[4] * v + h[5]) / w;
+    }
+
+    /**
+     * Multiply a * b
+     * @param out product, must not be one of the arguments
+     */
+    public static void multiply(double[] a, double[] b, double[] out)
+    {
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                out[3 * r + c] = a[3 * r] * b[c] + a[3 * r + 1] * b[3 + c] + a[3 * r + 2] * b[6 + c];
+            }
+        }
+    }
+
+    /**
+     * Invert a matrix
+     * @param m matrix
+     * @param out inverse, must not be the argument
+     * @return false if the matrix is singular
+     */
+    public static boolean invert(double[] m, double[] out)
+    {
+        double c0 = m[4] * m[8] - m[5] * m[7];
+        double c1 = m[5] * m[6] - m[3] * m[8];
+        double c2 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+        if (det == 0)
+        {
+            return false;
+        }
+
+        double inv = 1 / det;
+        out[0] = c0 * inv;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) * inv;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) * inv;
+        out[3] = c1 * inv;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) * inv;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) * inv;
+        out[6] = c2 * inv;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) * inv;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) * inv;
+        return true;
+    }
+}
@@ -0,0 +1,397 @@
+package neandertal.jaugre.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.QuantizedAngle;
+
+
+/**
+ * STEP 3, deterministic.
+ * Finds the line segments of every region with a Hough transform instead
+ * of RANSAC. Every edgel votes for the lines through it, but only in a
+ * narrow band of angles around its gradient - so an edgel casts a few votes
+ * instead of one per angle. The angles cover the full circle, edges of
+ * opposite polarity are kept apart like the orientation check of RANSAC.
+ * <br/>
+ * The strongest cell of the accumulator gives the candidate edgels near its
+ * line, a least squares line through them gives the inliers. A segment
+ * with enough inliers is accepted and its inliers take their votes back,
+ * so the next peak is another line. The same edgels always give the same
+ * segments.
+ * <br/>
+ * Uses:<br/>
+ * <a href="http://en.wikipedia.org/wiki/Hough_transform">Hough transform</a>
+ *
+ * @author neandertal
+ */
+public class HoughSegmentFinder implements SegmentFinderStrategy
+{
+    /** Angle bins of the accumulator, over the full circle */
+    public static final int DEFAULT_ANGLE_BINS = 64;
+    /** Angle bins on each side of the edgel gradient, in which the edgel votes */
+    public static final int DEFAULT_ANGLE_BAND = 1;
+    /** Maximum peaks tried in a region */
+    public static final int DEFAULT_MAX_PEAKS = 12;
+
+    // distance of the candidate edgels to the line of the peak, covers the
+    // size of the accumulator cell over a region
+    private static final float CANDIDATE_DISTANCE = 2f;
+    // least squares fits of a peak line
+    private static final int FITS = 2;
+
+    private int minEdgelsCount;
+    private float distanceToLine;
+    private float compValue;
+    private int angleBins;
+    private int angleBand;
+    private int maxPeaks;
+
+    // normals of the angle bins
+    private float[] binCos;
+    private float[] binSin;
+
+    // scratch, grows with the regions
+    private int[] accumulator = new int[0];
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private int[] angles = new int[0];
+    private int[] bins = new int[0];
+    private boolean[] used = new boolean[0];
+    private int count;
+    private int rhoBins;
+    private int radius;
+
+    /**
+     * Hough transform with default values
+     */
+    public HoughSegmentFinder()
+    {
+        this(SegmentsFinder.DEFAULT_MIN_SUPPORT_EDGELS_COUNT, SegmentsFinder.DEFAULT_DISTANCE_TO_LINE,
+                SegmentsFinder.DEFAULT_COMPATIBILITY_VALUE, DEFAULT_ANGLE_BINS, DEFAULT_ANGLE_BAND, DEFAULT_MAX_PEAKS);
+    }
+
+    /**
+     * Hough transform with custom values
+     * @param minEdgelsCountArg custom minimum inline edgels for an accepted line segment
+     * @param distanceToLineArg custom distance from a line of Edgel to be accepted as part of the line
+     * @param compValueArg custom threshold for the edgel direction to be accepted as part of the line
+     * @param angleBinsArg custom angle bins of the accumulator
+     * @param angleBandArg custom angle bins on each side of the edgel gradient, in which the edgel votes
+     * @param maxPeaksArg custom maximum peaks tried in a region
+     */
+    public HoughSegmentFinder(int minEdgelsCountArg, float distanceToLineArg, float compValueArg, int angleBinsArg,
+            int angleBandArg, int maxPeaksArg)
+    {
+        if (angleBinsArg < 4 || angleBinsArg > QuantizedAngle.STEPS)
+        {
+            throw new IllegalArgumentException("Angle bins are out of range!");
+        }
+
+        if (angleBandArg < 0 || 2 * angleBandArg >= angleBinsArg)
+        {
+            throw new IllegalArgumentException("Angle band is out of range!");
+        }
+
+        if (maxPeaksArg <= 0)
+        {
+            throw new IllegalArgumentException("Peaks must be positive!");
+        }
+
+        minEdgelsCount = Math.max(2, minEdgelsCountArg);
+        distanceToLine = distanceToLineArg;
+        compValue = compValueArg;
+        angleBins = angleBinsArg;
+        angleBand = angleBandArg;
+        maxPeaks = maxPeaksArg;
+
+        binCos = new float[angleBins];
+        binSin = new float[angleBins];
+        for (int i = 0; i < angleBins; i++)
+        {
+            binCos[i] = (float) Math.cos(i * 2 * Math.PI / angleBins);
+            binSin[i] = (float) Math.sin(i * 2 * Math.PI / angleBins);
+        }
+    }
+
+    @Override
+    public Map<String, List<LineSegment>> detectSegments(Container image)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getEdgelsMap() == null)
+        {
+            throw new IllegalArgumentException("Edgels map can't be NULL!");
+        }
+
+        Map<String, List<LineSegment>> segmentsMap = new HashMap<String, List<LineSegment>>();
+        int cutRegions = 0;
+        for (Map.Entry<String, List<Edgel>> entry : image.getEdgelsMap().entrySet())
+        {
+            List<LineSegment> segments = new LinkedList<LineSegment>();
+            if (!detectSegmentsInRegion(entry.getValue(), segments))
+            {
+                cutRegions++;
+            }
+            segmentsMap.put(entry.getKey(), segments);
+        }
+
+        image.setSegmentsMap(segmentsMap);
+        image.setCutRegionsCount(cutRegions);
+        return segmentsMap;
+    }
+
+    // Adds the segments of the region, false if the peaks limit cut the search
+    private boolean detectSegmentsInRegion(List<Edgel> edgelsList, List<LineSegment> segments)
+    {
+        int n = edgelsList.size();
+        if (n < minEdgelsCount)
+        {
+            return true;
+        }
+
+        Edgel[] edgels = edgelsList.toArray(new Edgel[n]);
+        prepare(edgels);
+        for (int i = 0; i < n; i++)
+        {
+            vote(i, 1);
+        }
+
+        for (int peaks = 0; peaks < maxPeaks; peaks++)
+        {
+            int peak = findPeak();
+            if (peak < 0)
+            {
+                return true;
+            }
+
+            List<Integer> inliers = findInliers(peak / rhoBins, peak % rhoBins - radius);
+            if (inliers.size() < minEdgelsCount)
+            {
+                // no line here, only edgels crossing the cell
+                accumulator[peak] = 0;
+                continue;
+            }
+
+            // the ends must be apart for the direction of the segment
+            int first = inliers.get(0);
+            int far = first;
+            for (int i : inliers)
+            {
+                if (squaredDistance(first, i) > squaredDistance(first, far))
+                {
+                    far = i;
+                }
+            }
+            if (far == first)
+            {
+                accumulator[peak] = 0;
+                continue;
+            }
+
+            LineSegment segment = new LineSegment(edgels[first], edgels[far]);
+            for (int i : inliers)
+            {
+                if (i != first && i != far)
+                {
+                    segment.addInliner(edgels[i]);
+                }
+            }
+            SegmentsFinder.fixLineSegment(segment);
+            segments.add(segment);
+
+            for (int i : inliers)
+            {
+                used[i] = true;
+                vote(i, -1);
+            }
+        }
+        return findPeak() < 0;
+    }
+
+    // positions relative to the center of the edgels and their angle bins,
+    // sizes and clears the accumulator
+    private void prepare(Edgel[] edgels)
+    {
+        int n = edgels.length;
+        if (xs.length < n)
+        {
+            xs = new float[n];
+            ys = new float[n];
+            angles = new int[n];
+            bins = new int[n];
+            used = new boolean[n];
+        }
+
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (Edgel e : edgels)
+        {
+            minX = Math.min(minX, e.getUndistortedX());
+            minY = Math.min(minY, e.getUndistortedY());
+            maxX = Math.max(maxX, e.getUndistortedX());
+            maxY = Math.max(maxY, e.getUndistortedY());
+        }
+        float centerX = (minX + maxX) / 2;
+        float centerY = (minY + maxY) / 2;
+
+        int i = 0;
+        for (Edgel e : edgels)
+        {
+            xs[i] = e.getUndistortedX() - centerX;
+            ys[i] = e.getUndistortedY() - centerY;
+            angles[i] = e.getAngle();
+            bins[i] = (angles[i] * angleBins + QuantizedAngle.STEPS / 2) / QuantizedAngle.STEPS % angleBins;
+            used[i] = false;
+            i++;
+        }
+        count = n;
+
+        radius = (int) Math.ceil(Math.hypot(maxX - minX, maxY - minY) / 2) + 1;
+        rhoBins = 2 * radius + 1;
+        int size = angleBins * rhoBins;
+        if (accumulator.length < size)
+        {
+            accumulator = new int[size];
+        }
+        else
+        {
+            Arrays.fill(accumulator, 0, size, 0);
+        }
+    }
+
+    // add (1) or take back (-1) the votes of the edgel, in the two cells
+    // around its distance, so the votes of a line don't split between cells
+    private void vote(int i, int votes)
+    {
+        for (int d = -angleBand; d <= angleBand; d++)
+        {
+            int bin = (bins[i] + d + angleBins) % angleBins;
+            int rho = (int) Math.floor(xs[i] * binCos[bin] + ys[i] * binSin[bin]);
+            int cell = bin * rhoBins + rho + radius;
+            accumulator[cell] += votes;
+            accumulator[cell + 1] += votes;
+        }
+    }
+
+    // index of the strongest cell, -1 if it has too few votes for a segment
+    private int findPeak()
+    {
+        int size = angleBins * rhoBins;
+        int peak = -1;
+        int best = minEdgelsCount - 1;
+        for (int cell = 0; cell < size; cell++)
+        {
+            if (accumulator[cell] > best)
+            {
+                best = accumulator[cell];
+                peak = cell;
+            }
+        }
+        return peak;
+    }
+
+    // the unused edgels on the least squares line through the edgels near
+    // the line of the cell
+    private List<Integer> findInliers(int bin, int rho)
+    {
+        List<Integer> inliers = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++)
+        {
+            if (used[i] || !isCompatible(bins[i], bin))
+            {
+                continue;
+            }
+            if (Math.abs(xs[i] * binCos[bin] + ys[i] * binSin[bin] - rho) <= CANDIDATE_DISTANCE)
+            {
+                inliers.add(i);
+            }
+        }
+
+        // the line of the cell is as coarse as the cell, fit the line and
+        // take the edgels on it, then once more with those
+        float[] line = new float[3];
+        line[0] = binCos[bin];
+        line[1] = binSin[bin];
+        for (int fit = 0; fit < FITS && inliers.size() >= minEdgelsCount; fit++)
+        {
+            fitLine(inliers, line);
+            int normalAngle = QuantizedAngle.fromVector(line[0], line[1]);
+            inliers.clear();
+            for (int i = 0; i < count; i++)
+            {
+                if (!used[i] && Math.abs(xs[i] * line[0] + ys[i] * line[1] - line[2]) < distanceToLine
+                        && QuantizedAngle.cos(angles[i], normalAngle) > compValue)
+                {
+                    inliers.add(i);
+                }
+            }
+        }
+        return inliers;
+    }
+
+    // least squares line through the edgels, line holds the normal of the
+    // previous line and gets the normal on the same side and the distance
+    // from the center
+    private void fitLine(List<Integer> edgels, float[] line)
+    {
+        float meanX = 0;
+        float meanY = 0;
+        for (int i : edgels)
+        {
+            meanX += xs[i];
+            meanY += ys[i];
+        }
+        meanX /= edgels.size();
+        meanY /= edgels.size();
+        float sxx = 0;
+        float syy = 0;
+        float sxy = 0;
+        for (int i : edgels)
+        {
+            float dx = xs[i] - meanX;
+            float dy = ys[i] - meanY;
+            sxx += dx * dx;
+            syy += dy * dy;
+            sxy += dx * dy;
+        }
+        double lineAngle = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+        float normalX = (float) -Math.sin(lineAngle);
+        float normalY = (float) Math.cos(lineAngle);
+        // the normal of the gradient side
+        if (normalX * line[0] + normalY * line[1] < 0)
+        {
+            normalX = -normalX;
+            normalY = -normalY;
+        }
+        line[0] = normalX;
+        line[1] = normalY;
+        line[2] = meanX * normalX + meanY * normalY;
+    }
+
+    private float squaredDistance(int a, int b)
+    {
+        float dx = xs[b] - xs[a];
+        float dy = ys[b] - ys[a];
+        return dx * dx + dy * dy;
+    }
+
+    // the edgel votes in the bin
+    private boolean isCompatible(int edgelBin, int bin)
+    {
+        int d = Math.abs(edgelBin - bin);
+        return Math.min(d, angleBins - d) <= angleBand;
+    }
+}
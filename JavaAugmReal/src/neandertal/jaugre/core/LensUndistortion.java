@@ -0,0 +1,280 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.util.Collection;
+
+import neandertal.jaugre.core.data.CameraIntrinsics;
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * Optional step, after STEP 2 and after STEP 10.
+ * Removes the lens distortion from the sparse data only, instead of
+ * resampling the whole image. The edgels get undistorted coordinates, which
+ * the RANSAC of {@link SegmentsFinder} fits, so straight physical edges fit
+ * as lines. The edgels and segments keep their image coordinates, so the
+ * steps reading pixels along them still read the right pixels. At the end
+ * the quadrangle corners get undistorted coordinates, which
+ * {@link PoseEstimator} uses.
+ * <br/>
+ * The undistorted coordinates are precomputed in a coarse grid over the
+ * image and interpolated bilinearly - the distortion is smooth, so the
+ * interpolation error is far below a pixel.
+ * <br/>
+ * Uses:
+ * <br/>
+ * Brown, Decentering Distortion of Lenses - radial and tangential distortion model
+ * @author neandertal
+ */
+public class LensUndistortion
+{
+    /** Distance between the lookup table points, in pixels */
+    public static final int DEFAULT_GRID_STEP = 8;
+    /** Fixed point iterations to invert the distortion model */
+    public static final int INVERSION_ITERATIONS = 20;
+
+    private double fx;
+    private double fy;
+    private double cx;
+    private double cy;
+    private double k1;
+    private double k2;
+    private double k3;
+    private double p1;
+    private double p2;
+
+    private int gridStep;
+    private int columns;
+    private int rows;
+    // undistorted x, y of every grid point, row by row
+    private float[] tableX;
+    private float[] tableY;
+
+    /**
+     * Lookup table for an image size, with the default grid step
+     * @param camera camera intrinsics, the same for the distorted and undistorted coordinates
+     * @param k1 first radial coefficient
+     * @param k2 second radial coefficient
+     * @param p1 first tangential coefficient
+     * @param p2 second tangential coefficient
+     * @param k3 third radial coefficient
+     * @param width image width
+     * @param height image height
+     */
+    public LensUndistortion(CameraIntrinsics camera, double k1, double k2, double p1, double p2, double k3,
+            int width, int height)
+    {
+        this(camera, k1, k2, p1, p2, k3, width, height, DEFAULT_GRID_STEP);
+    }
+
+    /**
+     * Lookup table for an image size, with custom grid step
+     * @param camera camera intrinsics, the same for the distorted and undistorted coordinates
+     * @param k1 first radial coefficient
+     * @param k2 second radial coefficient
+     * @param p1 first tangential coefficient
+     * @param p2 second tangential coefficient
+     * @param k3 third radial coefficient
+     * @param width image width
+     * @param height image height
+     * @param gridStepArg custom distance between the lookup table points
+     */
+    public LensUndistortion(CameraIntrinsics camera, double k1, double k2, double p1, double p2, double k3,
+            int width, int height, int gridStepArg)
+    {
+        if (camera == null)
+        {
+            throw new IllegalArgumentException("Camera intrinsics can't be NULL!");
+        }
+
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Image size must be positive!");
+        }
+
+        if (gridStepArg <= 0)
+        {
+            throw new IllegalArgumentException("Grid step must be positive!");
+        }
+
+        fx = camera.getFx();
+        fy = camera.getFy();
+        cx = camera.getCx();
+        cy = camera.getCy();
+        this.k1 = k1;
+        this.k2 = k2;
+        this.k3 = k3;
+        this.p1 = p1;
+        this.p2 = p2;
+
+        gridStep = gridStepArg;
+        columns = (width + gridStep - 1) / gridStep + 1;
+        rows = (height + gridStep - 1) / gridStep + 1;
+        tableX = new float[columns * rows];
+        tableY = new float[columns * rows];
+        double[] point = new double[2];
+        for (int r = 0; r < rows; r++)
+        {
+            for (int c = 0; c < columns; c++)
+            {
+                undistortExact(c * gridStep, r * gridStep, point);
+                tableX[r * columns + c] = (float) point[0];
+                tableY[r * columns + c] = (float) point[1];
+            }
+        }
+    }
+
+    /**
+     * Set the undistorted coordinates of all edgels. Call after
+     * {@link EdgelDetector} and before {@link SegmentsFinder}.
+     *
+     * @param image
+     * @param lens lookup table for the image size
+     */
+    public static void undistortEdgels(Container image, LensUndistortion lens)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getEdgelsMap() == null)
+        {
+            throw new IllegalArgumentException("Edgels map can't be NULL!");
+        }
+
+        if (lens == null)
+        {
+            throw new IllegalArgumentException("Lens can't be NULL!");
+        }
+
+        double[] out = new double[2];
+        for (Edgel e : image.getEdgelsCollection())
+        {
+            lens.undistort(e.getSubPixelX(), e.getSubPixelY(), out);
+            e.setUndistorted((float) out[0], (float) out[1]);
+        }
+    }
+
+    /**
+     * Set the undistorted corners of the filtered quadrangles, or of all
+     * quadrangles if not filtered. Call after {@link MarkerDecoder}, which
+     * reads the image inside the quadrangles.
+     *
+     * @param image
+     * @param lens lookup table for the image size
+     */
+    public static void undistortQuadrangles(Container image, LensUndistortion lens)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getQuadrangles() == null)
+        {
+            throw new IllegalArgumentException("Quadrangles can't be NULL!");
+        }
+
+        if (lens == null)
+        {
+            throw new IllegalArgumentException("Lens can't be NULL!");
+        }
+
+        Collection<Quadrangle> quadrangles = image.getFilteredQuadrangles() != null ? image.getFilteredQuadrangles()
+                : image.getQuadrangles();
+        double[] out = new double[2];
+        for (Quadrangle q : quadrangles)
+        {
+            Point[] points = new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() };
+            double[] corners = new double[8];
+            for (int i = 0; i < 4; i++)
+            {
+                lens.undistort(points[i].x, points[i].y, out);
+                corners[2 * i] = out[0];
+                corners[2 * i + 1] = out[1];
+            }
+            q.setUndistortedCorners(corners);
+        }
+    }
+
+    /**
+     * Undistorted coordinates of an image point, interpolated from the lookup
+     * table. Points outside the image are computed exactly.
+     *
+     * @param x image x
+     * @param y image y
+     * @param out undistorted {x, y}
+     */
+    public void undistort(double x, double y, double[] out)
+    {
+        double gx = x / gridStep;
+        double gy = y / gridStep;
+        int c = (int) gx;
+        int r = (int) gy;
+        if (gx < 0 || gy < 0 || c >= columns - 1 || r >= rows - 1)
+        {
+            undistortExact(x, y, out);
+            return;
+        }
+
+        double fracX = gx - c;
+        double fracY = gy - r;
+        int i = r * columns + c;
+        out[0] = interpolate(tableX, i, fracX, fracY);
+        out[1] = interpolate(tableY, i, fracX, fracY);
+    }
+
+    private double interpolate(float[] table, int i, double fracX, double fracY)
+    {
+        double top = table[i] + (table[i + 1] - table[i]) * fracX;
+        double bottom = table[i + columns] + (table[i + columns + 1] - table[i + columns]) * fracX;
+        return top + (bottom - top) * fracY;
+    }
+
+    /**
+     * Undistorted coordinates of an image point, by inverting the distortion
+     * model with fixed point iterations
+     *
+     * @param x image x
+     * @param y image y
+     * @param out undistorted {x, y}
+     */
+    public void undistortExact(double x, double y, double[] out)
+    {
+        double xd = (x - cx) / fx;
+        double yd = (y - cy) / fy;
+        double xu = xd;
+        double yu = yd;
+        for (int i = 0; i < INVERSION_ITERATIONS; i++)
+        {
+            double r2 = xu * xu + yu * yu;
+            double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+            double dx = 2 * p1 * xu * yu + p2 * (r2 + 2 * xu * xu);
+            double dy = p1 * (r2 + 2 * yu * yu) + 2 * p2 * xu * yu;
+            xu = (xd - dx) / radial;
+            yu = (yd - dy) / radial;
+        }
+        out[0] = xu * fx + cx;
+        out[1] = yu * fy + cy;
+    }
+
+    /**
+     * Image coordinates of an undistorted point
+     *
+     * @param x undistorted x
+     * @param y undistorted y
+     * @param out image {x, y}
+     */
+    public void distort(double x, double y, double[] out)
+    {
+        double xu = (x - cx) / fx;
+        double yu = (y - cy) / fy;
+        double r2 = xu * xu + yu * yu;
+        double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+        out[0] = (xu * radial + 2 * p1 * xu * yu + p2 * (r2 + 2 * xu * xu)) * fx + cx;
+        out[1] = (yu * radial + p1 * (r2 + 2 * yu * yu) + 2 * p2 * xu * yu) * fy + cy;
+    }
+}
@@ -0,0 +1,364 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Marker;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * STEP 10.
+ * Reads the marker ID from the inside of every quadrangle. The marker is a
+ * grid of (N + 2) x (N + 2) cells - a black border one cell thick around
+ * N x N bit cells, white cell is bit 1. The homography of the unit square to
+ * the quadrangle gives the center of every cell, and only these centers are
+ * read from the raster - no warping of the whole quadrangle.
+ * <br/>
+ * Non-markers are rejected early, before the bits are read: the border cells
+ * must be dark and clearly darker than the white quiet zone just outside
+ * the quadrangle.
+ * <br/>
+ * Without a dictionary the ID is the smallest of the 4 rotations of the bits.
+ * With a dictionary the closest dictionary code, within a few flipped bits,
+ * gives the ID and the rotation, and unknown codes are rejected.
+ * @author neandertal
+ */
+public class MarkerDecoder
+{
+    /** Bit cells per marker side */
+    public static final int DEFAULT_BITS_PER_SIDE = 4;
+    /** Minimum gray difference of the quiet zone and the border */
+    public static final int DEFAULT_MIN_CONTRAST = 40;
+    /** Markers read with lower confidence are rejected */
+    public static final float DEFAULT_MIN_CONFIDENCE = 0.2f;
+
+    /**
+     * Decode markers with default values
+     * @param image
+     * @return decoded markers
+     */
+    public static List<Marker> decodeMarkers(Container image)
+    {
+        return decodeMarkers(image, DEFAULT_BITS_PER_SIDE, DEFAULT_MIN_CONTRAST, DEFAULT_MIN_CONFIDENCE);
+    }
+
+    /**
+     * Decode markers, which are in the dictionary, with default values
+     * @param image
+     * @param dictionary known marker codes
+     * @return decoded markers
+     */
+    public static List<Marker> decodeMarkers(Container image, MarkerDictionary dictionary)
+    {
+        return decodeMarkers(image, dictionary, DEFAULT_MIN_CONTRAST, DEFAULT_MIN_CONFIDENCE);
+    }
+
+    /**
+     * Decode markers with custom values. The filtered quadrangles are used,
+     * if the filter has been run, otherwise all quadrangles.
+     * @param image
+     * @param bitsPerSide custom count of bit cells per marker side, up to 8
+     * @param minContrast custom minimum gray difference of the quiet zone and the border
+     * @param minConfidence custom minimum confidence of the reading
+     * @return decoded markers
+     */
+    public static List<Marker> decodeMarkers(Container image, int bitsPerSide, int minContrast, float minConfidence)
+    {
+        if (bitsPerSide < 1 || bitsPerSide > 8)
+        {
+            throw new IllegalArgumentException("Bits per side must be between 1 and 8!");
+        }
+
+        return decodeMarkers(image, new Sampler(bitsPerSide, null), minContrast, minConfidence);
+    }
+
+    /**
+     * Decode markers, which are in the dictionary, with custom values. The
+     * filtered quadrangles are used, if the filter has been run, otherwise
+     * all quadrangles.
+     * @param image
+     * @param dictionary known marker codes
+     * @param minContrast custom minimum gray difference of the quiet zone and the border
+     * @param minConfidence custom minimum confidence of the reading
+     * @return decoded markers
+     */
+    public static List<Marker> decodeMarkers(Container image, MarkerDictionary dictionary, int minContrast,
+            float minConfidence)
+    {
+        if (dictionary == null)
+        {
+            throw new IllegalArgumentException("Dictionary can't be NULL!");
+        }
+
+        return decodeMarkers(image, new Sampler(dictionary.getBitsPerSide(), dictionary), minContrast, minConfidence);
+    }
+
+    // Decode markers with a sampler, which can be reused for the next images
+    static List<Marker> decodeMarkers(Container image, Sampler sampler, int minContrast, float minConfidence)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getQuadrangles() == null)
+        {
+            throw new IllegalArgumentException("Quadrangles can't be NULL!");
+        }
+
+        Collection<Quadrangle> quadrangles = image.getFilteredQuadrangles() != null ? image.getFilteredQuadrangles()
+                : image.getQuadrangles();
+
+        sampler.setImage(image.getImage());
+        List<Marker> markers = new ArrayList<Marker>();
+        for (Quadrangle q : quadrangles)
+        {
+            Marker marker = sampler.decode(q, minContrast, minConfidence);
+            if (marker != null)
+            {
+                markers.add(marker);
+            }
+        }
+
+        image.setMarkers(markers);
+        return markers;
+    }
+
+    /**
+     * Rotate a square grid of bits clock-wise by quarter turns. Bits are
+     * row by row, starting from the top-left cell, the most significant bit first.
+     * @param bits the grid
+     * @param bitsPerSide grid side
+     * @param turns clock-wise quarter turns
+     * @return rotated grid
+     */
+    public static long rotateBits(long bits, int bitsPerSide, int turns)
+    {
+        int n = bitsPerSide;
+        int last = n * n - 1;
+        for (int t = 0; t < (turns & 3); t++)
+        {
+            long rotated = 0;
+            for (int r = 0; r < n; r++)
+            {
+                for (int c = 0; c < n; c++)
+                {
+                    // new cell (r, c) is the old cell (n - 1 - c, r)
+                    long bit = (bits >>> (last - ((n - 1 - c) * n + r))) & 1L;
+                    rotated |= bit << (last - (r * n + c));
+                }
+            }
+            bits = rotated;
+        }
+        return bits;
+    }
+
+    // Reads the cells of the quadrangles of an image. Keeps the fixed size
+    // scratch arrays, so nothing is allocated for rejected quadrangles, and
+    // can be reused for the next images.
+    static class Sampler
+    {
+        private BufferedImage img;
+        private int[] pixels;
+        private int bitsPerSide;
+        private MarkerDictionary dictionary;
+        private int cells;
+        private Point[] points = new Point[4];
+        private double[] corners = new double[8];
+        private double[] h = new double[9];
+        private double[] p = new double[2];
+        private int[] samples;
+
+        public Sampler(int bitsPerSideArg, MarkerDictionary dictionaryArg)
+        {
+            bitsPerSide = bitsPerSideArg;
+            dictionary = dictionaryArg;
+            cells = bitsPerSide + 2;
+            samples = new int[bitsPerSide * bitsPerSide];
+        }
+
+        public void setImage(BufferedImage imgArg)
+        {
+            img = imgArg;
+            pixels = PixelAccess.getPixels(img);
+        }
+
+        public Marker decode(Quadrangle q, int minContrast, float minConfidence)
+        {
+            // corners clock-wise on the screen, so the bits are not mirrored
+            points[0] = q.getP1();
+            points[1] = q.getP2();
+            points[2] = q.getP3();
+            points[3] = q.getP4();
+            long doubleArea = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                Point a = points[i];
+                Point b = points[(i + 1) % 4];
+                doubleArea += (long) a.x * b.y - (long) b.x * a.y;
+            }
+            if (doubleArea < 0)
+            {
+                Point tmp = points[1];
+                points[1] = points[3];
+                points[3] = tmp;
+            }
+            for (int i = 0; i < 4; i++)
+            {
+                corners[2 * i] = points[i].x;
+                corners[2 * i + 1] = points[i].y;
+            }
+
+            if (!Homography.squareToQuad(corners, h))
+            {
+                return null;
+            }
+
+            // quiet zone - half a cell outside every side
+            float outside = 0;
+            int outsideCount = 0;
+            float half = 0.5f / cells;
+            for (int side = 0; side < 4; side++)
+            {
+                float u = side == 1 ? 1 + half : (side == 3 ? -half : 0.5f);
+                float v = side == 0 ? -half : (side == 2 ? 1 + half : 0.5f);
+                int luma = sample(u, v);
+                if (luma >= 0)
+                {
+                    outside += luma;
+                    outsideCount++;
+                }
+            }
+            if (outsideCount == 0)
+            {
+                return null;
+            }
+            outside /= outsideCount;
+
+            // border cells
+            int maxBorder = 0;
+            float border = 0;
+            int borderCount = 0;
+            for (int r = 0; r < cells; r++)
+            {
+                for (int c = 0; c < cells; c += (r == 0 || r == cells - 1) ? 1 : cells - 1)
+                {
+                    int luma = sampleCell(r, c);
+                    if (luma < 0)
+                    {
+                        return null;
+                    }
+                    maxBorder = Math.max(maxBorder, luma);
+                    border += luma;
+                    borderCount++;
+                }
+            }
+            border /= borderCount;
+
+            float contrast = outside - border;
+            float threshold = (outside + border) / 2;
+            if (contrast < minContrast || maxBorder >= threshold)
+            {
+                // not a black on white marker
+                return null;
+            }
+
+            // bit cells
+            long bits = 0;
+            float minMargin = maxBorder < threshold ? threshold - maxBorder : 0;
+            for (int r = 0; r < bitsPerSide; r++)
+            {
+                for (int c = 0; c < bitsPerSide; c++)
+                {
+                    int luma = sampleCell(r + 1, c + 1);
+                    if (luma < 0)
+                    {
+                        return null;
+                    }
+                    bits = (bits << 1) | (luma > threshold ? 1 : 0);
+                    minMargin = Math.min(minMargin, Math.abs(luma - threshold));
+                }
+            }
+
+            float confidence = Math.min(1f, minMargin / (contrast / 2));
+
+            if (dictionary != null)
+            {
+                int entry = dictionary.find(bits);
+                if (entry < 0)
+                {
+                    // unknown code
+                    return null;
+                }
+
+                // every flipped bit lowers the confidence
+                int distance = dictionary.getDistance(bits, entry);
+                confidence *= 1f - distance / (float) (dictionary.getMaxDistance() + 1);
+                if (confidence < minConfidence)
+                {
+                    return null;
+                }
+
+                // the entry is the code rotated clock-wise, the read bits are turned back
+                int rotation = (4 - dictionary.getRotation(entry)) & 3;
+                return createMarker(q, points, dictionary.getId(entry), rotation, confidence);
+            }
+
+            if (confidence < minConfidence)
+            {
+                return null;
+            }
+
+            // the smallest rotation is the ID
+            long id = bits;
+            int rotation = 0;
+            for (int t = 1; t < 4; t++)
+            {
+                long rotated = rotateBits(bits, bitsPerSide, t);
+                if (rotated < id)
+                {
+                    id = rotated;
+                    rotation = t;
+                }
+            }
+
+            return createMarker(q, points, id, rotation, confidence);
+        }
+
+        // gray value at the center of the cell, -1 if outside the image
+        private int sampleCell(int row, int col)
+        {
+            return sample((col + 0.5f) / cells, (row + 0.5f) / cells);
+        }
+
+        // gray value at the unit square coordinates, -1 if outside the image
+        private int sample(float u, float v)
+        {
+            Homography.project(h, u, v, p);
+            int x = (int) Math.round(p[0]);
+            int y = (int) Math.round(p[1]);
+            if (x < 0 || y < 0 || x >= img.getWidth() || y >= img.getHeight())
+            {
+                return -1;
+            }
+            return PixelAccess.getLuma(PixelAccess.getRGB(img, pixels, x, y));
+        }
+    }
+
+    // After rotating the read bits clock-wise, the old bottom-left corner
+    // becomes top-left, so the corners shift by one for every turn
+    private static Marker createMarker(Quadrangle q, Point[] points, long id, int rotation, float confidence)
+    {
+        Point[] ordered = new Point[4];
+        for (int i = 0; i < 4; i++)
+        {
+            ordered[i] = points[(i - rotation + 4) % 4];
+        }
+        return new Marker(q, id, rotation, confidence, ordered);
+    }
+}
@@ -0,0 +1,357 @@
+package neandertal.jaugre.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Dictionary of marker codes, which finds the closest code within a few
+ * flipped bits in near constant time.
+ * <br/>
+ * Every code is stored in its 4 rotations. The bits are split in more than
+ * maxDistance substrings - if two codes differ in at most maxDistance bits,
+ * at least one of the substrings is equal in both (multi-index hashing).
+ * For every substring the entries are bucketed by the substring value, so a
+ * lookup checks only the few entries in one bucket per substring.
+ * <br/>
+ * All tables are primitive arrays. The dictionary can be saved once and
+ * memory-mapped from the file for fast startup.
+ * <br/>
+ * Uses:
+ * <br/>
+ * Norouzi, Punjani, Fleet - Fast Search in Hamming Space with Multi-Index Hashing
+ * @author neandertal
+ */
+public class MarkerDictionary
+{
+    /** Default maximum count of flipped bits */
+    public static final int DEFAULT_MAX_DISTANCE = 2;
+    /** Maximum bits of a substring, bounds the size of the bucket tables */
+    public static final int MAX_SUBSTRING_BITS = 20;
+
+    private static final int MAGIC = 0x4D4B4443;// MKDC
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 8;
+
+    private int bitsPerSide;
+    private int maxDistance;
+    private int idsCount;
+    private int entriesCount;
+    private int substrings;
+    private int substringBits;
+
+    // code of every entry
+    private LongBuffer codes;
+    // id * 4 + rotation of every entry
+    private IntBuffer values;
+    // for every substring - bucket offsets followed by the entries ordered by bucket
+    private IntBuffer[] offsets;
+    private IntBuffer[] entries;
+
+    private MarkerDictionary() {}
+
+    /**
+     * Build dictionary with the default maximum distance
+     * @param codes marker codes, the ID of a marker is its index
+     * @param bitsPerSide bit cells per marker side
+     * @return dictionary
+     */
+    public static MarkerDictionary build(long[] codes, int bitsPerSide)
+    {
+        return build(codes, bitsPerSide, DEFAULT_MAX_DISTANCE);
+    }
+
+    /**
+     * Build dictionary
+     * @param codes marker codes, the ID of a marker is its index
+     * @param bitsPerSide bit cells per marker side, up to 8
+     * @param maxDistance custom maximum count of flipped bits
+     * @return dictionary
+     */
+    public static MarkerDictionary build(long[] codes, int bitsPerSide, int maxDistance)
+    {
+        if (codes == null)
+        {
+            throw new IllegalArgumentException("Codes can't be NULL!");
+        }
+
+        if (bitsPerSide < 1 || bitsPerSide > 8)
+        {
+            throw new IllegalArgumentException("Bits per side must be between 1 and 8!");
+        }
+
+        int totalBits = bitsPerSide * bitsPerSide;
+        if (maxDistance < 0 || maxDistance >= totalBits)
+        {
+            throw new IllegalArgumentException("Maximum distance is out of range!");
+        }
+
+        MarkerDictionary d = new MarkerDictionary();
+        d.bitsPerSide = bitsPerSide;
+        d.maxDistance = maxDistance;
+        d.idsCount = codes.length;
+        d.entriesCount = codes.length * 4;
+        d.substrings = Math.min(totalBits, Math.max(maxDistance + 1, (totalBits + MAX_SUBSTRING_BITS - 1) / MAX_SUBSTRING_BITS));
+        d.substringBits = (totalBits + d.substrings - 1) / d.substrings;
+
+        long[] allCodes = new long[d.entriesCount];
+        int[] allValues = new int[d.entriesCount];
+        for (int id = 0; id < codes.length; id++)
+        {
+            for (int r = 0; r < 4; r++)
+            {
+                allCodes[4 * id + r] = MarkerDecoder.rotateBits(codes[id], bitsPerSide, r);
+                allValues[4 * id + r] = 4 * id + r;
+            }
+        }
+        d.codes = LongBuffer.wrap(allCodes);
+        d.values = IntBuffer.wrap(allValues);
+
+        // counting sort of the entries by every substring
+        int buckets = 1 << d.substringBits;
+        d.offsets = new IntBuffer[d.substrings];
+        d.entries = new IntBuffer[d.substrings];
+        for (int s = 0; s < d.substrings; s++)
+        {
+            int[] offsetsArray = new int[buckets + 1];
+            int[] entriesArray = new int[d.entriesCount];
+            for (int e = 0; e < d.entriesCount; e++)
+            {
+                offsetsArray[d.substring(allCodes[e], s) + 1]++;
+            }
+            for (int b = 0; b < buckets; b++)
+            {
+                offsetsArray[b + 1] += offsetsArray[b];
+            }
+            int[] fill = Arrays.copyOf(offsetsArray, buckets);
+            for (int e = 0; e < d.entriesCount; e++)
+            {
+                entriesArray[fill[d.substring(allCodes[e], s)]++] = e;
+            }
+            d.offsets[s] = IntBuffer.wrap(offsetsArray);
+            d.entries[s] = IntBuffer.wrap(entriesArray);
+        }
+
+        return d;
+    }
+
+    /**
+     * Save the dictionary, so it can be loaded with {@link #load(File)}
+     * @param file target file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException
+    {
+        int buckets = 1 << substringBits;
+        long size = 4L * HEADER_INTS + 8L * entriesCount + 4L * entriesCount
+                + (long) substrings * 4L * (buckets + 1 + entriesCount);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(bitsPerSide).putInt(maxDistance);
+            buffer.putInt(idsCount).putInt(entriesCount).putInt(substrings).putInt(substringBits);
+            for (int e = 0; e < entriesCount; e++)
+            {
+                buffer.putLong(codes.get(e));
+            }
+            for (int e = 0; e < entriesCount; e++)
+            {
+                buffer.putInt(values.get(e));
+            }
+            for (int s = 0; s < substrings; s++)
+            {
+                for (int b = 0; b <= buckets; b++)
+                {
+                    buffer.putInt(offsets[s].get(b));
+                }
+                for (int e = 0; e < entriesCount; e++)
+                {
+                    buffer.putInt(entries[s].get(e));
+                }
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Memory-map a dictionary saved with {@link #save(File)}. Nothing is
+     * copied, the tables are read from the mapped file.
+     * @param file source file
+     * @return dictionary
+     * @throws IOException
+     */
+    public static MarkerDictionary load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            {
+                throw new IOException("Not a marker dictionary: " + file);
+            }
+
+            MarkerDictionary d = new MarkerDictionary();
+            d.bitsPerSide = buffer.getInt();
+            d.maxDistance = buffer.getInt();
+            d.idsCount = buffer.getInt();
+            d.entriesCount = buffer.getInt();
+            d.substrings = buffer.getInt();
+            d.substringBits = buffer.getInt();
+            int buckets = 1 << d.substringBits;
+
+            d.codes = slice(buffer, 8 * d.entriesCount).asLongBuffer();
+            d.values = slice(buffer, 4 * d.entriesCount).asIntBuffer();
+            d.offsets = new IntBuffer[d.substrings];
+            d.entries = new IntBuffer[d.substrings];
+            for (int s = 0; s < d.substrings; s++)
+            {
+                d.offsets[s] = slice(buffer, 4 * (buckets + 1)).asIntBuffer();
+                d.entries[s] = slice(buffer, 4 * d.entriesCount).asIntBuffer();
+            }
+            return d;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // next bytes of the buffer as a separate buffer
+    private static ByteBuffer slice(ByteBuffer buffer, int bytes)
+    {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(bytes);
+        buffer.position(buffer.position() + bytes);
+        return slice;
+    }
+
+    /**
+     * Find the closest entry within the maximum distance of the dictionary
+     * @param code read bits
+     * @return entry index or -1 if there is no close entry
+     */
+    public int find(long code)
+    {
+        return find(code, maxDistance);
+    }
+
+    /**
+     * Find the closest entry within the given distance
+     * @param code read bits
+     * @param distance maximum count of flipped bits, not more than the maximum distance of the dictionary
+     * @return entry index or -1 if there is no close entry
+     */
+    public int find(long code, int distance)
+    {
+        if (distance > maxDistance)
+        {
+            throw new IllegalArgumentException("Distance is more than the dictionary supports!");
+        }
+
+        int best = -1;
+        int bestDistance = distance + 1;
+        for (int s = 0; s < substrings; s++)
+        {
+            int bucket = substring(code, s);
+            int end = offsets[s].get(bucket + 1);
+            for (int k = offsets[s].get(bucket); k < end; k++)
+            {
+                int e = entries[s].get(k);
+                int d = Long.bitCount(code ^ codes.get(e));
+                if (d < bestDistance)
+                {
+                    best = e;
+                    bestDistance = d;
+                    if (d == 0)
+                    {
+                        return best;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Closest entry by checking all entries, for comparison with {@link #find(long, int)}
+     * @param code read bits
+     * @param distance maximum count of flipped bits
+     * @return entry index or -1 if there is no close entry
+     */
+    public int findLinear(long code, int distance)
+    {
+        int best = -1;
+        int bestDistance = distance + 1;
+        for (int e = 0; e < entriesCount; e++)
+        {
+            int d = Long.bitCount(code ^ codes.get(e));
+            if (d < bestDistance)
+            {
+                best = e;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    /** @return marker ID of the entry */
+    public int getId(int entry)
+    {
+        return values.get(entry) >> 2;
+    }
+
+    /** @return clock-wise quarter turns of the marker code, stored in the entry */
+    public int getRotation(int entry)
+    {
+        return values.get(entry) & 3;
+    }
+
+    /** @return rotated marker code of the entry */
+    public long getCode(int entry)
+    {
+        return codes.get(entry);
+    }
+
+    /** @return count of different bits of the code and the entry */
+    public int getDistance(long code, int entry)
+    {
+        return Long.bitCount(code ^ codes.get(entry));
+    }
+
+    public int getBitsPerSide()
+    {
+        return bitsPerSide;
+    }
+
+    public int getMaxDistance()
+    {
+        return maxDistance;
+    }
+
+    public int getIdsCount()
+    {
+        return idsCount;
+    }
+
+    // value of the s-th substring of the code
+    private int substring(long code, int s)
+    {
+        return (int) ((code >>> (s * substringBits)) & ((1L << substringBits) - 1));
+    }
+}
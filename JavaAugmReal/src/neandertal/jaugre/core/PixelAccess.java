@@ -0,0 +1,135 @@
+package neandertal.jaugre.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+
+/**
+ * Direct access to the pixels of packed RGB images. BufferedImage.getRGB
+ * converts every pixel through the color model, for the common int RGB
+ * images and the BGR images loaded by ImageIO the raster array can be read
+ * directly instead.
+ * @author neandertal
+ */
+public final class PixelAccess
+{
+    private PixelAccess() {}
+
+    /**
+     * Returns the pixels array of the image, if the image is packed int RGB
+     * with a row stride equal to its width, or NULL otherwise. Pixel at x, y
+     * is at index y * width + x.
+     *
+     * @param img image
+     * @return pixels in 0xRRGGBB format (the alpha byte is undefined) or NULL
+     */
+    public static int[] getPixels(BufferedImage img)
+    {
+        int type = img.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+        {
+            return null;
+        }
+
+        Raster raster = img.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel))
+        {
+            return null;
+        }
+
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        if (model.getScanlineStride() != img.getWidth() || raster.getDataBuffer().getNumBanks() != 1)
+        {
+            return null;
+        }
+
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (buffer.getOffset() != 0)
+        {
+            return null;
+        }
+
+        return buffer.getData();
+    }
+
+    /**
+     * Returns the bytes array of the image, if the image is 3 byte BGR with a
+     * row stride of three times its width, or NULL otherwise. Pixel at x, y
+     * starts at index (y * width + x) * 3, see {@link #getRGB(byte[], int)}.
+     *
+     * @param img image
+     * @return bytes in B, G, R order or NULL
+     */
+    public static byte[] getBytes(BufferedImage img)
+    {
+        if (img.getType() != BufferedImage.TYPE_3BYTE_BGR)
+        {
+            return null;
+        }
+
+        Raster raster = img.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel))
+        {
+            return null;
+        }
+
+        PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+        int[] bandOffsets = model.getBandOffsets();
+        if (model.getPixelStride() != 3 || model.getScanlineStride() != 3 * img.getWidth()
+                || bandOffsets.length != 3 || bandOffsets[0] != 2 || bandOffsets[1] != 1 || bandOffsets[2] != 0
+                || raster.getDataBuffer().getNumBanks() != 1)
+        {
+            return null;
+        }
+
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        if (buffer.getOffset() != 0)
+        {
+            return null;
+        }
+
+        return buffer.getData();
+    }
+
+    /**
+     * Pixel of the bytes array of a BGR image
+     *
+     * @param bytes bytes array from {@link #getBytes(BufferedImage)}
+     * @param index index of the first byte of the pixel
+     * @return pixel in 0xRRGGBB format
+     */
+    public static int getRGB(byte[] bytes, int index)
+    {
+        return ((bytes[index + 2] & 0xFF) << 16) | ((bytes[index + 1] & 0xFF) << 8) | (bytes[index] & 0xFF);
+    }
+
+    /**
+     * Pixel of the image, read from the pixels array when available
+     *
+     * @param img image
+     * @param pixels pixels array from {@link #getPixels(BufferedImage)}, can be NULL
+     * @return pixel in 0xRRGGBB format
+     */
+    public static int getRGB(BufferedImage img, int[] pixels, int x, int y)
+    {
+        if (pixels != null)
+        {
+            return pixels[y * img.getWidth() + x];
+        }
+        return img.getRGB(x, y);
+    }
+
+    /**
+     * Gray value of a pixel, (R + 2G + B) / 4
+     */
+    public static int getLuma(int pixel)
+    {
+        return (((pixel >> 16) & 0xFF) + (((pixel >> 8) & 0xFF) << 1) + (pixel & 0xFF)) >> 2;
+    }
+}
@@ -0,0 +1,576 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import neandertal.jaugre.core.data.CameraIntrinsics;
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Marker;
+import neandertal.jaugre.core.data.Pose;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * STEP 11.
+ * Estimates the camera pose of every marker from its 4 corners. The
+ * homography of the marker plane to the normalized image plane is
+ * decomposed to the first rotation and translation, which are then refined
+ * by a few Gauss-Newton steps, minimizing the reprojection error of the
+ * corners.
+ * <br/>
+ * The math works on fixed size primitive arrays, kept in the estimator, so
+ * nothing is allocated per estimated pose. An estimator instance is not
+ * thread safe - use one per thread.
+ * <br/>
+ * Uses:
+ * <br/>
+ * Zhang, A Flexible New Technique for Camera Calibration - homography decomposition
+ * @author neandertal
+ */
+public class PoseEstimator
+{
+    /** Refinement steps */
+    public static final int DEFAULT_ITERATIONS = 5;
+
+    // Levenberg-Marquardt damping, relative to the diagonal of the normal equations
+    private static final double INITIAL_DAMPING = 1e-3;
+    private static final double MAX_DAMPING = 1e6;
+    private static final double SQRT2 = Math.sqrt(2);
+
+    private double fx;
+    private double fy;
+    private double cx;
+    private double cy;
+    private int iterations;
+    // marker corners in the marker plane {x1, y1, .. x4, y4}
+    private double[] model = new double[8];
+    // plane to unit square
+    private double[] planeToSquare = new double[9];
+
+    // scratch
+    private double[] quad = new double[8];
+    private double[] squareToImage = new double[9];
+    private double[] h = new double[9];
+    private double[] r = new double[9];
+    private double[] t = new double[3];
+    private double[] jtj = new double[36];
+    private double[] jtr = new double[6];
+    private double[] delta = new double[6];
+    private double[] jacobian = new double[6];
+    private double[] dr = new double[9];
+    private double[] tmp = new double[9];
+    private double[] previousR = new double[9];
+    private double[] previousT = new double[3];
+    private double damping;
+
+    /**
+     * Estimator with the default count of refinement steps
+     * @param camera camera intrinsics
+     * @param markerSize side of the black marker square, in the units of the translation
+     */
+    public PoseEstimator(CameraIntrinsics camera, double markerSize)
+    {
+        this(camera, markerSize, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Estimator with custom count of refinement steps
+     * @param camera camera intrinsics
+     * @param markerSize side of the black marker square, in the units of the translation
+     * @param iterationsArg custom count of Gauss-Newton steps
+     */
+    public PoseEstimator(CameraIntrinsics camera, double markerSize, int iterationsArg)
+    {
+        if (camera == null)
+        {
+            throw new IllegalArgumentException("Camera intrinsics can't be NULL!");
+        }
+
+        if (markerSize <= 0)
+        {
+            throw new IllegalArgumentException("Marker size must be positive!");
+        }
+
+        if (iterationsArg < 0)
+        {
+            throw new IllegalArgumentException("Iterations can't be negative!");
+        }
+
+        fx = camera.getFx();
+        fy = camera.getFy();
+        cx = camera.getCx();
+        cy = camera.getCy();
+        iterations = iterationsArg;
+
+        // top-left, top-right, bottom-right, bottom-left
+        double half = markerSize / 2;
+        double[] corners = new double[] { -half, -half, half, -half, half, half, -half, half };
+        System.arraycopy(corners, 0, model, 0, 8);
+
+        planeToSquare[0] = 1 / markerSize;
+        planeToSquare[2] = 0.5;
+        planeToSquare[4] = 1 / markerSize;
+        planeToSquare[5] = 0.5;
+        planeToSquare[8] = 1;
+    }
+
+    /**
+     * Estimate the poses of all markers of the image. The decoded markers are
+     * used if available, since their corners are in marker orientation,
+     * otherwise the (filtered) quadrangles. The undistorted corners are used
+     * if the lens distortion is removed by {@link LensUndistortion}.
+     *
+     * @param image
+     * @param camera camera intrinsics
+     * @param markerSize side of the black marker square, in the units of the translation
+     * @return poses
+     */
+    public static List<Pose> estimatePoses(Container image, CameraIntrinsics camera, double markerSize)
+    {
+        return new PoseEstimator(camera, markerSize).estimatePoses(image);
+    }
+
+    /**
+     * Estimate the poses of all markers of the image, as
+     * {@link #estimatePoses(Container, CameraIntrinsics, double)} does
+     *
+     * @param image
+     * @return poses
+     */
+    public List<Pose> estimatePoses(Container image)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getMarkers() == null && image.getQuadrangles() == null)
+        {
+            throw new IllegalArgumentException("Markers and quadrangles can't be NULL!");
+        }
+
+        List<Quadrangle> quadrangles = new ArrayList<Quadrangle>();
+        List<Point[]> points = new ArrayList<Point[]>();
+        if (image.getMarkers() != null)
+        {
+            for (Marker m : image.getMarkers())
+            {
+                quadrangles.add(m.getQuadrangle());
+                points.add(m.getCorners());
+            }
+        }
+        else
+        {
+            Collection<Quadrangle> all = image.getFilteredQuadrangles() != null ? image.getFilteredQuadrangles()
+                    : image.getQuadrangles();
+            for (Quadrangle q : all)
+            {
+                quadrangles.add(q);
+                points.add(new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() });
+            }
+        }
+
+        int count = quadrangles.size();
+        double[] corners = new double[8 * count];
+        for (int i = 0; i < count; i++)
+        {
+            Quadrangle q = quadrangles.get(i);
+            Point[] p = points.get(i);
+            double[] undistorted = q.getUndistortedCorners();
+            for (int k = 0; k < 4; k++)
+            {
+                if (undistorted != null)
+                {
+                    int c = cornerIndex(q, p[k]);
+                    corners[8 * i + 2 * k] = undistorted[2 * c];
+                    corners[8 * i + 2 * k + 1] = undistorted[2 * c + 1];
+                }
+                else
+                {
+                    corners[8 * i + 2 * k] = p[k].x;
+                    corners[8 * i + 2 * k + 1] = p[k].y;
+                }
+            }
+        }
+
+        double[] rotations = new double[9 * count];
+        double[] translations = new double[3 * count];
+        double[] errors = new double[count];
+        estimatePoses(corners, count, rotations, translations, errors);
+
+        List<Pose> poses = new ArrayList<Pose>(count);
+        for (int i = 0; i < count; i++)
+        {
+            if (Double.isNaN(errors[i]))
+            {
+                continue;
+            }
+
+            double[] rotation = new double[9];
+            double[] translation = new double[3];
+            System.arraycopy(rotations, 9 * i, rotation, 0, 9);
+            System.arraycopy(translations, 3 * i, translation, 0, 3);
+            poses.add(new Pose(quadrangles.get(i), rotation, translation, errors[i]));
+        }
+
+        image.setPoses(poses);
+        return poses;
+    }
+
+    // index of the corner in the quadrangle, the marker corners are the same points reordered
+    private static int cornerIndex(Quadrangle q, Point p)
+    {
+        if (p == q.getP1())
+        {
+            return 0;
+        }
+        if (p == q.getP2())
+        {
+            return 1;
+        }
+        return p == q.getP3() ? 2 : 3;
+    }
+
+    /**
+     * Estimate the poses of all quadrangles of a frame at once
+     *
+     * @param corners 8 values per quadrangle - corners clock-wise on the screen,
+     *        starting from the marker's top-left, {x1, y1, .. x4, y4}
+     * @param count count of quadrangles
+     * @param rotations output, 9 values per quadrangle - rotation matrix, row by row
+     * @param translations output, 3 values per quadrangle
+     * @param errors output, 1 value per quadrangle - RMS reprojection error in
+     *        pixels, NaN if the pose can not be estimated
+     * @return count of estimated poses
+     */
+    public int estimatePoses(double[] corners, int count, double[] rotations, double[] translations, double[] errors)
+    {
+        int estimated = 0;
+        for (int i = 0; i < count; i++)
+        {
+            errors[i] = estimatePose(corners, 8 * i, rotations, 9 * i, translations, 3 * i);
+            if (!Double.isNaN(errors[i]))
+            {
+                estimated++;
+            }
+        }
+        return estimated;
+    }
+
+    /**
+     * Estimate the pose of one quadrangle
+     *
+     * @param corners corners clock-wise on the screen, starting from the marker's top-left
+     * @param cOffset offset of the corners in the array
+     * @param rotation output rotation matrix, row by row
+     * @param rOffset offset of the rotation in the array
+     * @param translation output translation
+     * @param tOffset offset of the translation in the array
+     * @return RMS reprojection error in pixels, NaN if the pose can not be estimated
+     */
+    public double estimatePose(double[] corners, int cOffset, double[] rotation, int rOffset, double[] translation,
+            int tOffset)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            quad[2 * i] = (corners[cOffset + 2 * i] - cx) / fx;
+            quad[2 * i + 1] = (corners[cOffset + 2 * i + 1] - cy) / fy;
+        }
+
+        if (!Homography.squareToQuad(quad, squareToImage))
+        {
+            return Double.NaN;
+        }
+        Homography.multiply(squareToImage, planeToSquare, h);
+
+        if (!decompose())
+        {
+            return Double.NaN;
+        }
+
+        damping = INITIAL_DAMPING;
+        for (int i = 0; i < iterations; i++)
+        {
+            if (!refine(corners, cOffset))
+            {
+                break;
+            }
+        }
+
+        double error = reprojectionError(corners, cOffset);
+        System.arraycopy(r, 0, rotation, rOffset, 9);
+        System.arraycopy(t, 0, translation, tOffset, 3);
+        return error;
+    }
+
+    // h = lambda * [r1 r2 t], the marker is in front of the camera
+    private boolean decompose()
+    {
+        double norm1 = Math.sqrt(h[0] * h[0] + h[3] * h[3] + h[6] * h[6]);
+        double norm2 = Math.sqrt(h[1] * h[1] + h[4] * h[4] + h[7] * h[7]);
+        if (norm1 == 0 || norm2 == 0)
+        {
+            return false;
+        }
+
+        double lambda = (h[8] < 0 ? -2 : 2) / (norm1 + norm2);
+        t[0] = h[2] * lambda;
+        t[1] = h[5] * lambda;
+        t[2] = h[8] * lambda;
+
+        // r1 and r2 normalized and made orthogonal symmetrically - rotated
+        // apart around their bisector, r3 = r1 x r2
+        double sign = Math.signum(lambda);
+        double ax = h[0] / norm1 * sign;
+        double ay = h[3] / norm1 * sign;
+        double az = h[6] / norm1 * sign;
+        double bx = h[1] / norm2 * sign;
+        double by = h[4] / norm2 * sign;
+        double bz = h[7] / norm2 * sign;
+        double sx = ax + bx;
+        double sy = ay + by;
+        double sz = az + bz;
+        double dx = ax - bx;
+        double dy = ay - by;
+        double dz = az - bz;
+        double sNorm = Math.sqrt(sx * sx + sy * sy + sz * sz) * SQRT2;
+        double dNorm = Math.sqrt(dx * dx + dy * dy + dz * dz) * SQRT2;
+        if (sNorm == 0 || dNorm == 0)
+        {
+            return false;
+        }
+        double r1x = sx / sNorm + dx / dNorm;
+        double r1y = sy / sNorm + dy / dNorm;
+        double r1z = sz / sNorm + dz / dNorm;
+        double r2x = sx / sNorm - dx / dNorm;
+        double r2y = sy / sNorm - dy / dNorm;
+        double r2z = sz / sNorm - dz / dNorm;
+
+        r[0] = r1x;
+        r[3] = r1y;
+        r[6] = r1z;
+        r[1] = r2x;
+        r[4] = r2y;
+        r[7] = r2z;
+        r[2] = r1y * r2z - r1z * r2y;
+        r[5] = r1z * r2x - r1x * r2z;
+        r[8] = r1x * r2y - r1y * r2x;
+        return true;
+    }
+
+    // One damped Gauss-Newton step on (rotation update, translation). The
+    // rotation is updated as R = exp([w]) * R. A step which does not reduce
+    // the error is undone and the damping increased. Returns false when
+    // converged.
+    private boolean refine(double[] corners, int cOffset)
+    {
+        for (int i = 0; i < 36; i++)
+        {
+            jtj[i] = 0;
+        }
+        for (int i = 0; i < 6; i++)
+        {
+            jtr[i] = 0;
+        }
+
+        double sum = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            double px = model[2 * i];
+            double py = model[2 * i + 1];
+            // a = R * P, camera point = a + t
+            double ax = r[0] * px + r[1] * py;
+            double ay = r[3] * px + r[4] * py;
+            double az = r[6] * px + r[7] * py;
+            double x = ax + t[0];
+            double y = ay + t[1];
+            double z = az + t[2];
+            if (z <= 0)
+            {
+                return false;
+            }
+
+            double invZ = 1 / z;
+            double ru = corners[cOffset + 2 * i] - (fx * x * invZ + cx);
+            double rv = corners[cOffset + 2 * i + 1] - (fy * y * invZ + cy);
+            sum += ru * ru + rv * rv;
+
+            // d(camera point)/dw = -[a]x, d(camera point)/dt = I
+            // u row
+            double du0 = fx * invZ;
+            double du2 = -fx * x * invZ * invZ;
+            jacobian[0] = du2 * ay;
+            jacobian[1] = du0 * az - du2 * ax;
+            jacobian[2] = -du0 * ay;
+            jacobian[3] = du0;
+            jacobian[4] = 0;
+            jacobian[5] = du2;
+            accumulate(ru);
+
+            // v row
+            double dv1 = fy * invZ;
+            double dv2 = -fy * y * invZ * invZ;
+            jacobian[0] = -dv1 * az + dv2 * ay;
+            jacobian[1] = -dv2 * ax;
+            jacobian[2] = dv1 * ax;
+            jacobian[3] = 0;
+            jacobian[4] = dv1;
+            jacobian[5] = dv2;
+            accumulate(rv);
+        }
+
+        for (int i = 0; i < 6; i++)
+        {
+            jtj[7 * i] *= 1 + damping;
+        }
+
+        if (!solve())
+        {
+            return false;
+        }
+
+        System.arraycopy(r, 0, previousR, 0, 9);
+        System.arraycopy(t, 0, previousT, 0, 3);
+        t[0] += delta[3];
+        t[1] += delta[4];
+        t[2] += delta[5];
+        rodrigues(delta[0], delta[1], delta[2], dr);
+        Homography.multiply(dr, r, tmp);
+        System.arraycopy(tmp, 0, r, 0, 9);
+
+        double error = reprojectionError(corners, cOffset);
+        if (!(error * error * 4 < sum))
+        {
+            System.arraycopy(previousR, 0, r, 0, 9);
+            System.arraycopy(previousT, 0, t, 0, 3);
+            damping *= 10;
+            return damping < MAX_DAMPING;
+        }
+        damping /= 10;
+
+        double step = 0;
+        for (int i = 0; i < 6; i++)
+        {
+            step += delta[i] * delta[i];
+        }
+        return step > 1e-20;
+    }
+
+    // add J^T * J and J^T * residual of one row
+    private void accumulate(double residual)
+    {
+        for (int i = 0; i < 6; i++)
+        {
+            jtr[i] += jacobian[i] * residual;
+            for (int j = 0; j <= i; j++)
+            {
+                jtj[6 * i + j] += jacobian[i] * jacobian[j];
+            }
+        }
+    }
+
+    // Cholesky solution of jtj * delta = jtr, only the lower triangle of jtj is used
+    private boolean solve()
+    {
+        for (int i = 0; i < 6; i++)
+        {
+            for (int j = 0; j <= i; j++)
+            {
+                double sum = jtj[6 * i + j];
+                for (int k = 0; k < j; k++)
+                {
+                    sum -= jtj[6 * i + k] * jtj[6 * j + k];
+                }
+
+                if (i == j)
+                {
+                    if (sum <= 1e-18)
+                    {
+                        return false;
+                    }
+                    jtj[6 * i + i] = Math.sqrt(sum);
+                }
+                else
+                {
+                    jtj[6 * i + j] = sum / jtj[6 * j + j];
+                }
+            }
+        }
+
+        // forward substitution L * y = jtr
+        for (int i = 0; i < 6; i++)
+        {
+            double sum = jtr[i];
+            for (int k = 0; k < i; k++)
+            {
+                sum -= jtj[6 * i + k] * delta[k];
+            }
+            delta[i] = sum / jtj[6 * i + i];
+        }
+
+        // back substitution L^T * delta = y
+        for (int i = 5; i >= 0; i--)
+        {
+            double sum = delta[i];
+            for (int k = i + 1; k < 6; k++)
+            {
+                sum -= jtj[6 * k + i] * delta[k];
+            }
+            delta[i] = sum / jtj[6 * i + i];
+        }
+        return true;
+    }
+
+    // rotation matrix of the rotation vector w
+    private static void rodrigues(double wx, double wy, double wz, double[] out)
+    {
+        double theta = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double s;
+        double c;
+        if (theta < 1e-12)
+        {
+            s = 1;
+            c = 0;
+        }
+        else
+        {
+            s = Math.sin(theta) / theta;
+            c = (1 - Math.cos(theta)) / (theta * theta);
+        }
+
+        // I + s * [w]x + c * [w]x^2
+        out[0] = 1 - c * (wy * wy + wz * wz);
+        out[1] = -s * wz + c * wx * wy;
+        out[2] = s * wy + c * wx * wz;
+        out[3] = s * wz + c * wx * wy;
+        out[4] = 1 - c * (wx * wx + wz * wz);
+        out[5] = -s * wx + c * wy * wz;
+        out[6] = -s * wy + c * wx * wz;
+        out[7] = s * wx + c * wy * wz;
+        out[8] = 1 - c * (wx * wx + wy * wy);
+    }
+
+    // RMS error in pixels, NaN if a corner is behind the camera
+    private double reprojectionError(double[] corners, int cOffset)
+    {
+        double sum = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            double px = model[2 * i];
+            double py = model[2 * i + 1];
+            double x = r[0] * px + r[1] * py + t[0];
+            double y = r[3] * px + r[4] * py + t[1];
+            double z = r[6] * px + r[7] * py + t[2];
+            if (z <= 0)
+            {
+                return Double.NaN;
+            }
+            double du = corners[cOffset + 2 * i] - (fx * x / z + cx);
+            double dv = corners[cOffset + 2 * i + 1] - (fy * y / z + cy);
+            sum += du * du + dv * dv;
+        }
+        return Math.sqrt(sum / 4);
+    }
+}
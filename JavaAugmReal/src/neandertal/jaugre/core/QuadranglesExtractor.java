@@ -66,7 +66,7 @@ public class QuadranglesExtractor
                 continue;
             }
             
-            Quadrangle q = new Quadrangle(p1, p2, p3, p4);
+            Quadrangle q = new Quadrangle(p1, p2, p3, p4, ls4 != null);
             quadrangles.add(q);
         }
         
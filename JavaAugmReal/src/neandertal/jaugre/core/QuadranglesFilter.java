@@ -0,0 +1,419 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * STEP 9.
+ * Validates the extracted quadrangles and suppresses the duplicates.
+ * Non-convex, tiny and too stretched quadrangles are rejected. From the
+ * quadrangles with matching corners or overlapping areas only the best one
+ * is kept - closed quadrangles are preferred over the ones from 3-line
+ * chains, then the bigger ones. Kept quadrangles are indexed by their
+ * centers in a grid for every size class, with cells of the size of the
+ * class. Duplicates are of a similar size, so every candidate is compared
+ * only to its neighbours in its own and the next size classes.
+ * @author neandertal
+ */
+public class QuadranglesFilter
+{
+    /** Minimum area of a quadrangle, in pixels */
+    public static final float DEFAULT_MIN_AREA = 100f;
+    /** Maximum ratio of the longest to the shortest side */
+    public static final float DEFAULT_MAX_SIDES_RATIO = 6f;
+    /** Maximum distance of matching corners, as part of the mean side */
+    public static final float DEFAULT_DUPLICATE_DISTANCE = 0.15f;
+    /** Lower limit of the matching corners distance, in pixels */
+    public static final float DEFAULT_MIN_DUPLICATE_DISTANCE = 4f;
+    /** Maximum overlap of distinct quadrangles, the area of the intersection over the area of the union */
+    public static final float DEFAULT_MAX_OVERLAP = 0.5f;
+
+    /**
+     * Filter the quadrangles using default values
+     * @param image
+     * @return distinct valid quadrangles
+     */
+    public static List<Quadrangle> filterQuadrangles(Container image)
+    {
+        return filterQuadrangles(image, DEFAULT_MIN_AREA, DEFAULT_MAX_SIDES_RATIO, DEFAULT_DUPLICATE_DISTANCE);
+    }
+
+    /**
+     * Filter the quadrangles using custom values
+     * @param image
+     * @param minArea custom minimum area in pixels
+     * @param maxSidesRatio custom maximum ratio of the longest to the shortest side
+     * @param duplicateDistance custom distance of matching corners, as part of the mean side
+     * @return distinct valid quadrangles
+     */
+    public static List<Quadrangle> filterQuadrangles(Container image, float minArea, float maxSidesRatio,
+            float duplicateDistance)
+    {
+        return filterQuadrangles(image, minArea, maxSidesRatio, duplicateDistance, DEFAULT_MAX_OVERLAP);
+    }
+
+    /**
+     * Filter the quadrangles using custom values
+     * @param image
+     * @param minArea custom minimum area in pixels
+     * @param maxSidesRatio custom maximum ratio of the longest to the shortest side
+     * @param duplicateDistance custom distance of matching corners, as part of the mean side
+     * @param maxOverlap custom maximum overlap of distinct quadrangles, from 0 to 1
+     * @return distinct valid quadrangles
+     */
+    public static List<Quadrangle> filterQuadrangles(Container image, float minArea, float maxSidesRatio,
+            float duplicateDistance, float maxOverlap)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getQuadrangles() == null)
+        {
+            throw new IllegalArgumentException("Quadrangles can't be NULL!");
+        }
+
+        if (minArea < 0 || maxSidesRatio < 1 || duplicateDistance < 0 || maxOverlap <= 0 || maxOverlap > 1)
+        {
+            throw new IllegalArgumentException("Filter limits are out of range!");
+        }
+
+        List<Quadrangle> filtered = filterQuadranglesInternal(image, minArea, maxSidesRatio, duplicateDistance,
+                maxOverlap);
+        image.setFilteredQuadrangles(filtered);
+
+        return filtered;
+    }
+
+    private static List<Quadrangle> filterQuadranglesInternal(Container image, float minArea, float maxSidesRatio,
+            float duplicateDistance, float maxOverlap)
+    {
+        // validate
+        List<Candidate> candidates = new ArrayList<Candidate>(image.getQuadrangles().size());
+        for (Quadrangle q : image.getQuadrangles())
+        {
+            Candidate c = new Candidate(q);
+            if (!isValid(c, minArea, maxSidesRatio))
+            {
+                continue;
+            }
+
+            c.tolerance = Math.max(DEFAULT_MIN_DUPLICATE_DISTANCE, duplicateDistance * c.meanSide);
+            candidates.add(c);
+        }
+
+        // best first
+        Collections.sort(candidates, new Comparator<Candidate>()
+        {
+            @Override
+            public int compare(Candidate a, Candidate b)
+            {
+                if (a.quadrangle.isClosed() != b.quadrangle.isClosed())
+                {
+                    return a.quadrangle.isClosed() ? -1 : 1;
+                }
+                return Float.compare(b.area, a.area);
+            }
+        });
+
+        SizeGrid grid = new SizeGrid(maxOverlap);
+        Overlap overlap = new Overlap();
+        List<Quadrangle> result = new ArrayList<Quadrangle>();
+        for (Candidate c : candidates)
+        {
+            if (grid.hasDuplicate(c, overlap, maxOverlap))
+            {
+                continue;
+            }
+
+            grid.add(c);
+            result.add(c.quadrangle);
+        }
+
+        return result;
+    }
+
+    // convex, big enough and not too stretched
+    private static boolean isValid(Candidate c, float minArea, float maxSidesRatio)
+    {
+        Point[] p = c.points;
+        long sign = 0;
+        float minSide = Float.MAX_VALUE;
+        float maxSide = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            Point a = p[i];
+            Point b = p[(i + 1) % 4];
+            Point d = p[(i + 2) % 4];
+            long cross = (long) (b.x - a.x) * (d.y - b.y) - (long) (b.y - a.y) * (d.x - b.x);
+            if (cross == 0 || (sign != 0 && (cross > 0) != (sign > 0)))
+            {
+                // collinear corners or turn in the other direction
+                return false;
+            }
+            sign = cross;
+
+            float side = (float) Math.hypot(b.x - a.x, b.y - a.y);
+            minSide = Math.min(minSide, side);
+            maxSide = Math.max(maxSide, side);
+        }
+
+        if (c.area < minArea)
+        {
+            return false;
+        }
+
+        return maxSide <= minSide * maxSidesRatio;
+    }
+
+    // Every corner has a matching corner in the other quadrangle, or the
+    // quadrangles overlap more than the limit
+    private static boolean isDuplicate(Candidate a, Candidate b, Overlap overlap, float maxOverlap)
+    {
+        if (hasMatchingCorners(a, b))
+        {
+            return true;
+        }
+
+        if (a.maxX <= b.minX || b.maxX <= a.minX || a.maxY <= b.minY || b.maxY <= a.minY)
+        {
+            return false;
+        }
+        float intersection = overlap.intersectionArea(a, b);
+        return intersection > maxOverlap * (a.area + b.area - intersection);
+    }
+
+    private static boolean hasMatchingCorners(Candidate a, Candidate b)
+    {
+        float tolerance = Math.max(a.tolerance, b.tolerance);
+        float squaredTolerance = tolerance * tolerance;
+        for (Point pa : a.points)
+        {
+            boolean matched = false;
+            for (Point pb : b.points)
+            {
+                float dX = pa.x - pb.x;
+                float dY = pa.y - pb.y;
+                if (dX * dX + dY * dY <= squaredTolerance)
+                {
+                    matched = true;
+                    break;
+                }
+            }
+
+            if (!matched)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // Quadrangle with its precalculated measures
+    private static class Candidate
+    {
+        private Quadrangle quadrangle;
+        private Point[] points;
+        private float area;
+        private float meanSide;
+        private float centerX;
+        private float centerY;
+        private int minX = Integer.MAX_VALUE;
+        private int minY = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE;
+        private int maxY = Integer.MIN_VALUE;
+        private float tolerance;
+        // size class, the base 2 logarithm of the side of a square of the same area
+        private int sizeClass;
+
+        public Candidate(Quadrangle q)
+        {
+            quadrangle = q;
+            points = new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() };
+
+            long doubleArea = 0;
+            float perimeter = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                Point a = points[i];
+                Point b = points[(i + 1) % 4];
+                doubleArea += (long) a.x * b.y - (long) b.x * a.y;
+                perimeter += (float) Math.hypot(b.x - a.x, b.y - a.y);
+                centerX += a.x / 4f;
+                centerY += a.y / 4f;
+                minX = Math.min(minX, a.x);
+                minY = Math.min(minY, a.y);
+                maxX = Math.max(maxX, a.x);
+                maxY = Math.max(maxY, a.y);
+            }
+            area = Math.abs(doubleArea) / 2f;
+            meanSide = perimeter / 4;
+            sizeClass = Math.max(0, 31 - Integer.numberOfLeadingZeros((int) Math.sqrt(area)));
+        }
+    }
+
+    // Kept candidates by their size class, in cells of twice the side of
+    // their class. The area ratio of overlapping candidates is over the
+    // overlap limit, so their classes differ by its half logarithm at most.
+    // Candidates with matching corners differ by one class at most.
+    private static class SizeGrid
+    {
+        private static final int LEVEL_BITS = 8;
+        private static final int CELL_BITS = 28;
+
+        private Map<Long, List<Candidate>> cells = new HashMap<Long, List<Candidate>>();
+        // largest half of the bounding box of the candidates of a size
+        // class, with their corners tolerance
+        private int[] reaches = new int[1 << LEVEL_BITS];
+        private int spread;
+
+        public SizeGrid(float maxOverlap)
+        {
+            spread = Math.max(1, (int) Math.ceil(-0.5 * Math.log(maxOverlap) / Math.log(2)));
+        }
+
+        public void add(Candidate c)
+        {
+            int size = cellSize(c.sizeClass);
+            Long key = cellKey(c.sizeClass, (int) Math.floor(c.centerX / size), (int) Math.floor(c.centerY / size));
+            List<Candidate> cell = cells.get(key);
+            if (cell == null)
+            {
+                cell = new ArrayList<Candidate>(2);
+                cells.put(key, cell);
+            }
+            cell.add(c);
+            int reach = (Math.max(c.maxX - c.minX, c.maxY - c.minY) + 1) / 2 + (int) Math.ceil(c.tolerance);
+            reaches[c.sizeClass] = Math.max(reaches[c.sizeClass], reach);
+        }
+
+        // the kept candidates with the bounding box touching the one of the
+        // candidate, in the next size classes
+        public boolean hasDuplicate(Candidate c, Overlap overlap, float maxOverlap)
+        {
+            int margin = (int) Math.ceil(c.tolerance);
+            int last = Math.min(reaches.length - 1, c.sizeClass + spread);
+            for (int level = Math.max(0, c.sizeClass - spread); level <= last; level++)
+            {
+                int size = cellSize(level);
+                int reach = reaches[level] + margin;
+                int fromX = (int) Math.floor((c.minX - reach) / (float) size);
+                int toX = (int) Math.floor((c.maxX + reach) / (float) size);
+                int fromY = (int) Math.floor((c.minY - reach) / (float) size);
+                int toY = (int) Math.floor((c.maxY + reach) / (float) size);
+                for (int x = fromX; x <= toX; x++)
+                {
+                    for (int y = fromY; y <= toY; y++)
+                    {
+                        List<Candidate> cell = cells.get(cellKey(level, x, y));
+                        if (cell == null)
+                        {
+                            continue;
+                        }
+
+                        for (Candidate kept : cell)
+                        {
+                            if (isDuplicate(kept, c, overlap, maxOverlap))
+                            {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static int cellSize(int sizeClass)
+        {
+            return 2 << sizeClass;
+        }
+
+        private static Long cellKey(int level, int x, int y)
+        {
+            long mask = (1L << CELL_BITS) - 1;
+            return Long.valueOf(((long) level << (2 * CELL_BITS)) | ((x & mask) << CELL_BITS) | (y & mask));
+        }
+    }
+
+    // Area of the intersection of two convex quadrangles - one clipped by
+    // the sides of the other, with scratch for the clipped polygons
+    private static class Overlap
+    {
+        // a quadrangle clipped by 4 lines has 8 corners at most
+        private float[] xs = new float[8];
+        private float[] ys = new float[8];
+        private float[] clippedXs = new float[8];
+        private float[] clippedYs = new float[8];
+
+        public float intersectionArea(Candidate a, Candidate b)
+        {
+            int count = 4;
+            for (int i = 0; i < 4; i++)
+            {
+                xs[i] = a.points[i].x;
+                ys[i] = a.points[i].y;
+            }
+
+            // inside is on the side of the turns of the clipping quadrangle
+            Point[] clip = b.points;
+            float orientation = Math.signum(cross(clip[0].x, clip[0].y, clip[1].x, clip[1].y, clip[2].x, clip[2].y));
+            for (int i = 0; i < 4 && count > 0; i++)
+            {
+                Point from = clip[i];
+                Point to = clip[(i + 1) % 4];
+                int clipped = 0;
+                for (int j = 0; j < count; j++)
+                {
+                    int k = (j + 1) % count;
+                    float sideJ = orientation * cross(from.x, from.y, to.x, to.y, xs[j], ys[j]);
+                    float sideK = orientation * cross(from.x, from.y, to.x, to.y, xs[k], ys[k]);
+                    if (sideJ >= 0)
+                    {
+                        clippedXs[clipped] = xs[j];
+                        clippedYs[clipped++] = ys[j];
+                    }
+                    if ((sideJ >= 0) != (sideK >= 0))
+                    {
+                        float t = sideJ / (sideJ - sideK);
+                        clippedXs[clipped] = xs[j] + t * (xs[k] - xs[j]);
+                        clippedYs[clipped++] = ys[j] + t * (ys[k] - ys[j]);
+                    }
+                }
+
+                float[] swap = xs;
+                xs = clippedXs;
+                clippedXs = swap;
+                swap = ys;
+                ys = clippedYs;
+                clippedYs = swap;
+                count = clipped;
+            }
+
+            float doubleArea = 0;
+            for (int j = 0; j < count; j++)
+            {
+                int k = (j + 1) % count;
+                doubleArea += xs[j] * ys[k] - xs[k] * ys[j];
+            }
+            return Math.abs(doubleArea) / 2;
+        }
+
+        // cross product of the side from A to B and the vector from A to P
+        private static float cross(float aX, float aY, float bX, float bY, float pX, float pY)
+        {
+            return (bX - aX) * (pY - aY) - (bY - aY) * (pX - aX);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package neandertal.jaugre.core;
+
+/**
+ * Holds a target frame rate of a {@link DetectorSession} by adjusting the
+ * quality of the detection between frames. The quality is a level from 0,
+ * the best, to the count of levels - 1, the fastest - every level sets the
+ * scan line distance, the region size and the RANSAC hypotheses between
+ * the configured bounds.
+ * <br/>
+ * The controller watches the smoothed time of the frames. Over the target
+ * frame time, the level goes up; well under it, the level goes down again.
+ * After every change it waits a few frames, for the time to settle. The
+ * level, the knobs and the changes are exposed as metrics.
+ * @author neandertal
+ */
+public class QualityController
+{
+    /** Count of the quality levels */
+    public static final int DEFAULT_LEVELS = 6;
+    /** Scan line distance of the fastest level */
+    public static final int DEFAULT_MAX_SCANLINE_DISTANCE = 10;
+    /** Region side of the fastest level, RANSAC runs fewer regions */
+    public static final int DEFAULT_MAX_REGION_SIZE = 80;
+    /** RANSAC hypotheses of a line search of the fastest level */
+    public static final int DEFAULT_MIN_LINE_ITERATIONS = 8;
+    /** Frames after a change of the level, before the next change */
+    public static final int DEFAULT_SETTLE_FRAMES = 5;
+    /** The level goes down, when the smoothed frame time is under this part of the target */
+    public static final float DEFAULT_LOWER_RATIO = 0.7f;
+
+    // weight of a new frame in the smoothed frame time
+    private static final float SMOOTHING = 0.25f;
+
+    private long targetNanos;
+    private int levels;
+    private int minScanLineDistance;
+    private int maxScanLineDistance;
+    private int minRegionSize;
+    private int maxRegionSize;
+    private int minLineIterations;
+    private int maxLineIterations;
+
+    private int level;
+    private int settleFrames;
+    // metrics
+    private float smoothedNanos = -1;
+    private int frames;
+    private int framesOverTarget;
+    private int raises;
+    private int lowers;
+
+    /**
+     * Controller with default bounds, from the defaults of the steps for the
+     * best level
+     * @param targetFps frame rate to hold
+     */
+    public QualityController(float targetFps)
+    {
+        this(targetFps, DEFAULT_LEVELS, EdgelDetector.DEFAULT_SCANLINE_DISTANCE, DEFAULT_MAX_SCANLINE_DISTANCE,
+                RegionSplitter.DEFAULT_REGION_WIDTH, DEFAULT_MAX_REGION_SIZE, DEFAULT_MIN_LINE_ITERATIONS,
+                SegmentsFinder.DEFAULT_MAX_LINESEGMENT_ITERATIONS);
+    }
+
+    /**
+     * Controller with custom bounds
+     * @param targetFps frame rate to hold
+     * @param levelsArg custom count of the quality levels
+     * @param minScanLineDistanceArg custom scan line distance of the best level
+     * @param maxScanLineDistanceArg custom scan line distance of the fastest level
+     * @param minRegionSizeArg custom region side of the best level
+     * @param maxRegionSizeArg custom region side of the fastest level
+     * @param minLineIterationsArg custom RANSAC hypotheses of a line search of the fastest level
+     * @param maxLineIterationsArg custom RANSAC hypotheses of a line search of the best level
+     */
+    public QualityController(float targetFps, int levelsArg, int minScanLineDistanceArg, int maxScanLineDistanceArg,
+            int minRegionSizeArg, int maxRegionSizeArg, int minLineIterationsArg, int maxLineIterationsArg)
+    {
+        if (targetFps <= 0)
+        {
+            throw new IllegalArgumentException("Target frame rate must be positive!");
+        }
+
+        if (levelsArg < 1)
+        {
+            throw new IllegalArgumentException("Levels must be positive!");
+        }
+
+        if (minScanLineDistanceArg <= 0 || maxScanLineDistanceArg < minScanLineDistanceArg)
+        {
+            throw new IllegalArgumentException("Scan line distances are out of range!");
+        }
+
+        if (minRegionSizeArg <= 0 || maxRegionSizeArg < minRegionSizeArg)
+        {
+            throw new IllegalArgumentException("Region sizes are out of range!");
+        }
+
+        if (minLineIterationsArg <= 0 || maxLineIterationsArg < minLineIterationsArg)
+        {
+            throw new IllegalArgumentException("Line iterations are out of range!");
+        }
+
+        targetNanos = (long) (1e9 / targetFps);
+        levels = levelsArg;
+        minScanLineDistance = minScanLineDistanceArg;
+        maxScanLineDistance = maxScanLineDistanceArg;
+        minRegionSize = minRegionSizeArg;
+        maxRegionSize = maxRegionSizeArg;
+        minLineIterations = minLineIterationsArg;
+        maxLineIterations = maxLineIterationsArg;
+    }
+
+    /**
+     * Take the time of a frame, and change the level if needed
+     * @param frameNanos time of the frame, in nanoseconds
+     */
+    public void update(long frameNanos)
+    {
+        frames++;
+        if (frameNanos > targetNanos)
+        {
+            framesOverTarget++;
+        }
+        smoothedNanos = smoothedNanos < 0 ? frameNanos : smoothedNanos + SMOOTHING * (frameNanos - smoothedNanos);
+
+        if (settleFrames > 0)
+        {
+            settleFrames--;
+            return;
+        }
+
+        if (smoothedNanos > targetNanos && level < levels - 1)
+        {
+            level++;
+            raises++;
+            settleFrames = DEFAULT_SETTLE_FRAMES;
+        }
+        else if (smoothedNanos < DEFAULT_LOWER_RATIO * targetNanos && level > 0)
+        {
+            level--;
+            lowers++;
+            settleFrames = DEFAULT_SETTLE_FRAMES;
+        }
+    }
+
+    /**
+     * @return current quality level, 0 is the best
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @return scan line distance of the current level
+     */
+    public int getScanLineDistance()
+    {
+        return interpolate(minScanLineDistance, maxScanLineDistance);
+    }
+
+    /**
+     * @return region side of the current level
+     */
+    public int getRegionSize()
+    {
+        return interpolate(minRegionSize, maxRegionSize);
+    }
+
+    /**
+     * @return RANSAC hypotheses of a line search of the current level
+     */
+    public int getLineIterations()
+    {
+        return interpolate(maxLineIterations, minLineIterations);
+    }
+
+    /**
+     * @return smoothed time of the frames, in milliseconds
+     */
+    public float getSmoothedMillis()
+    {
+        return Math.max(0, smoothedNanos) / 1e6f;
+    }
+
+    public float getTargetMillis()
+    {
+        return targetNanos / 1e6f;
+    }
+
+    public int getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * @return frames, which took longer than the target frame time
+     */
+    public int getFramesOverTarget()
+    {
+        return framesOverTarget;
+    }
+
+    /**
+     * @return changes of the level to a faster one
+     */
+    public int getRaises()
+    {
+        return raises;
+    }
+
+    /**
+     * @return changes of the level to a better one
+     */
+    public int getLowers()
+    {
+        return lowers;
+    }
+
+    // value of the current level, from the value of the best level to the value of the fastest
+    private int interpolate(int best, int fastest)
+    {
+        if (levels == 1)
+        {
+            return best;
+        }
+        return Math.round(best + (fastest - best) * level / (float) (levels - 1));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Level        : ").append(level).append(" of ").append(levels).append("\n");
+        sb.append("Scan lines   : ").append(getScanLineDistance()).append(" px\n");
+        sb.append("Region size  : ").append(getRegionSize()).append(" px\n");
+        sb.append("Hypotheses   : ").append(getLineIterations()).append("\n");
+        sb.append("Frame time   : ").append(String.format("%.2f ms", getSmoothedMillis())).append(" of ")
+                .append(String.format("%.2f ms", getTargetMillis())).append("\n");
+        sb.append("Over target  : ").append(framesOverTarget).append(" of ").append(frames).append("\n");
+        sb.append("Changes      : ").append(raises).append(" faster, ").append(lowers).append(" better");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,333 @@
+package neandertal.jaugre.core;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.QuantizedAngle;
+
+
+/**
+ * The RANSAC search of {@link SegmentsFinder} as a
+ * {@link SegmentFinderStrategy}. Keeps its random generator and the edgels
+ * of the searched region in arrays, which grow with the regions and are
+ * reused for the next ones - a hypothesis only counts its inliers, the
+ * line segment is made for the strongest one.
+ * @author neandertal
+ */
+public class RansacSegmentFinder implements SegmentFinderStrategy
+{
+    private int minEdgelsCount;
+    private int maxEdgelsIter;
+    private int maxLineIter;
+    private float distanceToLine;
+    private float compValue;
+    private int maxHypotheses;
+    private boolean quantizedAngles = true;
+
+    private Random random = new Random();
+
+    // scratch, grows with the regions
+    private Edgel[] pool = new Edgel[0];
+    private int poolSize;
+    private boolean[] used = new boolean[0];
+    private int[] inliers = new int[0];
+    private int[] strongest = new int[0];
+    private int strongestCount;
+    private int strongestFirst;
+    private int strongestSecond;
+    private int pickedFirst;
+    private int pickedSecond;
+    private int hypotheses;
+
+    /**
+     * RANSAC with default values
+     */
+    public RansacSegmentFinder()
+    {
+        this(SegmentsFinder.DEFAULT_MIN_SUPPORT_EDGELS_COUNT, SegmentsFinder.DEFAULT_MAX_EDGELS_ITERATIONS,
+                SegmentsFinder.DEFAULT_MAX_LINESEGMENT_ITERATIONS, SegmentsFinder.DEFAULT_DISTANCE_TO_LINE,
+                SegmentsFinder.DEFAULT_COMPATIBILITY_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * RANSAC with custom values, see
+     * {@link SegmentsFinder#detectSegments(Container, int, int, int, float, float, int)}
+     */
+    public RansacSegmentFinder(int minEdgelsCountArg, int maxEdgelsIterArg, int maxLineIterArg,
+            float distanceToLineArg, float compValueArg, int maxHypothesesArg)
+    {
+        setValues(minEdgelsCountArg, maxEdgelsIterArg, maxLineIterArg, distanceToLineArg, compValueArg);
+        setMaxHypotheses(maxHypothesesArg);
+    }
+
+    /**
+     * RANSAC values, see
+     * {@link SegmentsFinder#detectSegments(Container, int, int, int, float, float)}
+     */
+    public void setValues(int minEdgelsCountArg, int maxEdgelsIterArg, int maxLineIterArg, float distanceToLineArg,
+            float compValueArg)
+    {
+        minEdgelsCount = minEdgelsCountArg;
+        maxEdgelsIter = maxEdgelsIterArg;
+        maxLineIter = maxLineIterArg;
+        distanceToLine = distanceToLineArg;
+        compValue = compValueArg;
+    }
+
+    /**
+     * @param maxHypothesesArg custom limit of line hypotheses in the frame, Integer.MAX_VALUE for none
+     */
+    public void setMaxHypotheses(int maxHypothesesArg)
+    {
+        if (maxHypothesesArg <= 0)
+        {
+            throw new IllegalArgumentException("Hypotheses budget must be positive!");
+        }
+
+        maxHypotheses = maxHypothesesArg;
+    }
+
+    /**
+     * @param quantizedAnglesArg true to compare the quantized angles, false for the float directions
+     */
+    public void setQuantizedAngles(boolean quantizedAnglesArg)
+    {
+        quantizedAngles = quantizedAnglesArg;
+    }
+
+    @Override
+    public Map<String, List<LineSegment>> detectSegments(Container image)
+    {
+        if (image == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getRegionsMap() == null)
+        {
+            throw new IllegalArgumentException("Regions map can't be NULL!");
+        }
+
+        if (image.getEdgelsMap() == null)
+        {
+            throw new IllegalArgumentException("Edgels map can't be NULL!");
+        }
+
+        Map<String, List<Edgel>> edgelsMap = image.getEdgelsMap();
+        Map<String, List<LineSegment>> segmentsMap = new HashMap<String, List<LineSegment>>();
+
+        // every region gets an equal share of the hypotheses left
+        long usedHypotheses = 0;
+        int regionsLeft = edgelsMap.size();
+        int cutRegions = 0;
+        for (Map.Entry<String, List<Edgel>> entry : edgelsMap.entrySet())
+        {
+            int share = maxHypotheses == Integer.MAX_VALUE ? Integer.MAX_VALUE
+                    : (int) ((maxHypotheses - usedHypotheses) / regionsLeft);
+            List<LineSegment> segments = new LinkedList<LineSegment>();
+            detectSegmentsInRegion(entry.getValue(), share, segments);
+            usedHypotheses += hypotheses;
+            regionsLeft--;
+            if (hypotheses >= share && entry.getValue().size() >= minEdgelsCount)
+            {
+                cutRegions++;
+            }
+
+            segmentsMap.put(entry.getKey(), segments);
+        }
+
+        image.setSegmentsMap(segmentsMap);
+        image.setCutRegionsCount(cutRegions);
+        return segmentsMap;
+    }
+
+    // Adds the segments of the region, counts the tested line hypotheses in
+    // hypotheses, up to the share
+    private void detectSegmentsInRegion(List<Edgel> edgels, int share, List<LineSegment> segments)
+    {
+        fillPool(edgels);
+        hypotheses = 0;
+
+        // end line segments search when there are not enough edgels left for an
+        // accepted line segment or iterations or hypotheses limit has been reached
+        int iterations = 0;
+        while (poolSize >= minEdgelsCount && iterations < maxEdgelsIter && hypotheses < share)
+        {
+            iterations++;
+            int lineIterations = Math.min(maxLineIter, share - hypotheses);
+            findStrongestLineSegment(lineIterations);
+            hypotheses += lineIterations;
+
+            // the picked edgels are inliers too
+            if (strongestCount > 0 && strongestCount + 2 >= minEdgelsCount)
+            {
+                LineSegment segment = new LineSegment(pool[strongestFirst], pool[strongestSecond]);
+                for (int i = 0; i < strongestCount; i++)
+                {
+                    segment.addInliner(pool[strongest[i]]);
+                }
+                removeStrongest();
+
+                SegmentsFinder.fixLineSegment(segment);
+                segments.add(segment);
+            }
+        }
+    }
+
+    // the edgels of the region, in their order
+    private void fillPool(List<Edgel> edgels)
+    {
+        int n = edgels.size();
+        if (pool.length < n)
+        {
+            pool = new Edgel[n];
+            used = new boolean[n];
+            inliers = new int[n];
+            strongest = new int[n];
+        }
+
+        poolSize = 0;
+        for (Edgel e : edgels)
+        {
+            pool[poolSize++] = e;
+        }
+    }
+
+    // Randomly pick 2 edgels and find the edgels supporting their line. Do
+    // this several times and keep the line with the most supporters in
+    // strongest, strongestCount is 0 if no edgels could be picked. The
+    // picked edgels are found as inliers too.
+    private void findStrongestLineSegment(int lineIterations)
+    {
+        strongestCount = 0;
+        for (int i = 0; i < lineIterations; i++)
+        {
+            if (!randSelectEdgels())
+            {
+                continue;
+            }
+
+            Edgel a = pool[pickedFirst];
+            Edgel b = pool[pickedSecond];
+            int count = 0;
+            for (int k = 0; k < poolSize; k++)
+            {
+                Edgel e = pool[k];
+                if (isInliner(a, b, e))
+                {
+                    inliers[count++] = k;
+                }
+            }
+
+            if (strongestCount == 0 || count > strongestCount)
+            {
+                int[] swap = strongest;
+                strongest = inliers;
+                inliers = swap;
+                strongestCount = count;
+                strongestFirst = pickedFirst;
+                strongestSecond = pickedSecond;
+            }
+        }
+    }
+
+    // remove the strongest line edgels from the pool, keeping the order
+    private void removeStrongest()
+    {
+        used[strongestFirst] = true;
+        used[strongestSecond] = true;
+        for (int i = 0; i < strongestCount; i++)
+        {
+            used[strongest[i]] = true;
+        }
+
+        int kept = 0;
+        for (int k = 0; k < poolSize; k++)
+        {
+            if (!used[k])
+            {
+                pool[kept++] = pool[k];
+            }
+            used[k] = false;
+        }
+        for (int k = kept; k < poolSize; k++)
+        {
+            pool[k] = null;
+        }
+        poolSize = kept;
+    }
+
+    // Is part of the line from A to B
+    private boolean isInliner(Edgel a, Edgel b, Edgel e)
+    {
+        if (a == e || b == e)
+            return true;
+
+        if (!isOrientationCompatible(a, e))
+        {
+            return false;
+        }
+
+        return distanceToLine(a, b, e) < distanceToLine;
+    }
+
+    // Distance from E to line AB, at the sub-pixel positions and without the
+    // lens distortion if it is removed
+    private static double distanceToLine(Edgel a, Edgel b, Edgel e)
+    {
+        double lengABX = b.getUndistortedX() - a.getUndistortedX();
+        double lengABY = b.getUndistortedY() - a.getUndistortedY();
+        double normalLength = Math.hypot(lengABX, lengABY);
+        return Math.abs((e.getUndistortedX() - a.getUndistortedX()) * lengABY
+                - (e.getUndistortedY() - a.getUndistortedY()) * lengABX) / normalLength;
+    }
+
+    // try to randomly pick 2 edgels of the pool with same orientation, into
+    // pickedFirst and pickedSecond
+    private boolean randSelectEdgels()
+    {
+        int iteration = 0;
+        while (iteration < maxEdgelsIter)
+        {
+            iteration++;
+            pickedFirst = random.nextInt(poolSize);
+            pickedSecond = random.nextInt(poolSize);
+
+            if (pickedFirst == pickedSecond)
+                continue;
+
+            Edgel a = pool[pickedFirst];
+            Edgel b = pool[pickedSecond];
+            if (a == b)
+                continue;
+
+            // edgels of crossing scan lines can be at the same pixel, they
+            // differ only by the sub-pixel offsets and give no direction
+            if (a.getX() == b.getX() && a.getY() == b.getY())
+                continue;
+
+            if (isOrientationCompatible(a, b))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // compare the quantized angles, or the float directions
+    private boolean isOrientationCompatible(Edgel a, Edgel b)
+    {
+        if (quantizedAngles)
+        {
+            return QuantizedAngle.cos(a.getAngle(), b.getAngle()) > compValue;
+        }
+        return SegmentsFinder.isOrientationCompatible(a.getDirection(), b.getDirection(), compValue);
+    }
+}
@@ -0,0 +1,117 @@
+package neandertal.jaugre.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Region;
+
+
+/**
+ * Optional step, after STEP 1.
+ * Orders the regions for the detection within a time budget, so the regions
+ * most likely to contain a marker are processed first - the regions around
+ * the detected quadrangles of the previous frame, then the regions with contrast, by
+ * their cheap contrast estimate, then the rest.
+ *
+ * @author neandertal
+ */
+public class RegionPriority
+{
+    /** Margin around the quadrangles of the previous frame, for their motion */
+    public static final int DEFAULT_MARGIN = RegionSplitter.DEFAULT_TRACKING_MARGIN;
+    /** A region with this many edge samples of the contrast estimate has contrast */
+    public static final int DEFAULT_MIN_EDGE_SAMPLES = ScanLineDensity.DEFAULT_MIN_EDGE_SAMPLES;
+
+    /**
+     * Orders the regions with default values
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @return the regions, in the order of processing
+     */
+    public static List<Region> orderRegions(Container image, Container previous)
+    {
+        return orderRegions(image, previous, DEFAULT_MARGIN, DEFAULT_MIN_EDGE_SAMPLES);
+    }
+
+    /**
+     * Orders the regions with custom values
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @param margin custom margin around the quadrangles of the previous frame
+     * @param minEdgeSamples custom count of edge samples, from which a region has contrast
+     * @return the regions, in the order of processing
+     */
+    public static List<Region> orderRegions(Container image, Container previous, int margin, int minEdgeSamples)
+    {
+        return orderRegions(image, previous, margin, minEdgeSamples, null);
+    }
+
+    /**
+     * Orders the regions with custom values and the edge samples already
+     * counted for this frame
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @param margin custom margin around the quadrangles of the previous frame
+     * @param minEdgeSamples custom count of edge samples, from which a region has contrast
+     * @param edgeSamples edge samples of the regions, from {@link RegionSplitter#countEdgeSamples(Container)}, NULL to count them here
+     * @return the regions, in the order of processing
+     */
+    public static List<Region> orderRegions(Container image, Container previous, int margin, int minEdgeSamples,
+            Map<String, Integer> edgeSamples)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getRegionsMap() == null)
+        {
+            throw new IllegalArgumentException("Regions map can't be NULL!");
+        }
+
+        if (margin < 0)
+        {
+            throw new IllegalArgumentException("Margin can't be negative!");
+        }
+
+        List<int[]> detected = ScanLineDensity.getDetectedAreas(previous, margin);
+        Map<String, Integer> samples = edgeSamples != null ? edgeSamples : RegionSplitter.countEdgeSamples(image);
+
+        // higher priority first - the detected regions above all others,
+        // the rest by their contrast
+        final Map<Region, Integer> priorities = new HashMap<Region, Integer>();
+        for (Region region : image.getRegionsMap().values())
+        {
+            int priority;
+            if (ScanLineDensity.overlapsAny(region, detected))
+            {
+                priority = Integer.MAX_VALUE;
+            }
+            else
+            {
+                Integer count = samples.get(region.getName());
+                priority = count != null && count >= minEdgeSamples ? count : 0;
+            }
+            priorities.put(region, priority);
+        }
+
+        List<Region> ordered = new ArrayList<Region>(priorities.keySet());
+        Collections.sort(ordered, new Comparator<Region>()
+        {
+            @Override
+            public int compare(Region a, Region b)
+            {
+                return priorities.get(b).compareTo(priorities.get(a));
+            }
+        });
+        return ordered;
+    }
+}
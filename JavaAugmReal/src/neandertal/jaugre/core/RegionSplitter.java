@@ -1,16 +1,32 @@
 package neandertal.jaugre.core;
 
+import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Quadrangle;
 import neandertal.jaugre.core.data.Region;
 
 
 /**
  * STEP 1.
  * Image is divided in small regions of NxM pixels for easier computation later on.
+ * <br/>
+ * The adaptive split sizes the regions by the edges in them instead: it
+ * starts from coarse blocks and splits a block in 4 while a cheap estimate
+ * of its edges is high, then merges neighbouring blocks without edges. Dense
+ * areas get small regions, so RANSAC sees few edgels at a time, and empty
+ * background gets a few large ones.
+ * <br/>
+ * For tracking, only the regions of the grid around the quadrangles of the
+ * previous frame are made, so the rest of the image is not processed.
  * 
  * @author neandertal
  */
@@ -32,6 +48,24 @@ public class RegionSplitter
      */
     public static final int DEFAULT_INSET = 2;
 
+    /** Smallest region of the adaptive split, crossed by enough scan lines for a segment */
+    public static final int DEFAULT_MIN_REGION_SIZE = 40;
+
+    /** Largest region of the adaptive split, the size of the first blocks */
+    public static final int DEFAULT_MAX_REGION_SIZE = 160;
+
+    /** A block of the adaptive split with more edge samples is split */
+    public static final int DEFAULT_MAX_EDGE_SAMPLES = 32;
+
+    // Edge density estimate - gray difference of pixels EDGE_SAMPLE_STEP
+    // apart, on every EDGE_SAMPLE_LINES-th row and column
+    private static final int EDGE_CONTRAST = 32;
+    private static final int EDGE_SAMPLE_STEP = 3;
+    private static final int EDGE_SAMPLE_LINES = 5;
+
+    /** Margin around the bounding box of a tracked quadrangle, for its motion between frames */
+    public static final int DEFAULT_TRACKING_MARGIN = 24;
+
     /**
      * Image is split to regions with default width and height
      * 
@@ -120,4 +154,464 @@ public class RegionSplitter
         image.setRightInset(right);
         image.setRegionsMap(regionsMap);
     }
+
+    /**
+     * Only the regions of the default grid around the quadrangles are made,
+     * with the default margin and insets
+     * 
+     * @param image
+     * @param quadrangles quadrangles found in the previous frame
+     * @return map of region names and regions
+     */
+    public static Map<String, Region> splitToRegionsAround(Container image, Collection<Quadrangle> quadrangles)
+    {
+        return splitToRegionsAround(image, quadrangles, DEFAULT_TRACKING_MARGIN, DEFAULT_REGION_WIDTH,
+                DEFAULT_REGION_HEIGHT, DEFAULT_INSET, DEFAULT_INSET, DEFAULT_INSET, DEFAULT_INSET);
+    }
+
+    /**
+     * Only the regions of the grid, which overlap the bounding box of a
+     * quadrangle extended by the margin, are made. The regions are the same
+     * as the regions of {@link #splitToRegions(Container, int, int, int, int, int, int)}
+     * with the same size and insets.
+     * 
+     * @param image contains all info
+     * @param quadrangles quadrangles found in the previous frame
+     * @param margin custom margin around the bounding boxes, for the motion
+     * @param regionWidthArg custom region width
+     * @param regionHeightArg custom region height
+     * @param insetTop custom top inset
+     * @param insetLeft custom left inset
+     * @param insetBottom custom bottom inset
+     * @param insetRight custom right inset
+     * @return map of region names and regions
+     */
+    public static Map<String, Region> splitToRegionsAround(Container image, Collection<Quadrangle> quadrangles,
+            int margin, int regionWidthArg, int regionHeightArg, int insetTop, int insetLeft, int insetBottom,
+            int insetRight)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL");
+        }
+
+        if (quadrangles == null)
+        {
+            throw new IllegalArgumentException("Quadrangles can't be NULL!");
+        }
+
+        if (margin < 0)
+        {
+            throw new IllegalArgumentException("Margin can't be negative!");
+        }
+
+        if (regionWidthArg <= 0)
+        {
+            throw new IllegalArgumentException("Region width must be positive!");
+        }
+
+        if (regionHeightArg <= 0)
+        {
+            throw new IllegalArgumentException("Region height must be positive!");
+        }
+
+        if (insetTop < DEFAULT_INSET || insetLeft < DEFAULT_INSET || insetBottom < DEFAULT_INSET || insetRight < DEFAULT_INSET)
+        {
+            throw new IllegalArgumentException("Insets need to be positive");
+        }
+
+        splitAroundQuadrangles(image, quadrangles, margin, regionWidthArg, regionHeightArg, insetTop, insetLeft,
+                insetBottom, insetRight);
+
+        return image.getRegionsMap();
+    }
+
+    private static void splitAroundQuadrangles(Container image, Collection<Quadrangle> quadrangles, int margin,
+            int regWidth, int regHeight, int top, int left, int bottom, int right)
+    {
+        Map<String, Region> regionsMap = new HashMap<String, Region>();
+
+        BufferedImage img = image.getImage();
+        int imgHeight = img.getHeight() - bottom;
+        int imgWidth = img.getWidth() - right;
+
+        for (Quadrangle q : quadrangles)
+        {
+            Point[] points = new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() };
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (Point p : points)
+            {
+                minX = Math.min(minX, p.x);
+                minY = Math.min(minY, p.y);
+                maxX = Math.max(maxX, p.x);
+                maxY = Math.max(maxY, p.y);
+            }
+
+            // grid cells overlapping the extended box
+            int firstS = Math.max(0, (minX - margin - left) / regWidth);
+            int firstT = Math.max(0, (minY - margin - top) / regHeight);
+            for (int s = firstS, k = left + s * regWidth; k < imgWidth && k <= maxX + margin; k += regWidth, s++)
+            {
+                for (int t = firstT, l = top + t * regHeight; l < imgHeight && l <= maxY + margin; l += regHeight, t++)
+                {
+                    String name = s + "x" + t;
+                    if (!regionsMap.containsKey(name))
+                    {
+                        regionsMap.put(name, new Region(name, k, l, Math.min(regWidth, imgWidth - k), Math.min(regHeight,
+                                imgHeight - l)));
+                    }
+                }// for
+            }// for
+        }
+
+        image.setTopInset(top);
+        image.setBottomInset(bottom);
+        image.setLeftInset(left);
+        image.setRightInset(right);
+        image.setRegionsMap(regionsMap);
+    }
+
+    /**
+     * Image is split to regions adaptively by the edge density, with default values
+     * 
+     * @param image
+     * @return map of region names and regions
+     */
+    public static Map<String, Region> splitToRegionsAdaptive(Container image)
+    {
+        return splitToRegionsAdaptive(image, DEFAULT_MIN_REGION_SIZE, DEFAULT_MAX_REGION_SIZE,
+                DEFAULT_MAX_EDGE_SAMPLES);
+    }
+
+    /**
+     * Image is split to regions adaptively by the edge density, with custom
+     * values and default insets
+     * 
+     * @param image contains all info
+     * @param minRegionSize custom smallest region side
+     * @param maxRegionSize custom largest region side, the size of the first blocks
+     * @param maxEdgeSamples custom limit of edge samples, over which a block is split
+     * @return map of region names and regions
+     */
+    public static Map<String, Region> splitToRegionsAdaptive(Container image, int minRegionSize, int maxRegionSize,
+            int maxEdgeSamples)
+    {
+        return splitToRegionsAdaptive(image, minRegionSize, maxRegionSize, maxEdgeSamples, DEFAULT_INSET,
+                DEFAULT_INSET, DEFAULT_INSET, DEFAULT_INSET);
+    }
+
+    /**
+     * Image is split to regions adaptively by the edge density, with custom
+     * values and insets
+     * 
+     * @param image contains all info
+     * @param minRegionSize custom smallest region side
+     * @param maxRegionSize custom largest region side, the size of the first blocks
+     * @param maxEdgeSamples custom limit of edge samples, over which a block is split
+     * @param insetTop custom top inset
+     * @param insetLeft custom left inset
+     * @param insetBottom custom bottom inset
+     * @param insetRight custom right inset
+     * @return map of region names and regions
+     */
+    public static Map<String, Region> splitToRegionsAdaptive(Container image, int minRegionSize, int maxRegionSize,
+            int maxEdgeSamples, int insetTop, int insetLeft, int insetBottom, int insetRight)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL");
+        }
+
+        if (minRegionSize <= 0 || maxRegionSize < minRegionSize)
+        {
+            throw new IllegalArgumentException("Region sizes are out of range!");
+        }
+
+        if (maxEdgeSamples < 0)
+        {
+            throw new IllegalArgumentException("Edge samples limit can't be negative!");
+        }
+
+        if (insetTop < DEFAULT_INSET || insetLeft < DEFAULT_INSET || insetBottom < DEFAULT_INSET || insetRight < DEFAULT_INSET)
+        {
+            throw new IllegalArgumentException("Insets need to be positive");
+        }
+
+        new AdaptiveSplit(image, minRegionSize, maxRegionSize, maxEdgeSamples, insetTop, insetLeft, insetBottom,
+                insetRight).split();
+
+        return image.getRegionsMap();
+    }
+
+    // Quadtree split of the image inside the insets. The edge samples are
+    // counted once per cell of the smallest region size, a summed table
+    // gives the count of any block of cells.
+    private static class AdaptiveSplit
+    {
+        private Container image;
+        private int minSize;
+        private int maxCells;
+        private int maxSamples;
+        private int insetTop;
+        private int insetLeft;
+        private int insetBottom;
+        private int insetRight;
+        private int left;
+        private int top;
+        private int right;
+        private int bottom;
+        private int cellsX;
+        private int cellsY;
+        // summed samples, (cellsX + 1) x (cellsY + 1)
+        private int[] sums;
+        private List<Block> leaves = new ArrayList<Block>();
+
+        public AdaptiveSplit(Container imageArg, int minSizeArg, int maxSizeArg, int maxSamplesArg,
+                int insetTopArg, int insetLeftArg, int insetBottomArg, int insetRightArg)
+        {
+            image = imageArg;
+            minSize = minSizeArg;
+            maxCells = Math.max(1, maxSizeArg / minSizeArg);
+            maxSamples = maxSamplesArg;
+            insetTop = insetTopArg;
+            insetLeft = insetLeftArg;
+            insetBottom = insetBottomArg;
+            insetRight = insetRightArg;
+
+            BufferedImage img = image.getImage();
+            left = insetLeft;
+            top = insetTop;
+            right = img.getWidth() - insetRight;
+            bottom = img.getHeight() - insetBottom;
+            cellsX = Math.max(0, (right - left + minSize - 1) / minSize);
+            cellsY = Math.max(0, (bottom - top + minSize - 1) / minSize);
+        }
+
+        public void split()
+        {
+            countSamples();
+
+            for (int cy = 0; cy < cellsY; cy += maxCells)
+            {
+                for (int cx = 0; cx < cellsX; cx += maxCells)
+                {
+                    splitBlock(cx, cy, Math.min(maxCells, cellsX - cx), Math.min(maxCells, cellsY - cy));
+                }
+            }
+
+            mergeEmpty();
+
+            Map<String, Region> regionsMap = new HashMap<String, Region>();
+            for (Block b : leaves)
+            {
+                int x = left + b.cx * minSize;
+                int y = top + b.cy * minSize;
+                int width = Math.min(b.cw * minSize, right - x);
+                int height = Math.min(b.ch * minSize, bottom - y);
+                Region reg = new Region(x + "x" + y, x, y, width, height);
+                regionsMap.put(reg.getName(), reg);
+            }
+
+            image.setTopInset(insetTop);
+            image.setBottomInset(insetBottom);
+            image.setLeftInset(insetLeft);
+            image.setRightInset(insetRight);
+            image.setRegionsMap(regionsMap);
+        }
+
+        private void splitBlock(int cx, int cy, int cw, int ch)
+        {
+            int samples = samples(cx, cy, cw, ch);
+            if (samples <= maxSamples || (cw == 1 && ch == 1))
+            {
+                leaves.add(new Block(cx, cy, cw, ch, samples));
+                return;
+            }
+
+            int halfW = (cw + 1) / 2;
+            int halfH = (ch + 1) / 2;
+            splitBlock(cx, cy, halfW, halfH);
+            if (cw > halfW)
+            {
+                splitBlock(cx + halfW, cy, cw - halfW, halfH);
+            }
+            if (ch > halfH)
+            {
+                splitBlock(cx, cy + halfH, halfW, ch - halfH);
+                if (cw > halfW)
+                {
+                    splitBlock(cx + halfW, cy + halfH, cw - halfW, ch - halfH);
+                }
+            }
+        }
+
+        // Join runs of empty blocks of the same row and height
+        private void mergeEmpty()
+        {
+            Collections.sort(leaves, new Comparator<Block>()
+            {
+                @Override
+                public int compare(Block a, Block b)
+                {
+                    if (a.cy != b.cy)
+                    {
+                        return a.cy - b.cy;
+                    }
+                    if (a.ch != b.ch)
+                    {
+                        return a.ch - b.ch;
+                    }
+                    return a.cx - b.cx;
+                }
+            });
+
+            List<Block> merged = new ArrayList<Block>(leaves.size());
+            Block previous = null;
+            for (Block b : leaves)
+            {
+                if (previous != null && previous.samples == 0 && b.samples == 0 && previous.cy == b.cy
+                        && previous.ch == b.ch && previous.cx + previous.cw == b.cx)
+                {
+                    previous.cw += b.cw;
+                    continue;
+                }
+                merged.add(b);
+                previous = b;
+            }
+            leaves = merged;
+        }
+
+        private int samples(int cx, int cy, int cw, int ch)
+        {
+            int w = cellsX + 1;
+            return sums[(cy + ch) * w + cx + cw] - sums[cy * w + cx + cw] - sums[(cy + ch) * w + cx] + sums[cy * w + cx];
+        }
+
+        // Count the edge samples of every cell into the summed table
+        private void countSamples()
+        {
+            BufferedImage img = image.getImage();
+            int[] pixels = PixelAccess.getPixels(img);
+
+            int w = cellsX + 1;
+            sums = new int[w * (cellsY + 1)];
+            for (int cy = 0; cy < cellsY; cy++)
+            {
+                int y = top + cy * minSize;
+                for (int cx = 0; cx < cellsX; cx++)
+                {
+                    int x = left + cx * minSize;
+                    int count = countEdgeSamples(img, pixels, x, y, Math.min(x + minSize, right),
+                            Math.min(y + minSize, bottom));
+                    sums[(cy + 1) * w + cx + 1] = count + sums[cy * w + cx + 1] + sums[(cy + 1) * w + cx]
+                            - sums[cy * w + cx];
+                }
+            }
+        }
+    }
+
+    /**
+     * Cheap contrast estimate of every region of the image, see
+     * {@link #countEdgeSamples(BufferedImage, int[], Region)}. Counted once
+     * per frame, it is shared by {@link ScanLineDensity} and
+     * {@link RegionPriority}.
+     *
+     * @param image contains the regions, after the split
+     * @return map of region names to their count of edge samples
+     */
+    public static Map<String, Integer> countEdgeSamples(Container image)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getRegionsMap() == null)
+        {
+            throw new IllegalArgumentException("Regions map can't be NULL!");
+        }
+
+        BufferedImage img = image.getImage();
+        int[] pixels = PixelAccess.getPixels(img);
+        Map<String, Integer> samples = new HashMap<String, Integer>();
+        for (Region region : image.getRegionsMap().values())
+        {
+            samples.put(region.getName(), countEdgeSamples(img, pixels, region));
+        }
+        return samples;
+    }
+
+    /**
+     * Cheap contrast estimate of a region - the count of the strong gray
+     * differences on its sparse rows and columns, as the adaptive split
+     * counts them.
+     *
+     * @param img the image
+     * @param pixels pixels of the image, NULL to read them one by one
+     * @param region counted region
+     * @return count of edge samples
+     */
+    static int countEdgeSamples(BufferedImage img, int[] pixels, Region region)
+    {
+        return countEdgeSamples(img, pixels, region.getX(), region.getY(), region.getX() + region.getWidth(),
+                region.getY() + region.getHeight());
+    }
+
+    // Count the strong gray differences on sparse rows and columns of a
+    // rectangle, from left and top to right and bottom exclusive
+    private static int countEdgeSamples(BufferedImage img, int[] pixels, int left, int top, int right, int bottom)
+    {
+        int count = 0;
+        for (int y = top + EDGE_SAMPLE_LINES / 2; y < bottom; y += EDGE_SAMPLE_LINES)
+        {
+            for (int x = left; x + EDGE_SAMPLE_STEP < right; x += EDGE_SAMPLE_STEP)
+            {
+                if (isEdge(img, pixels, x, y, x + EDGE_SAMPLE_STEP, y))
+                {
+                    count++;
+                }
+            }
+        }
+
+        for (int x = left + EDGE_SAMPLE_LINES / 2; x < right; x += EDGE_SAMPLE_LINES)
+        {
+            for (int y = top; y + EDGE_SAMPLE_STEP < bottom; y += EDGE_SAMPLE_STEP)
+            {
+                if (isEdge(img, pixels, x, y, x, y + EDGE_SAMPLE_STEP))
+                {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isEdge(BufferedImage img, int[] pixels, int x1, int y1, int x2, int y2)
+    {
+        int a = PixelAccess.getLuma(PixelAccess.getRGB(img, pixels, x1, y1));
+        int b = PixelAccess.getLuma(PixelAccess.getRGB(img, pixels, x2, y2));
+        return Math.abs(a - b) > EDGE_CONTRAST;
+    }
+
+    // Block of cells of the adaptive split
+    private static class Block
+    {
+        private int cx;
+        private int cy;
+        private int cw;
+        private int ch;
+        private int samples;
+
+        public Block(int cxArg, int cyArg, int cwArg, int chArg, int samplesArg)
+        {
+            cx = cxArg;
+            cy = cyArg;
+            cw = cwArg;
+            ch = chArg;
+            samples = samplesArg;
+        }
+    }
 }
@@ -0,0 +1,192 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Edgel;
+import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.Quadrangle;
+import neandertal.jaugre.core.data.Region;
+
+
+/**
+ * Optional step, after STEP 1.
+ * Plans the scan line distance of every region for
+ * {@link EdgelDetector#detectEdgels(Container, EdgelDetector.Scanner, Map, int, int, int, int, int)}.
+ * The regions, where the previous frame found enough edgels, a segment or
+ * a detected quadrangle, or whose cheap contrast estimate is high, get dense scan
+ * lines - so small, distant markers still get enough edgels for RANSAC.
+ * The rest of the image is background and gets coarse scan lines.
+ *
+ * @author neandertal
+ */
+public class ScanLineDensity
+{
+    /** Scan line distance in the regions with markers or edges */
+    public static final int DEFAULT_DENSE_DISTANCE = 3;
+    /** Scan line distance in the background regions */
+    public static final int DEFAULT_COARSE_DISTANCE = 10;
+    /** A region of the previous frame with this many edgels is dense */
+    public static final int DEFAULT_MIN_EDGELS = SegmentsFinder.DEFAULT_MIN_SUPPORT_EDGELS_COUNT;
+    /** A region with this many edge samples of the contrast estimate is dense */
+    public static final int DEFAULT_MIN_EDGE_SAMPLES = 8;
+
+    /**
+     * Plans the scan line distances with default values
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @return map of region names to their scan line distance
+     */
+    public static Map<String, Integer> planDistances(Container image, Container previous)
+    {
+        return planDistances(image, previous, DEFAULT_DENSE_DISTANCE, DEFAULT_COARSE_DISTANCE, DEFAULT_MIN_EDGELS,
+                DEFAULT_MIN_EDGE_SAMPLES);
+    }
+
+    /**
+     * Plans the scan line distances with custom values
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @param denseDistance custom scan line distance of the dense regions
+     * @param coarseDistance custom scan line distance of the background regions
+     * @param minEdgels custom count of edgels in a region of the previous frame, from which it is dense
+     * @param minEdgeSamples custom count of edge samples, from which a region is dense
+     * @return map of region names to their scan line distance
+     */
+    public static Map<String, Integer> planDistances(Container image, Container previous, int denseDistance,
+            int coarseDistance, int minEdgels, int minEdgeSamples)
+    {
+        return planDistances(image, previous, denseDistance, coarseDistance, minEdgels, minEdgeSamples, null);
+    }
+
+    /**
+     * Plans the scan line distances with custom values and the edge samples
+     * already counted for this frame
+     *
+     * @param image contains the regions of this frame, after {@link RegionSplitter}
+     * @param previous all data of the previous frame, NULL for the first frame
+     * @param denseDistance custom scan line distance of the dense regions
+     * @param coarseDistance custom scan line distance of the background regions
+     * @param minEdgels custom count of edgels in a region of the previous frame, from which it is dense
+     * @param minEdgeSamples custom count of edge samples, from which a region is dense
+     * @param edgeSamples edge samples of the regions, from {@link RegionSplitter#countEdgeSamples(Container)}, NULL to count them here
+     * @return map of region names to their scan line distance
+     */
+    public static Map<String, Integer> planDistances(Container image, Container previous, int denseDistance,
+            int coarseDistance, int minEdgels, int minEdgeSamples, Map<String, Integer> edgeSamples)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        if (image.getRegionsMap() == null)
+        {
+            throw new IllegalArgumentException("Regions map can't be NULL!");
+        }
+
+        if (denseDistance <= 0 || coarseDistance <= 0)
+        {
+            throw new IllegalArgumentException("Scan line distance must be positive!");
+        }
+
+        List<int[]> active = previous != null ? getActiveAreas(previous, minEdgels) : new ArrayList<int[]>();
+        Map<String, Integer> samples = edgeSamples != null ? edgeSamples : RegionSplitter.countEdgeSamples(image);
+
+        Map<String, Integer> distances = new HashMap<String, Integer>();
+        for (Region region : image.getRegionsMap().values())
+        {
+            Integer count = samples.get(region.getName());
+            boolean dense = overlapsAny(region, active) || (count != null && count >= minEdgeSamples);
+            distances.put(region.getName(), dense ? denseDistance : coarseDistance);
+        }
+        return distances;
+    }
+
+    // Bounding boxes {left, top, right, bottom} of the regions with enough
+    // edgels, of the segments and of the detected quadrangles of the
+    // previous frame
+    private static List<int[]> getActiveAreas(Container previous, int minEdgels)
+    {
+        List<int[]> areas = new ArrayList<int[]>();
+        if (previous.getRegionsMap() != null && previous.getEdgelsMap() != null)
+        {
+            for (Map.Entry<String, List<Edgel>> entry : previous.getEdgelsMap().entrySet())
+            {
+                Region region = previous.getRegionsMap().get(entry.getKey());
+                if (region != null && entry.getValue().size() >= minEdgels)
+                {
+                    areas.add(new int[] { region.getX(), region.getY(), region.getX() + region.getWidth(),
+                            region.getY() + region.getHeight() });
+                }
+            }
+        }
+
+        if (previous.getSegmentsMap() != null)
+        {
+            for (LineSegment segment : previous.getSegmentsCollection())
+            {
+                Edgel s = segment.getStart();
+                Edgel e = segment.getEnd();
+                areas.add(new int[] { Math.min(s.getX(), e.getX()), Math.min(s.getY(), e.getY()),
+                        Math.max(s.getX(), e.getX()) + 1, Math.max(s.getY(), e.getY()) + 1 });
+            }
+        }
+
+        areas.addAll(getDetectedAreas(previous, 0));
+        return areas;
+    }
+
+    // Bounding boxes of the detected quadrangles of the previous frame - the
+    // filtered ones, so the scan line density and the region priority see
+    // the same detections
+    static List<int[]> getDetectedAreas(Container previous, int margin)
+    {
+        if (previous == null || previous.getFilteredQuadrangles() == null)
+        {
+            return new ArrayList<int[]>();
+        }
+        return getQuadrangleAreas(previous.getFilteredQuadrangles(), margin);
+    }
+
+    // Bounding boxes {left, top, right, bottom} of the quadrangles, extended by the margin
+    static List<int[]> getQuadrangleAreas(Collection<Quadrangle> quadrangles, int margin)
+    {
+        List<int[]> areas = new ArrayList<int[]>(quadrangles.size());
+        for (Quadrangle q : quadrangles)
+        {
+            int[] area = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+            for (Point p : new Point[] { q.getP1(), q.getP2(), q.getP3(), q.getP4() })
+            {
+                area[0] = Math.min(area[0], p.x - margin);
+                area[1] = Math.min(area[1], p.y - margin);
+                area[2] = Math.max(area[2], p.x + 1 + margin);
+                area[3] = Math.max(area[3], p.y + 1 + margin);
+            }
+            areas.add(area);
+        }
+        return areas;
+    }
+
+    // true if the region overlaps any of the bounding boxes
+    static boolean overlapsAny(Region region, List<int[]> areas)
+    {
+        int right = region.getX() + region.getWidth();
+        int bottom = region.getY() + region.getHeight();
+        for (int[] area : areas)
+        {
+            if (area[0] < right && region.getX() < area[2] && area[1] < bottom && region.getY() < area[3])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
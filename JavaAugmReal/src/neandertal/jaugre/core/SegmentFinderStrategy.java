@@ -0,0 +1,28 @@
+package neandertal.jaugre.core;
+
+import java.util.List;
+import java.util.Map;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.LineSegment;
+
+
+/**
+ * STEP 3, as a pluggable step.
+ * Finds the line segments in the edgels of every region. The segments are
+ * kept in the image, with the count of regions whose search was cut by a
+ * limit.
+ * <br/>
+ * Implementations keep their values and may keep scratch buffers, so one
+ * instance is used by one thread at a time.
+ * @author neandertal
+ */
+public interface SegmentFinderStrategy
+{
+    /**
+     * Detects line segments in the image
+     * @param image contains the regions and their edgels
+     * @return map of segments for each region
+     */
+    Map<String, List<LineSegment>> detectSegments(Container image);
+}
@@ -26,6 +26,19 @@ public class SegmentsExtendor
      * @return List of extended segments
      */
     public static List<LineSegment> extendSegments(Container image)
+    {
+        return extendSegments(image, true);
+    }
+
+    /**
+     * Extend segments along edges in image, with the choice of the comparison
+     * of the directions
+     * 
+     * @param image
+     * @param quantizedAngles true to compare the quantized angles, false for the float directions
+     * @return List of extended segments
+     */
+    public static List<LineSegment> extendSegments(Container image, boolean quantizedAngles)
     {
         if (image == null)
         {
@@ -37,13 +50,13 @@ public class SegmentsExtendor
             throw new IllegalArgumentException("Merged segments can't be NULL!");
         }
 
-        extendLineSegments(image);
+        extendLineSegments(image, quantizedAngles);
 
         return image.getExtendedSegments();
     }
 
     // Extend each end until possible. If line falls outside image - drop it.
-    private static void extendLineSegments(Container image)
+    private static void extendLineSegments(Container image, boolean quantizedAngles)
     {
         List<LineSegment> extended = new LinkedList<LineSegment>();
         int xLowerLimit = image.getLeftInset();
@@ -58,9 +71,11 @@ public class SegmentsExtendor
             LineSegment clone = iter.next().clone();
 
             // extend first end
-            extendLineSegment(image.getImage(), clone, true, xLowerLimit, yLowerLimit, xUpperLimit, yUpperLimit);
+            extendLineSegment(image.getImage(), clone, true, xLowerLimit, yLowerLimit, xUpperLimit, yUpperLimit,
+                    quantizedAngles);
             // extend last end
-            extendLineSegment(image.getImage(), clone, false, xLowerLimit, yLowerLimit, xUpperLimit, yUpperLimit);
+            extendLineSegment(image.getImage(), clone, false, xLowerLimit, yLowerLimit, xUpperLimit, yUpperLimit,
+                    quantizedAngles);
 
             extended.add(clone);
         }
@@ -69,7 +84,7 @@ public class SegmentsExtendor
     }
 
     protected static void extendLineSegment(BufferedImage image, LineSegment segment, boolean extendStart,
-            int xLowerLimit, int yLowerLimit, int xUpperLimit, int yUpperLimit)
+            int xLowerLimit, int yLowerLimit, int xUpperLimit, int yUpperLimit, boolean quantizedAngles)
     {
         float[] grow = new float[] { segment.getDirection()[0], segment.getDirection()[1] };
         float[] normal = new float[] { segment.getDirection()[1], -segment.getDirection()[0] };
@@ -103,7 +118,7 @@ public class SegmentsExtendor
                 break;
             }
 
-            if (!SegmentsMerger.checkPointIfEdgel(image, (int) x, (int) y, normal, direction))
+            if (!SegmentsMerger.checkPointIfEdgel(image, (int) x, (int) y, normal, direction, quantizedAngles))
             {
                 // end of line reached
                 break;
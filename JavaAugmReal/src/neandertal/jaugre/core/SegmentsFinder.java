@@ -1,12 +1,8 @@
 package neandertal.jaugre.core;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 
 import neandertal.jaugre.core.data.Container;
 import neandertal.jaugre.core.data.Edgel;
@@ -21,6 +17,14 @@ import neandertal.jaugre.core.data.LineSegment;
  * detected segments (and everything after that) - this means two subsequent runs on 
  * the same input will produce similar, but not equal results.
  * <br/>
+ * With a budget of line hypotheses for the frame, every region gets an
+ * equal share of what is left, so a textured frame can't take many times
+ * the normal frame time - its regions are searched less.
+ * <br/>
+ * The search itself is done by {@link RansacSegmentFinder}, a new one for
+ * every call of the static methods - a session keeps its own finder with
+ * its scratch and random generator.
+ * <br/>
  * Uses:<br/>
  * <a href="http://en.wikipedia.org/wiki/RANSAC">RANSAC algorithm</a> 
  * 
@@ -38,6 +42,8 @@ public class SegmentsFinder
     public static final float DEFAULT_DISTANCE_TO_LINE = 0.75f;
     /** Minimum inline edgels for an accepted line segment */
     public static final int DEFAULT_MIN_SUPPORT_EDGELS_COUNT = 5;
+    /** Line hypotheses tested in the whole frame, with the budget */
+    public static final int DEFAULT_MAX_HYPOTHESES = 100000;
 
     /**
      * Detects line segments in the image using default values.
@@ -63,77 +69,56 @@ public class SegmentsFinder
     public static Map<String, List<LineSegment>> detectSegments(Container image, int minEdgelsCount, int maxEdgelsIter,
             int maxLineIter, float distanceToLine, float compValue)
     {
-        if (image == null)
-        {
-            throw new IllegalArgumentException("Image can't be NULL!");
-        }
-
-        if (image.getRegionsMap() == null)
-        {
-            throw new IllegalArgumentException("Regions map can't be NULL!");
-        }
-
-        if (image.getEdgelsMap() == null)
-        {
-            throw new IllegalArgumentException("Edgels map can't be NULL!");
-        }
-
-        detectLineSegments(image, minEdgelsCount, maxEdgelsIter, maxLineIter, distanceToLine, compValue);
-
-        return image.getSegmentsMap();
+        return detectSegments(image, minEdgelsCount, maxEdgelsIter, maxLineIter, distanceToLine, compValue,
+                Integer.MAX_VALUE);
     }
 
-    private static void detectLineSegments(Container image, int minEdgelsCount, int maxEdgelsIter, int maxLineIter,
-            float distanceToLine, float compValue)
+    /**
+     * Detects line segments in the image using custom values and a budget of
+     * line hypotheses for the whole frame. The count of regions, whose search
+     * was cut by the budget, is kept in the image.
+     * @param image contains all data
+     * @param minEdgelsCount custom minimum inline edgels for an accepted line segment
+     * @param maxEdgelsIter custom iterations limit to process edgels in a region
+     * @param maxLineIter custom iterations limit to find line segments in regions
+     * @param distanceToLine custom distance from a line of Edgel to be accepted as part of the line
+     * @param compValue custom threshold for 2 edgels directions to be accepted as part of the same line
+     * @param maxHypotheses custom limit of line hypotheses in the frame, Integer.MAX_VALUE for none
+     * @return map of segments for each region
+     */
+    public static Map<String, List<LineSegment>> detectSegments(Container image, int minEdgelsCount, int maxEdgelsIter,
+            int maxLineIter, float distanceToLine, float compValue, int maxHypotheses)
     {
-        Map<String, List<Edgel>> edgelsMap = image.getEdgelsMap();
-        Map<String, List<LineSegment>> segmentsMap = new HashMap<String, List<LineSegment>>();
-
-        Iterator<Entry<String, List<Edgel>>> iter = edgelsMap.entrySet().iterator();
-        while (iter.hasNext())
-        {
-            Entry<String, List<Edgel>> entry = iter.next();
-            List<LineSegment> lSegmList = detectLineSegmentsInRegion(entry.getValue(), minEdgelsCount, maxEdgelsIter,
-                    maxLineIter, distanceToLine, compValue);
-
-            segmentsMap.put(entry.getKey(), lSegmList);
-        }
-
-        image.setSegmentsMap(segmentsMap);
+        return detectSegments(image, minEdgelsCount, maxEdgelsIter, maxLineIter, distanceToLine, compValue,
+                maxHypotheses, true);
     }
 
-    private static List<LineSegment> detectLineSegmentsInRegion(List<Edgel> edgels, int minEdgelsCount,
-            int maxEdgelsIter, int maxLineIter, float distanceToLine, float compValue)
+    /**
+     * Detects line segments in the image using custom values, a budget of
+     * line hypotheses for the whole frame, and the choice of the comparison
+     * of the directions.
+     * @param image contains all data
+     * @param minEdgelsCount custom minimum inline edgels for an accepted line segment
+     * @param maxEdgelsIter custom iterations limit to process edgels in a region
+     * @param maxLineIter custom iterations limit to find line segments in regions
+     * @param distanceToLine custom distance from a line of Edgel to be accepted as part of the line
+     * @param compValue custom threshold for 2 edgels directions to be accepted as part of the same line
+     * @param maxHypotheses custom limit of line hypotheses in the frame, Integer.MAX_VALUE for none
+     * @param quantizedAngles true to compare the quantized angles, false for the float directions
+     * @return map of segments for each region
+     */
+    public static Map<String, List<LineSegment>> detectSegments(Container image, int minEdgelsCount, int maxEdgelsIter,
+            int maxLineIter, float distanceToLine, float compValue, int maxHypotheses, boolean quantizedAngles)
     {
-        List<Edgel> edgelsCopy = new LinkedList<Edgel>(edgels);
-        List<LineSegment> lineSegments = new LinkedList<LineSegment>();
-        // end line segments search when there are not enough edgels left for an
-        // accepted line segment or iterations limit has been reached
-        int iterations = 0;
-        while (edgelsCopy.size() >= minEdgelsCount && iterations < maxEdgelsIter)
-        {
-            iterations++;
-            LineSegment strongest = findStrongestLineSegment(edgelsCopy, maxEdgelsIter, maxLineIter, distanceToLine,
-                    compValue);
-
-            if (strongest != null && strongest.getInliners().size() >= minEdgelsCount)
-            {
-                // remove supporting edgels from pool
-                edgelsCopy.removeAll(strongest.getInliners());
-
-                // fix linesegment
-                fixLineSegment(strongest);
-
-                lineSegments.add(strongest);
-            }
-        }// while
-
-        return lineSegments;
+        RansacSegmentFinder finder = new RansacSegmentFinder(minEdgelsCount, maxEdgelsIter, maxLineIter,
+                distanceToLine, compValue, maxHypotheses);
+        finder.setQuantizedAngles(quantizedAngles);
+        return finder.detectSegments(image);
     }
 
     // find real edge points of line segment
     // determine direction of segment
-    private static void fixLineSegment(LineSegment ls)
+    static void fixLineSegment(LineSegment ls)
     {
         Edgel start = ls.getStart();
         Edgel end = ls.getEnd();
@@ -211,110 +196,6 @@ public class SegmentsFinder
         return direction;
     }
     
-    // randomly pick 2 points and check if line segment has enough supporters
-    // Do this several times and return the line segment with most supporters
-    private static LineSegment findStrongestLineSegment(List<Edgel> edgels, int maxEdgelsIter, int maxLineIter,
-            float distanceToLine, float compValue)
-    {
-        LineSegment strongest = null;
-
-        for (int i = 0; i < maxLineIter; i++)
-        {
-            // Select randomly 2 different edgels with same direction
-            Edgel[] randEdgels = new Edgel[2];
-            if (randSelectEdgels(edgels, randEdgels, maxEdgelsIter, compValue))
-            {
-                // Create line segment
-                LineSegment lineSegment = new LineSegment(randEdgels[0], randEdgels[1]);
-
-                // Find the supporting edgels of this line segment
-                Iterator<Edgel> iter = edgels.iterator();
-                while (iter.hasNext())
-                {
-                    Edgel edg = iter.next();
-
-                    if (isInliner(lineSegment, edg, distanceToLine, compValue))
-                    {
-                        lineSegment.addInliner(edg);
-                    }
-                }
-
-                // evaluate line segment
-                if (strongest == null)
-                {
-                    strongest = lineSegment;
-                }
-                else
-                {
-                    if (lineSegment.getInliners().size() > strongest.getInliners().size())
-                    {
-                        strongest = lineSegment;
-                    }
-                }
-            }
-        }
-
-        return strongest;
-    }
-
-    // Is part of this line segment
-    private static boolean isInliner(LineSegment ls, Edgel e, float distanceToLineLimit, float compatibilityValue)
-    {
-        Edgel a = ls.getInliners().get(0);
-        Edgel b = ls.getInliners().get(ls.getInliners().size()-1);
-
-        if (a == e || b == e)
-            return true;
-
-        if (!isOrientationCompatible(a.getDirection(), e.getDirection(), compatibilityValue))
-        {
-            return false;
-        }
-
-        return distanceToLine(a, b, e) < distanceToLineLimit;
-    }
-
-    // Distance from E to line AB
-    private static double distanceToLine(Edgel a, Edgel b, Edgel e)
-    {
-        int lengABX = b.getX() - a.getX();
-        int lengABY = b.getY() - a.getY();
-        double normalLength = Math.hypot(lengABX, lengABY);
-        return Math.abs((e.getX() - a.getX()) * lengABY - (e.getY() - a.getY()) * lengABX) / normalLength;
-    }
-
-    // try to randomly pick 2 edgels from the list with same orientation
-    private static boolean randSelectEdgels(List<Edgel> edgels, Edgel[] randEdgels, int maxEdgelsIter,
-            float compatibilityValue)
-    {
-        Random random = new Random();
-        int rand1;
-        int rand2;
-        int iteration = 0;
-        while (iteration < maxEdgelsIter)
-        {
-            iteration++;
-            rand1 = random.nextInt(edgels.size());
-            rand2 = random.nextInt(edgels.size());
-
-            if (rand1 == rand2)
-                continue;
-
-            randEdgels[0] = edgels.get(rand1);
-            randEdgels[1] = edgels.get(rand2);
-
-            if (randEdgels[0] == randEdgels[1])
-                continue;
-
-            if (isOrientationCompatible(randEdgels[0].getDirection(), randEdgels[1].getDirection(), compatibilityValue))
-            {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     protected static boolean isOrientationCompatible(float[] direction1, float[] direction2, float compatibilityValue)
     {
         return direction1[0] * direction2[0] + direction1[1] * direction2[1] > compatibilityValue;
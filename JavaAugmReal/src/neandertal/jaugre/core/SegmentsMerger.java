@@ -1,6 +1,9 @@
 package neandertal.jaugre.core;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -11,11 +14,14 @@ import java.util.TreeMap;
 import neandertal.jaugre.core.data.Container;
 import neandertal.jaugre.core.data.Edgel;
 import neandertal.jaugre.core.data.LineSegment;
+import neandertal.jaugre.core.data.QuantizedAngle;
 
 
 /**
  * STEP 4.
  * Merges segments into lines, first locally - inside a region, then globally.
+ * The global merge compares every pair of segments, so with a budget only
+ * the longest segments of the local merges go into it.
  * <br/>
  * Uses:
  * <br/>
@@ -28,6 +34,8 @@ public class SegmentsMerger
     public static final float DEFAULT_DIRECTION_DIFFERENCE = 0.1f;//instead of 0.01 - TODO test with more images
     /** Upper limit of distance between 2 segments, candidates for merge, squared */
     public static final int DEFAULT_SQUARE_DISTANCE_LIMIT = 625;// 25*25
+    /** Segments into the global merge, with the budget */
+    public static final int DEFAULT_MAX_SEGMENTS = 400;
 
     /**
      * Merge segments in image, to produce segments outside regions
@@ -36,6 +44,37 @@ public class SegmentsMerger
      */
     public static List<LineSegment> mergeSegments(Container image)
     {
+        return mergeSegments(image, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Merge segments in image, to produce segments outside regions. Only the
+     * longest maxSegments segments of the local merges go into the global
+     * merge, the count of the dropped ones is kept in the image.
+     * @param image
+     * @param maxSegments custom limit of segments into the global merge, Integer.MAX_VALUE for none
+     * @return List of merged segments
+     */
+    public static List<LineSegment> mergeSegments(Container image, int maxSegments)
+    {
+        return mergeSegments(image, maxSegments, true);
+    }
+
+    /**
+     * Merge segments in image, with a limit of the segments into the global
+     * merge and the choice of the comparison of the directions
+     * @param image
+     * @param maxSegments custom limit of segments into the global merge, Integer.MAX_VALUE for none
+     * @param quantizedAngles true to compare the quantized angles, false for the float directions
+     * @return List of merged segments
+     */
+    public static List<LineSegment> mergeSegments(Container image, int maxSegments, boolean quantizedAngles)
+    {
+        if (maxSegments <= 0)
+        {
+            throw new IllegalArgumentException("Segments budget must be positive!");
+        }
+
         if (image == null)
         {
             throw new IllegalArgumentException("Image can't be NULL!");
@@ -56,12 +95,12 @@ public class SegmentsMerger
             throw new IllegalArgumentException("Segments map can't be NULL!");
         }
 
-        mergeLineSegments(image);
+        mergeLineSegments(image, maxSegments, quantizedAngles);
 
         return image.getMergedSegments();
     }
 
-    private static void mergeLineSegments(Container image)
+    private static void mergeLineSegments(Container image, int maxSegments, boolean quantizedAngles)
     {
         List<LineSegment> allMergedSegm = new LinkedList<LineSegment>();
 
@@ -69,18 +108,44 @@ public class SegmentsMerger
         while (iter.hasNext())
         {
             Entry<String, List<LineSegment>> entry = iter.next();
-            List<LineSegment> regionMergedSegm = mergeSegments(image.getImage(), entry.getValue());
+            List<LineSegment> regionMergedSegm = mergeSegments(image.getImage(), entry.getValue(), quantizedAngles);
 
             allMergedSegm.addAll(regionMergedSegm);
         }
 
+        int dropped = 0;
+        if (allMergedSegm.size() > maxSegments)
+        {
+            // keep the longest
+            List<LineSegment> sorted = new ArrayList<LineSegment>(allMergedSegm);
+            Collections.sort(sorted, new Comparator<LineSegment>()
+            {
+                @Override
+                public int compare(LineSegment a, LineSegment b)
+                {
+                    return getSquareLength(b) - getSquareLength(a);
+                }
+            });
+            dropped = sorted.size() - maxSegments;
+            allMergedSegm = new LinkedList<LineSegment>(sorted.subList(0, maxSegments));
+        }
+        image.setDroppedSegmentsCount(dropped);
+
         // globally merge segments
-        allMergedSegm = mergeSegments(image.getImage(), allMergedSegm);
+        allMergedSegm = mergeSegments(image.getImage(), allMergedSegm, quantizedAngles);
         image.setMergedSegments(allMergedSegm);
     }
 
+    private static int getSquareLength(LineSegment segment)
+    {
+        int dX = segment.getEnd().getX() - segment.getStart().getX();
+        int dY = segment.getEnd().getY() - segment.getStart().getY();
+        return dX * dX + dY * dY;
+    }
+
     //Merges compatible segments from the list
-    private static List<LineSegment> mergeSegments(BufferedImage img, List<LineSegment> segments)
+    private static List<LineSegment> mergeSegments(BufferedImage img, List<LineSegment> segments,
+            boolean quantizedAngles)
     {
         List<LineSegment> pool = new LinkedList<LineSegment>(segments);
         List<LineSegment> mergedSegments = new LinkedList<LineSegment>();
@@ -101,7 +166,7 @@ public class SegmentsMerger
                 LineSegment toCheck = iter.next();
 
                 // Check if 2 segments have the same direction
-                if (!isSameDirection(clone.getDirection(), toCheck.getDirection()))
+                if (!isSameDirection(clone, toCheck, quantizedAngles))
                 {
                     continue;
                 }
@@ -111,9 +176,8 @@ public class SegmentsMerger
 
                 int dX = edgels[2].getX() - edgels[1].getX();
                 int dY = edgels[2].getY() - edgels[1].getY();
-                float[] direction = SegmentsFinder.getLineDirection(dX, dY);
                 // check if the connecting line has the same direction
-                if (!isSameDirection(clone.getDirection(), direction))
+                if (!isSameDirection(clone, dX, dY, quantizedAngles))
                 {
                     continue;
                 }
@@ -152,7 +216,7 @@ public class SegmentsMerger
                     int x = points[i][0];
                     int y = points[i][1];
 
-                    if (!checkPointIfEdgel(img, x, y, normal, direction))
+                    if (!checkPointIfEdgel(img, x, y, normal, direction, quantizedAngles))
                     {
                         // one point does not satisfy the conditions, the
                         // between segment is discarded
@@ -195,15 +259,16 @@ public class SegmentsMerger
     }
 
     //Check if point and nearby points satisfy edgel criteria
-    protected static boolean checkPointIfEdgel(BufferedImage img, int x, int y, float[] normal, float[] direction)
+    protected static boolean checkPointIfEdgel(BufferedImage img, int x, int y, float[] normal, float[] direction,
+            boolean quantizedAngles)
     {
         //check if Gauss kernel condition holds
         return (checkPointGauss(img, x, y) &&
                 //Check if point direction is within range
-                checkPointDirection(img, x, y, direction) &&
+                checkPointDirection(img, x, y, direction, quantizedAngles) &&
                 //check point above and below, perpendicular to this point if similar directions
-                checkPointDirection(img, (int) (x + normal[0]), (int) (y + normal[1]), direction) &&
-                checkPointDirection(img, (int) (x - normal[0]), (int) (y - normal[1]), direction));
+                checkPointDirection(img, (int) (x + normal[0]), (int) (y + normal[1]), direction, quantizedAngles) &&
+                checkPointDirection(img, (int) (x - normal[0]), (int) (y - normal[1]), direction, quantizedAngles));
     }
     
     // Get the start, startBetween, endBetween and end points
@@ -234,6 +299,29 @@ public class SegmentsMerger
         return edgels;
     }
     
+    // Check if the 2 segments have the same direction, by the quantized
+    // angles or by the float directions
+    private static boolean isSameDirection(LineSegment a, LineSegment b, boolean quantizedAngles)
+    {
+        if (quantizedAngles)
+        {
+            return 1 - QuantizedAngle.cos(a.getAngle(), b.getAngle()) < DEFAULT_DIRECTION_DIFFERENCE;
+        }
+        return isSameDirection(a.getDirection(), b.getDirection());
+    }
+
+    // Check if the line between the segment and the point (dX, dY) away has
+    // the direction of the segment
+    private static boolean isSameDirection(LineSegment a, int dX, int dY, boolean quantizedAngles)
+    {
+        if (quantizedAngles)
+        {
+            int angle = QuantizedAngle.fromComponents(dX, dY);
+            return 1 - QuantizedAngle.cos(a.getAngle(), angle) < DEFAULT_DIRECTION_DIFFERENCE;
+        }
+        return isSameDirection(a.getDirection(), SegmentsFinder.getLineDirection(dX, dY));
+    }
+
     // Check if the dot product of the 2 normalized directions is close to 1.0
     private static boolean isSameDirection(float[] a, float[] b)
     {
@@ -326,6 +414,11 @@ public class SegmentsMerger
         }
 
         //hack-remove edge points, they are already processed
+        if (result.size() < 2)
+        {
+            // both edge points are the same
+            return new int[0][];
+        }
         result.remove(0);
         result.remove(result.size() - 1);
         
@@ -362,10 +455,17 @@ public class SegmentsMerger
     }
 
     // Calculate the point direction and compare to the original direction
-    protected static boolean checkPointDirection(BufferedImage img, int x, int y, float[] direction)
+    protected static boolean checkPointDirection(BufferedImage img, int x, int y, float[] direction,
+            boolean quantizedAngles)
     {
         // get neighbor pixels and calculate direction of candidate point
         int[] area = img.getRGB(x - 1, y - 1, 3, 3, null, 0, 3);
+        if (quantizedAngles)
+        {
+            int pointAngle = EdgelDetector.calculateAngle(area);
+            return QuantizedAngle.cos(pointAngle, QuantizedAngle.fromVector(direction[0], direction[1]))
+                    > SegmentsFinder.DEFAULT_COMPATIBILITY_VALUE;
+        }
         float[] pointDirection = EdgelDetector.calculateDirection(area);
 
         // check if direction compatible
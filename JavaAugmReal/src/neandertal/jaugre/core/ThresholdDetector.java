@@ -0,0 +1,666 @@
+package neandertal.jaugre.core;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import neandertal.jaugre.core.data.Container;
+import neandertal.jaugre.core.data.Quadrangle;
+
+
+/**
+ * Fast engine, instead of STEPS 1 - 8.
+ * Finds the quadrangles of dark blobs - the black borders of the markers.
+ * For well lit, high contrast frames this is much cheaper than the edgels
+ * and RANSAC:
+ * <ul>
+ * <li>a pixel is dark, if it is darker than the mean of the window around
+ * it by an offset - the mean comes from an integral image, so the local
+ * threshold follows uneven light</li>
+ * <li>the dark pixels are labeled in one pass, the labels of a connected
+ * component are joined with union-find</li>
+ * <li>the outer contour of every big enough component is traced</li>
+ * <li>the two contour points furthest apart and the two furthest from the
+ * line between them are the corners, if the contour stays close to the four
+ * sides. The sides are fitted to their contour points and intersected, on
+ * the edge between the dark and the light pixels.</li>
+ * </ul>
+ * The quadrangles are kept in the image, like from
+ * {@link QuadranglesExtractor}, and are filtered and decoded the same way.
+ * The buffers are reused for the next frames, so one detector is used by
+ * one thread at a time.
+ * <br/>
+ * Uses:<br/>
+ * <a href="http://en.wikipedia.org/wiki/Summed-area_table">Integral image</a><br/>
+ * <a href="http://en.wikipedia.org/wiki/Connected-component_labeling">Connected-component labeling</a><br/>
+ * <a href="http://en.wikipedia.org/wiki/Moore_neighborhood">Moore neighborhood tracing</a>
+ *
+ * @author neandertal
+ */
+public class ThresholdDetector
+{
+    /** Half side of the window of the local mean, in pixels */
+    public static final int DEFAULT_WINDOW_RADIUS = 10;
+    /** A pixel is dark, if it is darker than the local mean by this */
+    public static final int DEFAULT_OFFSET = 10;
+    /** Minimum dark pixels of a blob */
+    public static final int DEFAULT_MIN_PIXELS = 24;
+    /** Maximum distance of the contour to the sides of its quadrangle, as part of the mean side */
+    public static final float DEFAULT_MAX_CONTOUR_DISTANCE = 0.06f;
+
+    // lower limit of the contour distance, in pixels
+    private static final float MIN_CONTOUR_DISTANCE = 1.5f;
+    // part of the side at each end, which is not used to fit the side
+    private static final float CORNER_PART = 0.15f;
+    // neighbors clock-wise on the screen, from the right one
+    private static final int[] DX = new int[] { 1, 1, 0, -1, -1, -1, 0, 1 };
+    private static final int[] DY = new int[] { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+    private int windowRadius;
+    private int offset;
+    private int minPixels;
+    private float maxContourDistance;
+
+    // scratch, grows with the frames
+    private int width;
+    private int height;
+    private int[] gray = new int[0];
+    private int[] integral = new int[0];
+    private int[] labels = new int[0];
+    // columns of the window of every x
+    private int[] windowLefts = new int[0];
+    private int[] windowRights = new int[0];
+    private int[] columnSums = new int[0];
+    // union-find of the labels, with the pixels count, the first pixel and
+    // the bounding box of every label
+    private int[] parents = new int[0];
+    private int[] counts = new int[0];
+    private int[] starts = new int[0];
+    private int[] boxes = new int[0];
+    private int[] contourX = new int[0];
+    private int[] contourY = new int[0];
+    private int contourLength;
+    private float centroidX;
+    private float centroidY;
+
+    /**
+     * Detector with default values
+     */
+    public ThresholdDetector()
+    {
+        this(DEFAULT_WINDOW_RADIUS, DEFAULT_OFFSET, DEFAULT_MIN_PIXELS, DEFAULT_MAX_CONTOUR_DISTANCE);
+    }
+
+    /**
+     * Detector with custom values
+     * @param windowRadiusArg custom half side of the window of the local mean
+     * @param offsetArg custom difference to the local mean of a dark pixel
+     * @param minPixelsArg custom minimum dark pixels of a blob
+     * @param maxContourDistanceArg custom maximum distance of the contour to the sides, as part of the mean side
+     */
+    public ThresholdDetector(int windowRadiusArg, int offsetArg, int minPixelsArg, float maxContourDistanceArg)
+    {
+        if (windowRadiusArg <= 0)
+        {
+            throw new IllegalArgumentException("Window radius must be positive!");
+        }
+
+        if (offsetArg < 0 || minPixelsArg < 0 || maxContourDistanceArg < 0)
+        {
+            throw new IllegalArgumentException("Limits are out of range!");
+        }
+
+        windowRadius = windowRadiusArg;
+        offset = offsetArg;
+        minPixels = minPixelsArg;
+        maxContourDistance = maxContourDistanceArg;
+    }
+
+    /**
+     * Detect the quadrangles of the dark blobs
+     * @param image contains the frame
+     * @return quadrangles, also kept in the image
+     */
+    public List<Quadrangle> detectQuadrangles(Container image)
+    {
+        if (image == null || image.getImage() == null)
+        {
+            throw new IllegalArgumentException("Image can't be NULL!");
+        }
+
+        BufferedImage img = image.getImage();
+        prepare(img);
+        computeIntegral();
+        int labelsCount = label();
+
+        List<Quadrangle> quadrangles = new ArrayList<Quadrangle>();
+        for (int l = 1; l <= labelsCount; l++)
+        {
+            if (parents[l] != l || counts[l] < minPixels)
+            {
+                continue;
+            }
+            // a blob cut by the frame has no closed contour
+            if (boxes[4 * l] == 0 || boxes[4 * l + 1] == 0 || boxes[4 * l + 2] == width - 1
+                    || boxes[4 * l + 3] == height - 1)
+            {
+                continue;
+            }
+
+            traceContour(l);
+            Quadrangle q = approximate();
+            if (q != null)
+            {
+                quadrangles.add(q);
+            }
+        }
+
+        image.setQuadrangles(quadrangles);
+        return quadrangles;
+    }
+
+    // gray values of the frame, sizes the buffers
+    private void prepare(BufferedImage img)
+    {
+        width = img.getWidth();
+        height = img.getHeight();
+        int size = width * height;
+        if (gray.length < size)
+        {
+            gray = new int[size];
+            labels = new int[size];
+            integral = new int[(width + 1) * (height + 1)];
+        }
+        else if (integral.length < (width + 1) * (height + 1))
+        {
+            integral = new int[(width + 1) * (height + 1)];
+        }
+
+        int[] pixels = PixelAccess.getPixels(img);
+        if (pixels != null)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                gray[i] = PixelAccess.getLuma(pixels[i]);
+            }
+        }
+        else
+        {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++)
+            {
+                img.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++)
+                {
+                    gray[y * width + x] = PixelAccess.getLuma(row[x]);
+                }
+            }
+        }
+    }
+
+    // Sums of the gray values above and left of every pixel. The sums can
+    // overflow for big frames, but the sum of a window is a difference of
+    // them and comes out right as long as it fits an int itself.
+    private void computeIntegral()
+    {
+        int stride = width + 1;
+        Arrays.fill(integral, 0, stride, 0);
+        for (int y = 0; y < height; y++)
+        {
+            int rowSum = 0;
+            integral[(y + 1) * stride] = 0;
+            for (int x = 0; x < width; x++)
+            {
+                rowSum += gray[y * width + x];
+                integral[(y + 1) * stride + x + 1] = integral[y * stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    // Label the dark pixels in one pass, 8-connected. Joined labels point to
+    // the smallest one - the label of the first pixel of the blob. Returns
+    // the count of labels, the roots have the pixels count and the bounding
+    // box of the whole blob.
+    private int label()
+    {
+        int stride = width + 1;
+        if (windowLefts.length < width)
+        {
+            windowLefts = new int[width];
+            windowRights = new int[width];
+            columnSums = new int[width + 1];
+        }
+        for (int x = 0; x < width; x++)
+        {
+            windowLefts[x] = Math.max(0, x - windowRadius);
+            windowRights[x] = Math.min(width, x + windowRadius + 1);
+        }
+
+        // dark pixels are -1, the rest 0
+        for (int y = 0; y < height; y++)
+        {
+            int top = Math.max(0, y - windowRadius) * stride;
+            int bottom = Math.min(height, y + windowRadius + 1) * stride;
+            int rows = (bottom - top) / stride;
+            int row = y * width;
+            // sums of the window rows left of every column
+            for (int x = 0; x <= width; x++)
+            {
+                columnSums[x] = integral[bottom + x] - integral[top + x];
+            }
+            for (int x = 0; x < width; x++)
+            {
+                int left = windowLefts[x];
+                int right = windowRights[x];
+                int sum = columnSums[right] - columnSums[left];
+                labels[row + x] = (gray[row + x] + offset) * rows * (right - left) < sum ? -1 : 0;
+            }
+        }
+
+        int labelsCount = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int row = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int i = row + x;
+                if (labels[i] == 0)
+                {
+                    continue;
+                }
+
+                // The pixel above touches all the other labeled neighbors,
+                // the left one touches the upper left one - they are joined
+                // already. Only the upper right one can be a new join.
+                int west = x > 0 ? labels[i - 1] : 0;
+                int north = y > 0 ? labels[i - width] : 0;
+                int l;
+                if (north != 0)
+                {
+                    l = north;
+                }
+                else
+                {
+                    int northWest = x > 0 && y > 0 ? labels[i - width - 1] : 0;
+                    int northEast = x < width - 1 && y > 0 ? labels[i - width + 1] : 0;
+                    if (northEast != 0)
+                    {
+                        l = northEast;
+                        if (west != 0)
+                        {
+                            join(northEast, west);
+                        }
+                        else if (northWest != 0)
+                        {
+                            join(northEast, northWest);
+                        }
+                    }
+                    else if (northWest != 0)
+                    {
+                        l = northWest;
+                    }
+                    else
+                    {
+                        l = west;
+                    }
+                }
+
+                if (l == 0)
+                {
+                    l = ++labelsCount;
+                    if (parents.length <= l)
+                    {
+                        grow(2 * l + 16);
+                    }
+                    parents[l] = l;
+                    counts[l] = 0;
+                    starts[l] = i;
+                    boxes[4 * l] = x;
+                    boxes[4 * l + 1] = y;
+                    boxes[4 * l + 2] = x;
+                    boxes[4 * l + 3] = y;
+                }
+                labels[i] = l;
+                counts[l]++;
+                if (x < boxes[4 * l])
+                {
+                    boxes[4 * l] = x;
+                }
+                if (x > boxes[4 * l + 2])
+                {
+                    boxes[4 * l + 2] = x;
+                }
+                boxes[4 * l + 3] = y;
+            }
+        }
+
+        // every label points to its root, the root sums its blob
+        for (int l = 1; l <= labelsCount; l++)
+        {
+            int root = find(l);
+            parents[l] = root;
+            if (root != l)
+            {
+                counts[root] += counts[l];
+                boxes[4 * root] = Math.min(boxes[4 * root], boxes[4 * l]);
+                boxes[4 * root + 1] = Math.min(boxes[4 * root + 1], boxes[4 * l + 1]);
+                boxes[4 * root + 2] = Math.max(boxes[4 * root + 2], boxes[4 * l + 2]);
+                boxes[4 * root + 3] = Math.max(boxes[4 * root + 3], boxes[4 * l + 3]);
+            }
+        }
+        return labelsCount;
+    }
+
+    // join the blobs of the two labels, the smaller root stays
+    private void join(int a, int b)
+    {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra < rb)
+        {
+            parents[rb] = ra;
+        }
+        else if (rb < ra)
+        {
+            parents[ra] = rb;
+        }
+    }
+
+    private int find(int l)
+    {
+        int root = l;
+        while (parents[root] != root)
+        {
+            root = parents[root];
+        }
+        // path compression
+        while (parents[l] != root)
+        {
+            int next = parents[l];
+            parents[l] = root;
+            l = next;
+        }
+        return root;
+    }
+
+    private void grow(int capacity)
+    {
+        parents = Arrays.copyOf(parents, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        boxes = Arrays.copyOf(boxes, 4 * capacity);
+    }
+
+    // Moore tracing of the outer contour, from the first pixel of the blob
+    private void traceContour(int root)
+    {
+        int maxLength = 2 * counts[root] + 8;
+        if (contourX.length < maxLength)
+        {
+            contourX = new int[maxLength];
+            contourY = new int[maxLength];
+        }
+
+        int startX = starts[root] % width;
+        int startY = starts[root] / width;
+        contourX[0] = startX;
+        contourY[0] = startY;
+        contourLength = 1;
+
+        int x = startX;
+        int y = startY;
+        // the first pixel has only light pixels to the left and above
+        int background = 4;
+        int firstDirection = -1;
+        while (contourLength < maxLength)
+        {
+            int direction = -1;
+            for (int k = 1; k <= 8; k++)
+            {
+                int d = (background + k) & 7;
+                if (isInBlob(x + DX[d], y + DY[d], root))
+                {
+                    direction = d;
+                    break;
+                }
+            }
+            if (direction < 0)
+            {
+                // a single pixel
+                return;
+            }
+            if (x == startX && y == startY)
+            {
+                if (direction == firstDirection)
+                {
+                    // around the blob once
+                    return;
+                }
+                if (firstDirection < 0)
+                {
+                    firstDirection = direction;
+                }
+            }
+
+            x += DX[direction];
+            y += DY[direction];
+            // the last light pixel checked, as seen from the new pixel
+            background = (direction + 6 - (direction & 1)) & 7;
+            if (x != startX || y != startY)
+            {
+                contourX[contourLength] = x;
+                contourY[contourLength] = y;
+                contourLength++;
+            }
+        }
+    }
+
+    private boolean isInBlob(int x, int y, int root)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+        {
+            return false;
+        }
+        int l = labels[y * width + x];
+        return l != 0 && parents[l] == root;
+    }
+
+    // quadrangle of the contour, NULL if the contour is not close to one
+    private Quadrangle approximate()
+    {
+        int n = contourLength;
+        if (n < 8)
+        {
+            return null;
+        }
+
+        // the diagonal - the point furthest from the start, then the point
+        // furthest from it
+        int a = furthestFrom(0);
+        int b = furthestFrom(a);
+        int first = Math.min(a, b);
+        int second = Math.max(a, b);
+        // the two other corners, furthest from the diagonal on both sides
+        int c = furthestFromLine(first, second, first, second);
+        int d = furthestFromLine(first, second, second, first + n);
+        if (c < 0 || d < 0)
+        {
+            return null;
+        }
+        int[] corners = new int[] { first, c, second, d % n };
+
+        // the contour must stay close to the sides
+        float perimeter = 0;
+        for (int k = 0; k < 4; k++)
+        {
+            perimeter += distance(corners[k], corners[(k + 1) % 4]);
+        }
+        float tolerance = Math.max(MIN_CONTOUR_DISTANCE, maxContourDistance * perimeter / 4);
+        for (int k = 0; k < 4; k++)
+        {
+            int from = corners[k];
+            int to = corners[(k + 1) % 4];
+            if (to <= from)
+            {
+                to += n;
+            }
+            if (to - from < 2 || maxDistanceToChord(from, to) > tolerance)
+            {
+                return null;
+            }
+        }
+
+        // fit the sides and intersect them
+        centroidX = 0;
+        centroidY = 0;
+        for (int i = 0; i < n; i++)
+        {
+            centroidX += contourX[i];
+            centroidY += contourY[i];
+        }
+        centroidX /= n;
+        centroidY /= n;
+        float[][] lines = new float[4][];
+        for (int k = 0; k < 4; k++)
+        {
+            int from = corners[k];
+            int to = corners[(k + 1) % 4];
+            if (to <= from)
+            {
+                to += n;
+            }
+            lines[k] = fitSide(from, to);
+        }
+        Point[] points = new Point[4];
+        for (int k = 0; k < 4; k++)
+        {
+            points[k] = intersect(lines[(k + 3) % 4], lines[k]);
+            int corner = corners[k];
+            if (points[k] == null || Math.hypot(points[k].x - contourX[corner], points[k].y - contourY[corner])
+                    > 2 * tolerance + 1)
+            {
+                // the fitted sides are not reliable, the contour point is
+                points[k] = new Point(contourX[corner], contourY[corner]);
+            }
+        }
+        return new Quadrangle(points[0], points[1], points[2], points[3]);
+    }
+
+    private int furthestFrom(int from)
+    {
+        int furthest = from;
+        float best = -1;
+        for (int i = 0; i < contourLength; i++)
+        {
+            float dist = distance(from, i);
+            if (dist > best)
+            {
+                best = dist;
+                furthest = i;
+            }
+        }
+        return furthest;
+    }
+
+    // index between start and end, both exclusive, of the contour point
+    // furthest from the line a-b, -1 if none
+    private int furthestFromLine(int a, int b, int start, int end)
+    {
+        float lineX = contourX[b] - contourX[a];
+        float lineY = contourY[b] - contourY[a];
+        int furthest = -1;
+        float best = 0;
+        for (int k = start + 1; k < end; k++)
+        {
+            int i = k % contourLength;
+            float dist = Math.abs((contourX[i] - contourX[a]) * lineY - (contourY[i] - contourY[a]) * lineX);
+            if (dist > best)
+            {
+                best = dist;
+                furthest = k;
+            }
+        }
+        return furthest;
+    }
+
+    // largest distance of the contour points between from and to to the chord
+    private float maxDistanceToChord(int from, int to)
+    {
+        int a = from % contourLength;
+        int b = to % contourLength;
+        float lineX = contourX[b] - contourX[a];
+        float lineY = contourY[b] - contourY[a];
+        float length = (float) Math.sqrt(lineX * lineX + lineY * lineY);
+        float max = 0;
+        for (int k = from + 1; k < to; k++)
+        {
+            int i = k % contourLength;
+            max = Math.max(max, Math.abs((contourX[i] - contourX[a]) * lineY - (contourY[i] - contourY[a]) * lineX)
+                    / length);
+        }
+        return max;
+    }
+
+    // Least squares line {normal x, normal y, distance} through the middle
+    // of the side, moved out by half a pixel to the edge of the blob
+    private float[] fitSide(int from, int to)
+    {
+        int skip = (int) ((to - from) * CORNER_PART);
+        int first = from + skip;
+        int last = to - skip;
+        float meanX = 0;
+        float meanY = 0;
+        for (int k = first; k <= last; k++)
+        {
+            meanX += contourX[k % contourLength];
+            meanY += contourY[k % contourLength];
+        }
+        int count = last - first + 1;
+        meanX /= count;
+        meanY /= count;
+        float sxx = 0;
+        float syy = 0;
+        float sxy = 0;
+        for (int k = first; k <= last; k++)
+        {
+            float dx = contourX[k % contourLength] - meanX;
+            float dy = contourY[k % contourLength] - meanY;
+            sxx += dx * dx;
+            syy += dy * dy;
+            sxy += dx * dy;
+        }
+        double lineAngle = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+        float normalX = (float) -Math.sin(lineAngle);
+        float normalY = (float) Math.cos(lineAngle);
+
+        // the normal out of the blob
+        if (normalX * (meanX - centroidX) + normalY * (meanY - centroidY) < 0)
+        {
+            normalX = -normalX;
+            normalY = -normalY;
+        }
+        return new float[] { normalX, normalY, meanX * normalX + meanY * normalY + 0.5f };
+    }
+
+    // intersection of two lines {normal x, normal y, distance}, NULL if parallel
+    private static Point intersect(float[] l1, float[] l2)
+    {
+        float det = l1[0] * l2[1] - l1[1] * l2[0];
+        if (Math.abs(det) < 1e-3f)
+        {
+            return null;
+        }
+        float x = (l1[2] * l2[1] - l1[1] * l2[2]) / det;
+        float y = (l1[0] * l2[2] - l1[2] * l2[0]) / det;
+        return new Point(Math.round(x), Math.round(y));
+    }
+
+    private float distance(int i, int j)
+    {
+        int a = i % contourLength;
+        int b = j % contourLength;
+        return (float) Math.hypot(contourX[b] - contourX[a], contourY[b] - contourY[a]);
+    }
+}
@@ -0,0 +1,53 @@
+package neandertal.jaugre.core.data;
+
+/**
+ * Pinhole camera intrinsics - focal lengths and principal point, in pixels
+ * @author neandertal
+ */
+public class CameraIntrinsics
+{
+    private double fx;
+    private double fy;
+    private double cx;
+    private double cy;
+
+    public CameraIntrinsics(double fx, double fy, double cx, double cy)
+    {
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
+
+    public double getFx()
+    {
+        return fx;
+    }
+
+    public double getFy()
+    {
+        return fy;
+    }
+
+    public double getCx()
+    {
+        return cx;
+    }
+
+    public double getCy()
+    {
+        return cy;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.toString());
+        sb.append(", fx=").append(fx);
+        sb.append(", fy=").append(fy);
+        sb.append(", cx=").append(cx);
+        sb.append(", cy=").append(cy);
+        return sb.toString();
+    }
+}
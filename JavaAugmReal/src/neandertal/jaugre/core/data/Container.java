@@ -30,6 +30,15 @@ public class Container
     private List<LineSegment> cornerSegments;
     private Collection<Chain> chains;
     private Collection<Quadrangle> quadrangles;
+    private Collection<Quadrangle> filteredQuadrangles;
+    private List<Marker> markers;
+    private List<Pose> poses;
+    // work dropped by the budgets of the session
+    private int droppedEdgelsCount;
+    private int droppedSegmentsCount;
+    private int cutRegionsCount;
+    // cut by the deadline of the session
+    private boolean partial;
     
     public Container(BufferedImage bImageArg)
     {
@@ -206,4 +215,94 @@ public class Container
     {
         this.quadrangles = quadrangles;
     }
+
+    public Collection<Quadrangle> getFilteredQuadrangles()
+    {
+        return filteredQuadrangles;
+    }
+
+    public void setFilteredQuadrangles(Collection<Quadrangle> filteredQuadrangles)
+    {
+        this.filteredQuadrangles = filteredQuadrangles;
+    }
+
+    public List<Marker> getMarkers()
+    {
+        return markers;
+    }
+
+    public void setMarkers(List<Marker> markers)
+    {
+        this.markers = markers;
+    }
+
+    public List<Pose> getPoses()
+    {
+        return poses;
+    }
+
+    public void setPoses(List<Pose> poses)
+    {
+        this.poses = poses;
+    }
+
+    /**
+     * @return count of the weakest edgels dropped by the edgel budgets
+     */
+    public int getDroppedEdgelsCount()
+    {
+        return droppedEdgelsCount;
+    }
+
+    public void setDroppedEdgelsCount(int droppedEdgelsCount)
+    {
+        this.droppedEdgelsCount = droppedEdgelsCount;
+    }
+
+    /**
+     * @return count of the shortest segments dropped before the global merge
+     */
+    public int getDroppedSegmentsCount()
+    {
+        return droppedSegmentsCount;
+    }
+
+    public void setDroppedSegmentsCount(int droppedSegmentsCount)
+    {
+        this.droppedSegmentsCount = droppedSegmentsCount;
+    }
+
+    /**
+     * @return count of the regions, whose line search was cut by the hypotheses budget
+     */
+    public int getCutRegionsCount()
+    {
+        return cutRegionsCount;
+    }
+
+    public void setCutRegionsCount(int cutRegionsCount)
+    {
+        this.cutRegionsCount = cutRegionsCount;
+    }
+
+    /**
+     * @return true if the time budget ran out, and the results are from a part of the frame
+     */
+    public boolean isPartial()
+    {
+        return partial;
+    }
+
+    public void setPartial(boolean partial)
+    {
+        this.partial = partial;
+    }
+
+    /**
+     * @return true if any budget was hit, and the frame was processed with reduced work
+     */
+    public boolean isBudgetHit()
+    {
+        return droppedEdgelsCount > 0 || droppedSegmentsCount > 0 || cutRegionsCount > 0;
+    }
 }
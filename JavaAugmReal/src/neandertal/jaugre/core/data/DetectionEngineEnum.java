@@ -0,0 +1,14 @@
+package neandertal.jaugre.core.data;
+
+/**
+ * Engine of the detection - the edgels pipeline, the adaptive threshold of
+ * the dark blobs, or the threshold first and the edgels pipeline only for the
+ * frames, where the threshold finds no marker
+ * @author neandertal
+ */
+public enum DetectionEngineEnum
+{
+    EDGELS,
+    THRESHOLD,
+    THRESHOLD_FIRST;
+}
@@ -14,6 +14,13 @@ public class Edgel
     private int y;
     private EdgelTypeEnum type;
     private float[] direction;
+    private byte angle;
+    private int strength;
+    private float offsetX;
+    private float offsetY;
+    private boolean undistorted;
+    private float undistortedX;
+    private float undistortedY;
     
     public int getX()
     {
@@ -46,9 +53,98 @@ public class Edgel
     }
     
     
+    /**
+     * Set the direction, and its quantized angle
+     * @param directionArg normalized direction
+     */
     public void setDirection(float[] directionArg)
     {
         direction = directionArg;
+        angle = directionArg != null ? (byte) QuantizedAngle.fromVector(directionArg[0], directionArg[1]) : 0;
+    }
+    
+    /**
+     * Set the direction with its already known quantized angle
+     * @param directionArg normalized direction
+     * @param angleArg angle of the direction, see {@link QuantizedAngle}
+     */
+    public void setDirection(float[] directionArg, int angleArg)
+    {
+        direction = directionArg;
+        angle = (byte) angleArg;
+    }
+    
+    /**
+     * @return quantized angle of the direction, see {@link QuantizedAngle}
+     */
+    public int getAngle()
+    {
+        return angle & QuantizedAngle.MASK;
+    }
+    
+    /**
+     * @return response of the edge filter at the edgel, 0 if not known
+     */
+    public int getStrength()
+    {
+        return strength;
+    }
+    
+    /**
+     * @param strengthArg response of the edge filter at the edgel
+     */
+    public void setStrength(int strengthArg)
+    {
+        strength = strengthArg;
+    }
+    
+    /**
+     * @return x with the sub-pixel offset
+     */
+    public float getSubPixelX()
+    {
+        return x + offsetX;
+    }
+    
+    /**
+     * @return y with the sub-pixel offset
+     */
+    public float getSubPixelY()
+    {
+        return y + offsetY;
+    }
+    
+    /**
+     * @param offsetXArg sub-pixel offset of x, between -0.5 and 0.5
+     * @param offsetYArg sub-pixel offset of y, between -0.5 and 0.5
+     */
+    public void setSubPixelOffset(float offsetXArg, float offsetYArg)
+    {
+        offsetX = offsetXArg;
+        offsetY = offsetYArg;
+    }
+    
+    /**
+     * @return undistorted x, or sub-pixel x if the lens distortion is not removed
+     */
+    public float getUndistortedX()
+    {
+        return undistorted ? undistortedX : getSubPixelX();
+    }
+    
+    /**
+     * @return undistorted y, or sub-pixel y if the lens distortion is not removed
+     */
+    public float getUndistortedY()
+    {
+        return undistorted ? undistortedY : getSubPixelY();
+    }
+    
+    public void setUndistorted(float undistortedXArg, float undistortedYArg)
+    {
+        undistorted = true;
+        undistortedX = undistortedXArg;
+        undistortedY = undistortedYArg;
     }
     
     public Point getPoint()
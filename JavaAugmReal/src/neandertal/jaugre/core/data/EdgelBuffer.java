@@ -0,0 +1,189 @@
+package neandertal.jaugre.core.data;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable buffer of edgels in primitive arrays, so edgels can be collected
+ * without an object per edgel. The arrays only grow, a cleared buffer is
+ * filled again without allocation.
+ * @author neandertal
+ */
+public class EdgelBuffer
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private int[] xs = new int[INITIAL_CAPACITY];
+    private int[] ys = new int[INITIAL_CAPACITY];
+    private float[] offsets = new float[INITIAL_CAPACITY];
+    private int[] strengths = new int[INITIAL_CAPACITY];
+    private boolean[] vertical = new boolean[INITIAL_CAPACITY];
+    private float[] directionsX = new float[INITIAL_CAPACITY];
+    private float[] directionsY = new float[INITIAL_CAPACITY];
+    private byte[] angles = new byte[INITIAL_CAPACITY];
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Add an edgel
+     * @param x
+     * @param y
+     * @param verticalArg true if found on a vertical scan line
+     * @param directionX x of the normalized direction
+     * @param directionY y of the normalized direction
+     */
+    public void add(int x, int y, boolean verticalArg, float directionX, float directionY)
+    {
+        add(x, y, 0, verticalArg, directionX, directionY);
+    }
+
+    /**
+     * Add an edgel with a sub-pixel position
+     * @param x
+     * @param y
+     * @param offset sub-pixel offset along the scan line, of y for vertical scan lines, of x for horizontal
+     * @param verticalArg true if found on a vertical scan line
+     * @param directionX x of the normalized direction
+     * @param directionY y of the normalized direction
+     */
+    public void add(int x, int y, float offset, boolean verticalArg, float directionX, float directionY)
+    {
+        add(x, y, offset, 0, verticalArg, directionX, directionY);
+    }
+
+    /**
+     * Add an edgel with a sub-pixel position and the strength of its response
+     * @param x
+     * @param y
+     * @param offset sub-pixel offset along the scan line, of y for vertical scan lines, of x for horizontal
+     * @param strength response of the edge filter at the edgel
+     * @param verticalArg true if found on a vertical scan line
+     * @param directionX x of the normalized direction
+     * @param directionY y of the normalized direction
+     */
+    public void add(int x, int y, float offset, int strength, boolean verticalArg, float directionX,
+            float directionY)
+    {
+        add(x, y, offset, strength, verticalArg, directionX, directionY,
+                QuantizedAngle.fromVector(directionX, directionY));
+    }
+
+    /**
+     * Add an edgel with a sub-pixel position, the strength of its response
+     * and the quantized angle of its direction
+     * @param x
+     * @param y
+     * @param offset sub-pixel offset along the scan line, of y for vertical scan lines, of x for horizontal
+     * @param strength response of the edge filter at the edgel
+     * @param verticalArg true if found on a vertical scan line
+     * @param directionX x of the normalized direction
+     * @param directionY y of the normalized direction
+     * @param angle angle of the direction, see {@link QuantizedAngle}
+     */
+    public void add(int x, int y, float offset, int strength, boolean verticalArg, float directionX,
+            float directionY, int angle)
+    {
+        if (size == xs.length)
+        {
+            int capacity = size * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            strengths = Arrays.copyOf(strengths, capacity);
+            vertical = Arrays.copyOf(vertical, capacity);
+            directionsX = Arrays.copyOf(directionsX, capacity);
+            directionsY = Arrays.copyOf(directionsY, capacity);
+            angles = Arrays.copyOf(angles, capacity);
+        }
+
+        xs[size] = x;
+        ys[size] = y;
+        offsets[size] = offset;
+        strengths[size] = strength;
+        vertical[size] = verticalArg;
+        directionsX[size] = directionX;
+        directionsY[size] = directionY;
+        angles[size] = (byte) angle;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int getX(int i)
+    {
+        return xs[i];
+    }
+
+    public int getY(int i)
+    {
+        return ys[i];
+    }
+
+    /**
+     * @return sub-pixel offset along the scan line
+     */
+    public float getOffset(int i)
+    {
+        return offsets[i];
+    }
+
+    /**
+     * @return response of the edge filter, 0 if not known
+     */
+    public int getStrength(int i)
+    {
+        return strengths[i];
+    }
+
+    public boolean isVertical(int i)
+    {
+        return vertical[i];
+    }
+
+    public float getDirectionX(int i)
+    {
+        return directionsX[i];
+    }
+
+    public float getDirectionY(int i)
+    {
+        return directionsY[i];
+    }
+
+    /**
+     * @return quantized angle of the direction, see {@link QuantizedAngle}
+     */
+    public int getAngle(int i)
+    {
+        return angles[i] & QuantizedAngle.MASK;
+    }
+
+    /**
+     * @return edgel object of the i-th edgel
+     */
+    public Edgel toEdgel(int i)
+    {
+        Edgel edgel = new Edgel();
+        edgel.setX(xs[i]);
+        edgel.setY(ys[i]);
+        edgel.setType(vertical[i] ? EdgelTypeEnum.VERTICAl : EdgelTypeEnum.HORIZONTAL);
+        if (vertical[i])
+        {
+            edgel.setSubPixelOffset(0, offsets[i]);
+        }
+        else
+        {
+            edgel.setSubPixelOffset(offsets[i], 0);
+        }
+        edgel.setDirection(new float[] { directionsX[i], directionsY[i] }, angles[i]);
+        edgel.setStrength(strengths[i]);
+        return edgel;
+    }
+}
@@ -15,6 +15,7 @@ public class LineSegment
     private Edgel start;
     private Edgel end;
     private float[] direction;
+    private byte angle;
     private List<Edgel> inliners;
     private boolean startCorner;
     private boolean endCorner;
@@ -24,6 +25,7 @@ public class LineSegment
         start = s;
         end = e;
         direction = s.getDirection();
+        angle = (byte) s.getAngle();
         inliners = new LinkedList<Edgel>();
         inliners.add(s);
         inliners.add(e);
@@ -59,6 +61,15 @@ public class LineSegment
     public void setDirection(float[] direction)
     {
         this.direction = direction;
+        angle = direction != null ? (byte) QuantizedAngle.fromVector(direction[0], direction[1]) : 0;
+    }
+    
+    /**
+     * @return quantized angle of the direction, see {@link QuantizedAngle}
+     */
+    public int getAngle()
+    {
+        return angle & QuantizedAngle.MASK;
     }
     
     public List<Edgel> getInliners()
@@ -98,6 +109,7 @@ public class LineSegment
         ls.start = start;
         ls.end = end;
         ls.direction = new float[]{direction[0], direction[1]};
+        ls.angle = angle;
         ls.inliners = new LinkedList<Edgel>();
         ls.startCorner = startCorner;
         ls.endCorner = endCorner;
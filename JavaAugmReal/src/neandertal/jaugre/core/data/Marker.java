@@ -0,0 +1,73 @@
+package neandertal.jaugre.core.data;
+
+import java.awt.Point;
+
+
+/**
+ * Decoded marker - the quadrangle it was found in, its ID, rotation and
+ * the confidence of the reading.
+ * @author neandertal
+ */
+public class Marker
+{
+    private Quadrangle quadrangle;
+    private long id;
+    private int rotation;
+    private float confidence;
+    private Point[] corners;
+
+    /**
+     * @param quadrangle quadrangle of the marker
+     * @param id marker ID
+     * @param rotation clock-wise quarter turns of the read bits, needed to get the ID
+     * @param confidence reading confidence, 0 to 1
+     * @param corners corners in marker orientation - top-left, top-right, bottom-right, bottom-left
+     */
+    public Marker(Quadrangle quadrangle, long id, int rotation, float confidence, Point[] corners)
+    {
+        this.quadrangle = quadrangle;
+        this.id = id;
+        this.rotation = rotation;
+        this.confidence = confidence;
+        this.corners = corners;
+    }
+
+    public Quadrangle getQuadrangle()
+    {
+        return quadrangle;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public int getRotation()
+    {
+        return rotation;
+    }
+
+    public float getConfidence()
+    {
+        return confidence;
+    }
+
+    /**
+     * @return corners in marker orientation - top-left, top-right, bottom-right, bottom-left
+     */
+    public Point[] getCorners()
+    {
+        return corners;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.toString());
+        sb.append(", id=").append(id);
+        sb.append(", rotation=").append(rotation);
+        sb.append(", confidence=").append(confidence);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package neandertal.jaugre.core.data;
+
+import java.util.Arrays;
+
+
+/**
+ * Pose of a marker in the camera coordinates. A marker point P is at
+ * R * P + t in the camera coordinates. The marker frame has its origin in
+ * the marker center, x to the right, y down and z away from the camera,
+ * the same as the camera frame for a marker facing the camera upright.
+ * @author neandertal
+ */
+public class Pose
+{
+    private Quadrangle quadrangle;
+    private double[] rotation;
+    private double[] translation;
+    private double error;
+
+    /**
+     * @param quadrangle quadrangle of the marker
+     * @param rotation 3x3 rotation matrix, row by row
+     * @param translation translation vector
+     * @param error root mean square reprojection error of the corners, in pixels
+     */
+    public Pose(Quadrangle quadrangle, double[] rotation, double[] translation, double error)
+    {
+        this.quadrangle = quadrangle;
+        this.rotation = rotation;
+        this.translation = translation;
+        this.error = error;
+    }
+
+    public Quadrangle getQuadrangle()
+    {
+        return quadrangle;
+    }
+
+    /**
+     * @return 3x3 rotation matrix, row by row
+     */
+    public double[] getRotation()
+    {
+        return rotation;
+    }
+
+    public double[] getTranslation()
+    {
+        return translation;
+    }
+
+    /**
+     * @return root mean square reprojection error of the corners, in pixels
+     */
+    public double getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.toString());
+        sb.append(", rotation=").append(Arrays.toString(rotation));
+        sb.append(", translation=").append(Arrays.toString(translation));
+        sb.append(", error=").append(error);
+        return sb.toString();
+    }
+}
@@ -12,13 +12,26 @@ public class Quadrangle
     private Point p2;
     private Point p3;
     private Point p4;
+    private boolean closed;
+    private double[] undistortedCorners;
     
     public Quadrangle(Point p1, Point p2, Point p3, Point p4)
+    {
+        this(p1, p2, p3, p4, true);
+    }
+    
+    /**
+     * @param closed true if all 4 corners are intersections of lines, false if
+     * the quadrangle comes from a chain of 3 lines and 2 of its corners are
+     * only line ends
+     */
+    public Quadrangle(Point p1, Point p2, Point p3, Point p4, boolean closed)
     {
         this.p1 = p1;
         this.p2 = p2;
         this.p3 = p3;
         this.p4 = p4;
+        this.closed = closed;
     }
     
     public Point getP1()
@@ -40,4 +53,23 @@ public class Quadrangle
     {
         return p4;
     }
+    
+    public boolean isClosed()
+    {
+        return closed;
+    }
+    
+    /**
+     * @return corners without the lens distortion {x1, y1, .. x4, y4}, or
+     * NULL if the distortion is not removed
+     */
+    public double[] getUndistortedCorners()
+    {
+        return undistortedCorners;
+    }
+    
+    public void setUndistortedCorners(double[] undistortedCorners)
+    {
+        this.undistortedCorners = undistortedCorners;
+    }
 }
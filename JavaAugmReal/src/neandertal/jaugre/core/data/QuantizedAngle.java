@@ -0,0 +1,130 @@
+package neandertal.jaugre.core.data;
+
+
+/**
+ * Directions as quantized angles, {@link #STEPS} steps per full circle, so a
+ * direction fits in a byte. The angle of a vector comes from an arctangent
+ * table on the ratio of its components, the dot and cross products of two
+ * directions from a cosine table on the difference of their angles.
+ * <br/>
+ * The detection steps compare the quantized angles by default, or the
+ * normalized float directions - chosen by the session, see
+ * {@link neandertal.jaugre.core.DetectorSession#setQuantizedAngles(boolean)}, to compare the accuracy of both.
+ * @author neandertal
+ */
+public final class QuantizedAngle
+{
+    /** Steps of a full circle */
+    public static final int STEPS = 256;
+    /** Mask of an angle, or of a difference of angles */
+    public static final int MASK = STEPS - 1;
+
+    // steps of the ratio of the smaller to the larger component
+    private static final int RATIO_STEPS = 1024;
+    // angle of a ratio, in 1/16 of a step, from 0 to 1/8 of the circle
+    private static final int[] ATAN = new int[RATIO_STEPS + 1];
+    private static final float[] COS = new float[STEPS];
+    private static final float[] SIN = new float[STEPS];
+
+    static
+    {
+        for (int i = 0; i <= RATIO_STEPS; i++)
+        {
+            ATAN[i] = (int) Math.round(Math.atan(i / (double) RATIO_STEPS) * STEPS * 16 / (2 * Math.PI));
+        }
+        for (int i = 0; i < STEPS; i++)
+        {
+            COS[i] = (float) Math.cos(i * 2 * Math.PI / STEPS);
+            SIN[i] = (float) Math.sin(i * 2 * Math.PI / STEPS);
+        }
+    }
+
+    private QuantizedAngle() {}
+
+    /**
+     * Angle of a vector with integer components, like the Sobel gradient
+     * @param x
+     * @param y
+     * @return angle from 0 to {@link #MASK}, 0 for a null vector
+     */
+    public static int fromComponents(int x, int y)
+    {
+        int ax = Math.abs(x);
+        int ay = Math.abs(y);
+        if (ay <= ax)
+        {
+            return ax == 0 ? 0 : unfold(ATAN[ay * RATIO_STEPS / ax], x, y);
+        }
+        return unfold(STEPS * 4 - ATAN[ax * RATIO_STEPS / ay], x, y);
+    }
+
+    /**
+     * Angle of a vector with float components, like a normalized direction
+     * @param x
+     * @param y
+     * @return angle from 0 to {@link #MASK}, 0 for a null vector
+     */
+    public static int fromVector(float x, float y)
+    {
+        float ax = Math.abs(x);
+        float ay = Math.abs(y);
+        if (ay <= ax)
+        {
+            return ax == 0 ? 0 : unfold(ATAN[(int) (ay * RATIO_STEPS / ax + 0.5f)], x, y);
+        }
+        return unfold(STEPS * 4 - ATAN[(int) (ax * RATIO_STEPS / ay + 0.5f)], x, y);
+    }
+
+    // angle of the first quadrant, in 1/16 of a step, to the quadrant of the vector
+    private static int unfold(int angle, float x, float y)
+    {
+        int a = (angle + 8) >> 4;
+        if (x < 0)
+        {
+            a = STEPS / 2 - a;
+        }
+        if (y < 0)
+        {
+            a = STEPS - a;
+        }
+        return a & MASK;
+    }
+
+    /**
+     * @return dot product of the normalized directions of the two angles
+     */
+    public static float cos(int angleA, int angleB)
+    {
+        return COS[(angleB - angleA) & MASK];
+    }
+
+    /**
+     * @return cross product of the normalized directions of the two angles
+     */
+    public static float sin(int angleA, int angleB)
+    {
+        return SIN[(angleB - angleA) & MASK];
+    }
+
+    /**
+     * @return true if the cross product of the directions is not negative,
+     *         B is turned from A by 0 to a half circle
+     */
+    public static boolean isTurnedPositive(int angleA, int angleB)
+    {
+        return ((angleB - angleA) & MASK) <= STEPS / 2;
+    }
+
+    /**
+     * Normalized direction of an angle
+     * @param angle
+     * @param result output for the direction
+     * @return the result
+     */
+    public static float[] toDirection(int angle, float[] result)
+    {
+        result[0] = COS[angle & MASK];
+        result[1] = SIN[angle & MASK];
+        return result;
+    }
+}
@@ -12,12 +12,16 @@ import javax.swing.JFrame;
 import neandertal.jaugre.core.ChainsDetector;
 import neandertal.jaugre.core.CornerDetector;
 import neandertal.jaugre.core.EdgelDetector;
+import neandertal.jaugre.core.MarkerDecoder;
+import neandertal.jaugre.core.PoseEstimator;
 import neandertal.jaugre.core.QuadranglesExtractor;
+import neandertal.jaugre.core.QuadranglesFilter;
 import neandertal.jaugre.core.RegionSplitter;
 import neandertal.jaugre.core.SegmentsExtendor;
 import neandertal.jaugre.core.SegmentsFinder;
 import neandertal.jaugre.core.SegmentsMerger;
 import neandertal.jaugre.core.Tools;
+import neandertal.jaugre.core.data.CameraIntrinsics;
 import neandertal.jaugre.core.data.Container;
 import neandertal.jaugre.gui.imageframe.ImageScrollPanel;
 
@@ -59,6 +63,13 @@ public class Main
         ChainsDetector.findChains(image);
         //Extract Quadrangles
         QuadranglesExtractor.extractQuadrangles(image);
+        //Filter Quadrangles
+        QuadranglesFilter.filterQuadrangles(image);
+        //Decode markers
+        MarkerDecoder.decodeMarkers(image);
+        //Estimate poses, focal length guessed as the image width
+        PoseEstimator.estimatePoses(image, new CameraIntrinsics(img.getWidth(), img.getWidth(), img.getWidth() / 2.0,
+                img.getHeight() / 2.0), 1);
         
         //print numbers
         System.out.println("Edgels  : " + image.getEdgelsCollection().size());
@@ -68,6 +79,9 @@ public class Main
         System.out.println("Cornered: " + image.getCornerSegments().size());
         System.out.println("Chains  : " + image.getChains().size());
         System.out.println("Quadrang: " + image.getQuadrangles().size());
+        System.out.println("Filtered: " + image.getFilteredQuadrangles().size());
+        System.out.println("Markers : " + image.getMarkers().size());
+        System.out.println("Poses   : " + image.getPoses().size());
         
         BufferedImage imgWithSegments = Tools.cloneImage(img);
         Tools.drawRegions(imgWithSegments, image.getRegionsCollection());
@@ -78,7 +92,7 @@ public class Main
         //Tools.drawLineSegments(imgWithSegments, image.getExtendedSegments());
         Tools.drawLineSegments(imgWithSegments, image.getCornerSegments());
         //Tools.drawChains(imgWithSegments, image.getChains());
-        Tools.drawQuadrangles(imgWithSegments, image.getQuadrangles());
+        Tools.drawQuadrangles(imgWithSegments, image.getFilteredQuadrangles());
         
         // Create and set up the content pane.
         JComponent newContentPane = new ImageScrollPanel(imgWithSegments);